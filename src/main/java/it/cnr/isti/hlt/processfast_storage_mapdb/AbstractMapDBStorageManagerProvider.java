@@ -24,18 +24,100 @@ import it.cnr.isti.hlt.processfast.utils.Function1;
 import it.cnr.isti.hlt.processfast.utils.Procedure0;
 import it.cnr.isti.hlt.processfast.utils.Procedure1;
 import org.mapdb.DB;
+import org.mapdb.Serializer;
 import org.mapdb.TxMaker;
 
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
  */
 public abstract class AbstractMapDBStorageManagerProvider implements StorageManagerProvider {
 
+    /**
+     * The default tile size of the tiled matrices.
+     */
+    public static final int DEFAULT_MATRIX_TILE_SIZE = 64;
+
+    /**
+     * The maximum tile size of the tiled matrices.
+     */
+    public static final int MAX_MATRIX_TILE_SIZE = 1024;
+
+    /**
+     * The default maximum number of values kept in the local caches of a matrix.
+     */
+    public static final int DEFAULT_MATRIX_LOCAL_CACHE_SIZE = 1 << 22;
+
     /**
      * The MapDB db instance manager.
      */
     protected TxMaker txMaker;
 
+    /**
+     * The number of consecutive values stored in a single record by the arrays created
+     * from now on. A value of 0 means that every array value is stored in a separate record.
+     */
+    private int arrayChunkSize = 0;
+
+    /**
+     * The consistency mode used by the arrays when importing collections of values.
+     */
+    private ArrayIngestMode arrayIngestMode = ArrayIngestMode.ATOMIC;
+
+    /**
+     * True if the values appended to arrays with appendValue() are committed in groups.
+     */
+    private boolean arrayGroupCommitEnabled = false;
+
+    /**
+     * True if the chunks of the arrays created from now on are compressed.
+     */
+    private boolean arrayCompressionEnabled = false;
+
+    /**
+     * The storage mode of the matrices created from now on.
+     */
+    private MatrixStorageMode matrixStorageMode = MatrixStorageMode.ROW_MAPS;
+
+    /**
+     * The number of rows and columns of the tiles of the tiled matrices created from now on.
+     */
+    private int matrixTileSize = DEFAULT_MATRIX_TILE_SIZE;
+
+    /**
+     * The maximum number of values kept in the local caches of every matrix.
+     */
+    private int matrixLocalCacheSize = DEFAULT_MATRIX_LOCAL_CACHE_SIZE;
+
+    /**
+     * The group commit queues of the arrays, indexed by internal array name.
+     */
+    private final ConcurrentHashMap<String, ArrayAppendQueue<?>> arrayAppendQueues = new ConcurrentHashMap<>();
+
+    /**
+     * The serializers used to store array and matrix values, indexed by value class.
+     */
+    private final ConcurrentHashMap<Class<?>, Serializer<?>> valueSerializers = new ConcurrentHashMap<>();
+
+
+    protected AbstractMapDBStorageManagerProvider() {
+        registerValueSerializer(Double.class, ValueSerializers.DOUBLE);
+        registerValueSerializer(Float.class, ValueSerializers.FLOAT);
+        registerValueSerializer(Long.class, Serializer.LONG);
+        registerValueSerializer(Integer.class, Serializer.INTEGER);
+        registerValueSerializer(Short.class, ValueSerializers.SHORT);
+        registerValueSerializer(Byte.class, ValueSerializers.BYTE);
+        registerValueSerializer(Character.class, ValueSerializers.CHAR);
+        registerValueSerializer(Boolean.class, Serializer.BOOLEAN);
+        registerValueSerializer(String.class, Serializer.STRING);
+        registerValueSerializer(byte[].class, Serializer.BYTE_ARRAY);
+        registerValueSerializer(int[].class, Serializer.INT_ARRAY);
+        registerValueSerializer(long[].class, Serializer.LONG_ARRAY);
+        registerValueSerializer(double[].class, Serializer.DOUBLE_ARRAY);
+    }
+
     public TxMaker getTxMaker() {
         return txMaker;
     }
@@ -55,4 +137,187 @@ public abstract class AbstractMapDBStorageManagerProvider implements StorageMana
     TxMaker txMaker() {
         return txMaker;
     }
+
+
+    public int getArrayChunkSize() {
+        return arrayChunkSize;
+    }
+
+    /**
+     * Set the number of consecutive values stored in a single record by the arrays created
+     * after this call. Storing values in chunks (e.g. 1024 values per record) greatly reduces
+     * the number of tree lookups and the storage overhead on range reads and writes. The
+     * arrays already existing keep the layout they have been created with.
+     *
+     * @param arrayChunkSize The number of values for each chunk or 0 to store every value
+     *                       in a separate record.
+     */
+    public void setArrayChunkSize(int arrayChunkSize) {
+        if (arrayChunkSize < 0)
+            throw new IllegalArgumentException("The array chunk size is less than 0: " + arrayChunkSize);
+        this.arrayChunkSize = arrayChunkSize;
+    }
+
+    public ArrayIngestMode getArrayIngestMode() {
+        return arrayIngestMode;
+    }
+
+    /**
+     * Set the consistency mode used by the arrays when importing collections of values
+     * with {@link MapDBArray#copyFrom(java.util.Collection, boolean, long)}.
+     *
+     * @param arrayIngestMode The consistency mode to use.
+     */
+    public void setArrayIngestMode(ArrayIngestMode arrayIngestMode) {
+        if (arrayIngestMode == null)
+            throw new NullPointerException("The array ingest mode is 'null'");
+        this.arrayIngestMode = arrayIngestMode;
+    }
+
+
+    public boolean isArrayCompressionEnabled() {
+        return arrayCompressionEnabled;
+    }
+
+    /**
+     * Enable or disable the LZF compression of the chunks of the arrays created after
+     * this call. Every chunk is compressed as a unit, trading some CPU time for smaller
+     * records and less I/O. Arrays created without a chunk size are stored in chunks of
+     * 1024 values when the compression is enabled. The arrays already existing keep the
+     * format they have been created with.
+     *
+     * @param arrayCompressionEnabled True to compress the array chunks, false otherwise.
+     */
+    public void setArrayCompressionEnabled(boolean arrayCompressionEnabled) {
+        this.arrayCompressionEnabled = arrayCompressionEnabled;
+    }
+
+    public boolean isArrayGroupCommitEnabled() {
+        return arrayGroupCommitEnabled;
+    }
+
+    /**
+     * Enable or disable the group commit of the values appended to arrays with
+     * {@link MapDBArray#appendValue(java.io.Serializable)}. When enabled, the values
+     * appended concurrently to the same array, from any array instance obtained from
+     * this provider, are queued and appended in batches, one transaction per batch,
+     * instead of making every appender compete on the array size counter.
+     *
+     * @param arrayGroupCommitEnabled True to enable the group commit, false otherwise.
+     */
+    public void setArrayGroupCommitEnabled(boolean arrayGroupCommitEnabled) {
+        this.arrayGroupCommitEnabled = arrayGroupCommitEnabled;
+    }
+
+    public MatrixStorageMode getMatrixStorageMode() {
+        return matrixStorageMode;
+    }
+
+    /**
+     * Set the storage mode of the matrices created from now on. The matrices already
+     * existing keep the storage mode they have been created with.
+     *
+     * @param matrixStorageMode The storage mode to use.
+     */
+    public void setMatrixStorageMode(MatrixStorageMode matrixStorageMode) {
+        if (matrixStorageMode == null)
+            throw new NullPointerException("The matrix storage mode is 'null'");
+        this.matrixStorageMode = matrixStorageMode;
+    }
+
+    public int getMatrixTileSize() {
+        return matrixTileSize;
+    }
+
+    /**
+     * Set the number of rows and columns of the tiles of the matrices created from now on
+     * with the {@link MatrixStorageMode#DENSE_TILES} storage mode.
+     *
+     * @param matrixTileSize The tile size, between 1 and {@link #MAX_MATRIX_TILE_SIZE}.
+     */
+    public void setMatrixTileSize(int matrixTileSize) {
+        if (matrixTileSize < 1 || matrixTileSize > MAX_MATRIX_TILE_SIZE)
+            throw new IllegalArgumentException("The matrix tile size is not valid: " + matrixTileSize);
+        this.matrixTileSize = matrixTileSize;
+    }
+
+    public int getMatrixLocalCacheSize() {
+        return matrixLocalCacheSize;
+    }
+
+    /**
+     * Set the maximum number of values kept in the local caches of every matrix (see
+     * {@link MapDBMatrix#enableLocalCache(boolean, long, long, long, long)}). When a new
+     * rectangle does not fit, the least recently used rectangles are flushed and evicted.
+     *
+     * @param matrixLocalCacheSize The maximum number of values, between 1 and
+     *                             {@link MapDBMatrix#MAX_LOCAL_CACHE_SIZE}.
+     */
+    public void setMatrixLocalCacheSize(int matrixLocalCacheSize) {
+        if (matrixLocalCacheSize < 1 || matrixLocalCacheSize > MapDBMatrix.MAX_LOCAL_CACHE_SIZE)
+            throw new IllegalArgumentException("The matrix local cache size is not valid: " + matrixLocalCacheSize);
+        this.matrixLocalCacheSize = matrixLocalCacheSize;
+    }
+
+    /**
+     * Get the group commit queue of the given array.
+     *
+     * @param arrayName The internal name of the array.
+     * @return The group commit queue of the array.
+     */
+    @SuppressWarnings("unchecked")
+    <T extends Serializable> ArrayAppendQueue<T> getArrayAppendQueue(String arrayName) {
+        return (ArrayAppendQueue<T>) arrayAppendQueues.computeIfAbsent(arrayName, name -> new ArrayAppendQueue<T>());
+    }
+
+    /**
+     * Remove the group commit queue of the given array, after the array has been removed.
+     *
+     * @param arrayName The internal name of the removed array.
+     */
+    void removeArrayAppendQueue(String arrayName) {
+        arrayAppendQueues.remove(arrayName);
+    }
+
+    /**
+     * Remove the group commit queues of the arrays whose internal name starts with the
+     * given prefix, after the arrays have been removed.
+     *
+     * @param arrayNamePrefix The prefix of the internal names of the removed arrays.
+     */
+    void removeArrayAppendQueues(String arrayNamePrefix) {
+        arrayAppendQueues.keySet().removeIf(name -> name.startsWith(arrayNamePrefix));
+    }
+
+    /**
+     * Register the serializer used to store values of the given class in the arrays and
+     * matrices created after this call. MapDB stores the serializer together with the
+     * collections using it, so the serializer must be serializable and must be available
+     * every time the data is read back. Registering a serializer for an already registered
+     * class replaces the previous one.
+     *
+     * @param valueClass The class of the values.
+     * @param serializer The serializer to use for the values of the given class.
+     */
+    public <T> void registerValueSerializer(Class<T> valueClass, Serializer<T> serializer) {
+        if (valueClass == null)
+            throw new NullPointerException("The value class is 'null'");
+        if (serializer == null)
+            throw new NullPointerException("The serializer is 'null'");
+        valueSerializers.put(valueClass, serializer);
+    }
+
+    /**
+     * Get the serializer registered for the given class of values.
+     *
+     * @param valueClass The class of the values.
+     * @return The serializer registered for the class or 'null' if no serializer has been
+     * registered for the class.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Serializer<T> getValueSerializer(Class<T> valueClass) {
+        if (valueClass == null)
+            throw new NullPointerException("The value class is 'null'");
+        return (Serializer<T>) valueSerializers.get(valueClass);
+    }
 }
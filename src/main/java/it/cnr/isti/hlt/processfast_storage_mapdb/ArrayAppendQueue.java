@@ -0,0 +1,123 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The group commit queue of the values appended to an array. Appending threads add
+ * their values to a lock-free queue; the thread holding the commit lock appends the
+ * oldest pending values, at most {@link #MAX_BATCH_SIZE} of them, with a single
+ * transaction and then releases the lock. Every thread takes the lock in turn only
+ * until its own value has been committed, so a thread never commits the values queued
+ * after its own, and concurrent appenders do not conflict on the array size counter.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+class ArrayAppendQueue<T extends Serializable> {
+
+    /**
+     * The maximum number of values appended in a single transaction.
+     */
+    static final int MAX_BATCH_SIZE = 4096;
+
+    private static class PendingAppend<T> {
+        private final T value;
+        private final CompletableFuture<Long> index = new CompletableFuture<>();
+
+        PendingAppend(T value) {
+            this.value = value;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<PendingAppend<T>> pending = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock commitLock = new ReentrantLock();
+
+    /**
+     * Append a value to the given array, waiting until the value has been committed.
+     *
+     * @param array The array where to append the value.
+     * @param value The value to append.
+     * @return The index assigned to the value.
+     */
+    long append(MapDBArray<T> array, T value) {
+        PendingAppend<T> append = new PendingAppend<>(value);
+        pending.add(append);
+        // Each lock hold commits one batch of the oldest values, so this thread commits at
+        // most the batches queued before its own value.
+        while (!append.index.isDone()) {
+            commitLock.lock();
+            try {
+                if (!append.index.isDone())
+                    commitBatch(array);
+            } finally {
+                commitLock.unlock();
+            }
+        }
+
+        try {
+            return append.index.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the value to be appended", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Unable to append the value", e.getCause());
+        }
+    }
+
+    /**
+     * Append the oldest pending values, at most {@link #MAX_BATCH_SIZE} of them, with a
+     * single transaction. Must be called holding the commit lock.
+     */
+    private void commitBatch(MapDBArray<T> array) {
+        List<PendingAppend<T>> batch = new ArrayList<>();
+        PendingAppend<T> append;
+        while (batch.size() < MAX_BATCH_SIZE && (append = pending.poll()) != null)
+            batch.add(append);
+        if (batch.isEmpty())
+            return;
+
+        List<T> values = new ArrayList<>(batch.size());
+        for (PendingAppend<T> a : batch)
+            values.add(a.value);
+        long startIndex;
+        try {
+            startIndex = array.appendBatch(values);
+        } catch (RuntimeException e) {
+            for (PendingAppend<T> a : batch)
+                a.index.completeExceptionally(e);
+            return;
+        } catch (Throwable t) {
+            // The waiting appenders must be released also on errors, which are then rethrown.
+            for (PendingAppend<T> a : batch)
+                a.index.completeExceptionally(t);
+            throw t;
+        }
+        for (int i = 0; i < batch.size(); i++)
+            batch.get(i).index.complete(startIndex + i);
+    }
+}
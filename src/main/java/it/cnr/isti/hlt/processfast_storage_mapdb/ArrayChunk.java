@@ -0,0 +1,125 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import org.mapdb.Serializer;
+
+import java.io.Serializable;
+
+/**
+ * A block of consecutive array values stored as a single MapDB record. Positions
+ * without a stored value are reported as 'null' and are read by the array as its
+ * default value.
+ * <p>
+ * Chunks read from a MapDB collection must never be modified in place: use
+ * {@link #copy()} to obtain a private instance before changing it. Chunks are
+ * also Java serializable, so that the MapDB data pump can presort them.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+abstract class ArrayChunk<T extends Serializable> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Get the number of positions available in this chunk.
+     *
+     * @return The number of positions available in this chunk.
+     */
+    abstract int length();
+
+    /**
+     * Get the value stored at the given position.
+     *
+     * @param offset The position inside the chunk.
+     * @return The stored value or 'null' if the position has no value stored.
+     */
+    abstract T get(int offset);
+
+    /**
+     * Set the value stored at the given position.
+     *
+     * @param offset The position inside the chunk.
+     * @param value  The value to store or 'null' to remove the stored value.
+     */
+    abstract void set(int offset, T value);
+
+    /**
+     * Get the number of positions having a value stored.
+     *
+     * @return The number of positions having a value stored.
+     */
+    abstract int numStored();
+
+    /**
+     * Make a private copy of this chunk.
+     *
+     * @return A copy of this chunk.
+     */
+    abstract ArrayChunk<T> copy();
+
+    boolean isEmpty() {
+        return numStored() == 0;
+    }
+
+    /**
+     * Remove all the values stored in the positions [fromOffset, toOffset).
+     *
+     * @param fromOffset The first position to clear.
+     * @param toOffset   The position after the last one to clear.
+     */
+    void clear(int fromOffset, int toOffset) {
+        for (int i = fromOffset; i < toOffset; i++)
+            set(i, null);
+    }
+
+
+    /**
+     * The MapDB serializer of a kind of chunk. It is stored by MapDB together with the
+     * collection of chunks, so it is also used to create new empty chunks of the right kind.
+     */
+    abstract static class Codec<T extends Serializable> implements Serializer<ArrayChunk<T>>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Create a new chunk without any value stored.
+         *
+         * @param length The number of positions available in the chunk.
+         * @return The new chunk.
+         */
+        abstract ArrayChunk<T> newChunk(int length);
+
+        /**
+         * Get the codec defining the kind of chunks, skipping any wrapping codec
+         * (e.g. compression).
+         *
+         * @return The codec defining the kind of chunks.
+         */
+        ArrayChunk.Codec<T> unwrap() {
+            return this;
+        }
+
+        @Override
+        public int fixedSize() {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+/**
+ * The consistency guaranteed while importing a collection of values into a
+ * {@link MapDBArray}. In both modes the values are written in batches of
+ * "numBufferedItems" values, each one in its own transaction.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+public enum ArrayIngestMode {
+    /**
+     * The values are written in a staging map which is published in a single final
+     * transaction, so other clients see either all the imported values or none of them.
+     * When the array is empty or cleared by the import, the staging map simply replaces
+     * the array map. Otherwise it is merged into the array map by the final transaction.
+     */
+    ATOMIC,
+
+    /**
+     * The array is resized in the first transaction and every batch of values is
+     * committed directly into the array. Other clients can observe a partially imported
+     * collection, and a failure leaves the values already committed in the array.
+     */
+    CHUNKED
+}
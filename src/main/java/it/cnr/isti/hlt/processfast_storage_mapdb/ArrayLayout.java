@@ -0,0 +1,257 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import it.cnr.isti.hlt.processfast.utils.Pair;
+import org.mapdb.DB;
+import org.mapdb.Fun;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * The way the values of a {@link MapDBArray} are laid out inside the MapDB
+ * collection backing the array. All the methods work on the transaction
+ * specified by the caller and do not check the array bounds.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+abstract class ArrayLayout<T extends Serializable> {
+
+    /**
+     * The number of entries sorted in memory at a time by the MapDB data pump when
+     * bulk loading values given in ascending index order.
+     */
+    static final int PUMP_PRESORT_BATCH_SIZE = 1 << 16;
+
+    /**
+     * The name of the MapDB collection containing the array values.
+     */
+    protected final String mapName;
+
+    ArrayLayout(String mapName) {
+        if (mapName == null || mapName.isEmpty())
+            throw new IllegalArgumentException("The map name is 'null' or empty");
+        this.mapName = mapName;
+    }
+
+    /**
+     * Create the MapDB collection containing the array values.
+     *
+     * @param db The transaction to use.
+     */
+    abstract void createMap(DB db);
+
+    /**
+     * Get the value stored at the given index.
+     *
+     * @param db    The transaction to use.
+     * @param index The index of the value.
+     * @return The stored value or 'null' if no value is stored at the given index.
+     */
+    abstract T get(DB db, long index);
+
+    /**
+     * Set the value stored at the given index.
+     *
+     * @param db    The transaction to use.
+     * @param index The index of the value.
+     * @param value The value to store or 'null' to remove the stored value.
+     */
+    abstract void set(DB db, long index, T value);
+
+    /**
+     * Read the values in the range [fromIndex, toIndex) and add them to "dest". Indexes
+     * without a stored value are reported as "defaultValue".
+     *
+     * @param db           The transaction to use.
+     * @param fromIndex    The first index to read.
+     * @param toIndex      The index after the last one to read.
+     * @param defaultValue The value to use for indexes without a stored value.
+     * @param dest         The list where to add the values read.
+     */
+    abstract void getValues(DB db, long fromIndex, long toIndex, T defaultValue, List<T> dest);
+
+    /**
+     * Read the values stored in the range [fromIndex, toIndex) and add them to "dest"
+     * as (index, value) pairs in index order. Indexes without a stored value are skipped.
+     *
+     * @param db        The transaction to use.
+     * @param fromIndex The first index to read.
+     * @param toIndex   The index after the last one to read.
+     * @param dest      The list where to add the values read.
+     */
+    abstract void getStoredValues(DB db, long fromIndex, long toIndex, List<Pair<Long, T>> dest);
+
+    /**
+     * Get a cursor over the values stored in the range [fromIndex, toIndex), as
+     * (index, value) pairs in index order. Indexes without a stored value are skipped.
+     * The cursor reads the values lazily, so it is valid only while the given
+     * transaction is open.
+     *
+     * @param db        The transaction to use.
+     * @param fromIndex The first index to read.
+     * @param toIndex   The index after the last one to read.
+     * @return The cursor over the stored values.
+     */
+    abstract Iterator<Fun.Tuple2<Long, T>> storedValuesIterator(DB db, long fromIndex, long toIndex);
+
+    /**
+     * Store the specified values starting from the given index.
+     *
+     * @param db        The transaction to use.
+     * @param fromIndex The index where to store the first value.
+     * @param values    The values to store. A 'null' value removes the stored value.
+     */
+    abstract void setValues(DB db, long fromIndex, List<T> values);
+
+    /**
+     * Remove all the values stored in the range [fromIndex, toIndex).
+     *
+     * @param db        The transaction to use.
+     * @param fromIndex The first index to remove.
+     * @param toIndex   The index after the last one to remove.
+     */
+    abstract void removeValues(DB db, long fromIndex, long toIndex);
+
+    /**
+     * Rename the MapDB collection containing the array values and replace it with a new
+     * empty one. The cost does not depend on the number of stored values: the detached
+     * collection must be removed later with {@link #removeDetachedEntries(DB, String, int)}.
+     *
+     * @param db           The transaction to use.
+     * @param detachedName The new name of the current collection.
+     */
+    abstract void detachMap(DB db, String detachedName);
+
+    /**
+     * Replace the MapDB collection containing the array values with the collection
+     * built by the specified layout, which must have the same configuration. The current
+     * collection is renamed and must be removed later with
+     * {@link #removeDetachedEntries(DB, String, int)}. The array values must not be
+     * accessed again in the same transaction.
+     *
+     * @param db           The transaction to use.
+     * @param replacement  The layout of the replacing collection.
+     * @param detachedName The new name of the current collection.
+     */
+    void replaceMap(DB db, ArrayLayout<T> replacement, String detachedName) {
+        renameMap(db, mapName, detachedName);
+        renameMap(db, replacement.mapName, mapName);
+    }
+
+    /**
+     * Rename a MapDB collection. DB.rename() renames every catalog entry starting with
+     * the old name, so it would also rename the collections whose name extends it (e.g.
+     * "storage_array_0_1" and "storage_array_0_10"): only the entries of the collection,
+     * named "name.property", are renamed here. The collection must not be accessed again
+     * with its old name in the same transaction.
+     *
+     * @param db      The transaction to use.
+     * @param oldName The current name of the collection.
+     * @param newName The new name of the collection.
+     */
+    static void renameMap(DB db, String oldName, String newName) {
+        db.rename(oldName + ".", newName + ".");
+    }
+
+    /**
+     * Get a layout with the same configuration of this one, storing the values in the
+     * MapDB collection with the given name.
+     *
+     * @param mapName The name of the MapDB collection.
+     * @return The new layout.
+     */
+    abstract ArrayLayout<T> withMapName(String mapName);
+
+    /**
+     * Remove at most "maxEntries" entries from a collection detached with
+     * {@link #detachMap(DB, String)} (or a detached set), and the collection itself once
+     * it is empty.
+     *
+     * @param db           The transaction to use.
+     * @param detachedName The name of the detached collection.
+     * @param maxEntries   The maximum number of entries to remove.
+     * @return True if the collection has been completely removed, false otherwise.
+     */
+    static boolean removeDetachedEntries(DB db, String detachedName, int maxEntries) {
+        Object detached = db.get(detachedName);
+        Collection<?> entries = detached instanceof Map ? ((Map<?, ?>) detached).keySet() : (Collection<?>) detached;
+        Iterator<?> keys = entries.iterator();
+        for (int i = 0; i < maxEntries && keys.hasNext(); i++) {
+            keys.next();
+            keys.remove();
+        }
+        if (!entries.isEmpty())
+            return false;
+        db.delete(detachedName);
+        return true;
+    }
+
+    /**
+     * Replace the MapDB collection containing the array values with a new one built
+     * by the MapDB data pump, which writes the tree nodes directly instead of inserting
+     * the values one at a time.
+     *
+     * @param db         The transaction to use.
+     * @param values     The (index, value) pairs to store, without duplicated indexes. The
+     *                   pairs with a 'null' value are skipped.
+     * @param descending True if the pairs are given in descending index order, false if
+     *                   they are given in ascending index order and must be presorted.
+     */
+    abstract void bulkLoad(DB db, Iterator<Fun.Tuple2<Long, T>> values, boolean descending);
+
+    /**
+     * Wrap an iterator of (index, value) pairs skipping the pairs with a 'null' value.
+     */
+    static <T> Iterator<Fun.Tuple2<Long, T>> skipNullValues(Iterator<Fun.Tuple2<Long, T>> values) {
+        return new Iterator<Fun.Tuple2<Long, T>>() {
+            private Fun.Tuple2<Long, T> next = advance();
+
+            private Fun.Tuple2<Long, T> advance() {
+                while (values.hasNext()) {
+                    Fun.Tuple2<Long, T> v = values.next();
+                    if (v.b != null)
+                        return v;
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Fun.Tuple2<Long, T> next() {
+                if (next == null)
+                    throw new NoSuchElementException();
+                Fun.Tuple2<Long, T> ret = next;
+                next = advance();
+                return ret;
+            }
+        };
+    }
+}
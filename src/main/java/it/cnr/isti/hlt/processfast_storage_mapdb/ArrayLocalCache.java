@@ -0,0 +1,156 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import java.io.Serializable;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A client-side copy of the values of an array in the range [fromIndex, toIndex).
+ * The cache is loaded with a single range read the first time it is accessed,
+ * serves reads from memory and keeps track of the values written locally until
+ * they are flushed to the storage. Once flushed or invalidated, the cache is
+ * loaded again on the next access.
+ * <p>
+ * The cache is not thread-safe: callers must synchronize on the cache object.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+class ArrayLocalCache<T extends Serializable> {
+
+    private final long fromIndex;
+    private final long toIndex;
+
+    /**
+     * The values stored in the cached range. A 'null' entry means no value stored.
+     */
+    private Object[] values;
+
+    /**
+     * The positions written locally and not yet flushed.
+     */
+    private final BitSet dirty;
+
+    private boolean loaded;
+    private long arraySize;
+    private T defaultValue;
+
+    ArrayLocalCache(long fromIndex, long toIndex) {
+        if (fromIndex < 0)
+            throw new IllegalArgumentException("The fromIndex value is less than 0");
+        if (fromIndex >= toIndex)
+            throw new IllegalArgumentException("The fromIndex value is greater equals to toIndex value: fromIndex: " + fromIndex + ", toIndex: " + toIndex);
+        if (toIndex - fromIndex > MapDBArray.MAX_LOCAL_CACHE_SIZE)
+            throw new IllegalArgumentException("The range to cache is bigger than " + MapDBArray.MAX_LOCAL_CACHE_SIZE + " values");
+        this.fromIndex = fromIndex;
+        this.toIndex = toIndex;
+        this.dirty = new BitSet();
+        this.loaded = false;
+    }
+
+    boolean contains(long index) {
+        return index >= fromIndex && index < toIndex;
+    }
+
+    boolean contains(long from, long to) {
+        return from >= fromIndex && to <= toIndex;
+    }
+
+    long getFromIndex() {
+        return fromIndex;
+    }
+
+    long getToIndex() {
+        return toIndex;
+    }
+
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Load the cache.
+     *
+     * @param arraySize    The current array size.
+     * @param defaultValue The current array default value.
+     * @param stored       The values stored in the range [fromIndex, min(toIndex, arraySize)),
+     *                     with 'null' for the indexes without a value stored.
+     */
+    void load(long arraySize, T defaultValue, List<T> stored) {
+        this.values = stored.toArray();
+        this.arraySize = arraySize;
+        this.defaultValue = defaultValue;
+        this.dirty.clear();
+        this.loaded = true;
+    }
+
+    /**
+     * Drop the cached values. Any value not yet flushed is lost.
+     */
+    void invalidate() {
+        values = null;
+        defaultValue = null;
+        dirty.clear();
+        loaded = false;
+    }
+
+    /**
+     * Get the array size seen when the cache has been loaded.
+     */
+    long getArraySize() {
+        return arraySize;
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(long index) {
+        Object v = values[(int) (index - fromIndex)];
+        return v != null ? (T) v : defaultValue;
+    }
+
+    void getValues(long from, long to, List<T> dest) {
+        for (long i = from; i < to; i++)
+            dest.add(get(i));
+    }
+
+    void set(long index, T value) {
+        int pos = (int) (index - fromIndex);
+        values[pos] = value;
+        dirty.set(pos);
+    }
+
+    boolean isDirty() {
+        return !dirty.isEmpty();
+    }
+
+    /**
+     * Get the positions written locally and not yet flushed. The index of each position
+     * is fromIndex + position.
+     */
+    BitSet getDirtyPositions() {
+        return dirty;
+    }
+
+    @SuppressWarnings("unchecked")
+    T getStored(int position) {
+        return (T) values[position];
+    }
+}
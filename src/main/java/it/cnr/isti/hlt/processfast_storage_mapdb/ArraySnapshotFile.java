@@ -0,0 +1,271 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+import org.mapdb.Fun;
+import org.mapdb.Serializer;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A binary snapshot of the values of an array, read through memory mapped regions of
+ * the file. The file contains a header (magic number, kind of values, number of
+ * values) followed by the values in index order:
+ * <ul>
+ * <li>for primitive numeric arrays, the fixed-width raw bits of every value;</li>
+ * <li>for the other arrays, every value as its length in bytes followed by the
+ * serialized value, or the length -1 for an index without a stored value.</li>
+ * </ul>
+ * All numbers are written in big-endian order.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+class ArraySnapshotFile implements Closeable {
+
+    private static final int MAGIC = 0x50465341;
+
+    /**
+     * The size in bytes of the file header.
+     */
+    private static final int HEADER_SIZE = 4 + 1 + 8;
+
+    /**
+     * The maximum size of a region of the file mapped at once.
+     */
+    static final long MAX_MAPPED_REGION_SIZE = 1 << 28;
+
+    /**
+     * The kind of values of the arrays which are not primitive numeric arrays.
+     */
+    static final byte OBJECT_VALUES = 0;
+
+    /**
+     * The length written for an index without a stored value.
+     */
+    static final int NOT_STORED = -1;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final byte kind;
+    private final long size;
+    private final long maxRegionSize;
+
+    private MappedByteBuffer region;
+    private long regionStart;
+
+    private ArraySnapshotFile(Path path, long maxRegionSize) throws IOException {
+        this.path = path;
+        this.maxRegionSize = maxRegionSize;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            this.fileSize = channel.size();
+            if (fileSize < HEADER_SIZE)
+                throw new IllegalArgumentException("The file " + path + " is not an array snapshot");
+            map(0, HEADER_SIZE, false);
+            if (region.getInt(0) != MAGIC)
+                throw new IllegalArgumentException("The file " + path + " is not an array snapshot");
+            this.kind = region.get(4);
+            this.size = region.getLong(5);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open an existing snapshot file.
+     *
+     * @param path The file to open.
+     * @return The opened snapshot.
+     * @throws IOException Raised if the file can not be read.
+     */
+    static ArraySnapshotFile open(Path path) throws IOException {
+        return open(path, MAX_MAPPED_REGION_SIZE);
+    }
+
+    /**
+     * Open an existing snapshot file, mapping at most "maxRegionSize" bytes at once.
+     *
+     * @param path          The file to open.
+     * @param maxRegionSize The maximum size of a region of the file mapped at once.
+     * @return The opened snapshot.
+     * @throws IOException Raised if the file can not be read.
+     */
+    static ArraySnapshotFile open(Path path, long maxRegionSize) throws IOException {
+        if (path == null)
+            throw new NullPointerException("The path is 'null'");
+        if (maxRegionSize < 1 || maxRegionSize > MAX_MAPPED_REGION_SIZE)
+            throw new IllegalArgumentException("The maximum region size is not valid: " + maxRegionSize);
+        return new ArraySnapshotFile(path, maxRegionSize);
+    }
+
+    /**
+     * Create a new snapshot file, writing its header. The values must be written by
+     * the caller on the returned stream, which must be closed when done.
+     *
+     * @param path The file to create.
+     * @param kind The kind of values.
+     * @param size The number of values.
+     * @return The stream where to write the values.
+     * @throws IOException Raised if the file can not be written.
+     */
+    static DataOutputStream create(Path path, byte kind, long size) throws IOException {
+        if (path == null)
+            throw new NullPointerException("The path is 'null'");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeByte(kind);
+        out.writeLong(size);
+        return out;
+    }
+
+    /**
+     * Write a value in the format used for the arrays of objects.
+     *
+     * @param out        The output.
+     * @param serializer The serializer of the value.
+     * @param value      The value or 'null' for an index without a stored value.
+     * @param buffer     A buffer to reuse for serializing the value.
+     * @throws IOException Raised if the value can not be written.
+     */
+    static <T> void writeObject(DataOutput out, Serializer<T> serializer, T value, DataOutput2 buffer) throws IOException {
+        if (value == null) {
+            out.writeInt(NOT_STORED);
+            return;
+        }
+        buffer.pos = 0;
+        serializer.serialize(buffer, value);
+        out.writeInt(buffer.pos);
+        out.write(buffer.buf, 0, buffer.pos);
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    byte getKind() {
+        return kind;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * Make sure that the bytes in [position, position + length) of the file are mapped,
+     * mapping a new region if needed. When "backward" is true the new region ends at the
+     * requested bytes, for readers moving toward the beginning of the file.
+     *
+     * @return The offset of "position" inside the mapped region.
+     */
+    private int map(long position, int length, boolean backward) throws IOException {
+        if (position < 0 || position + length > fileSize)
+            throw new IllegalArgumentException("The file " + path + " is truncated");
+        if (region == null || position < regionStart || position + length > regionStart + region.capacity()) {
+            long regionSize = Math.max(length, Math.min(maxRegionSize, fileSize));
+            long start = backward ? Math.max(0, position + length - regionSize) : position;
+            long end = Math.min(fileSize, start + regionSize);
+            region = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            regionStart = start;
+        }
+        return (int) (position - regionStart);
+    }
+
+    /**
+     * Read the raw bits of the value at the given index, for primitive numeric arrays.
+     *
+     * @param index    The index of the value.
+     * @param width    The width in bytes of the values (4 or 8).
+     * @param backward True if the values are read in descending index order.
+     * @return The raw bits of the value.
+     */
+    long readBits(long index, int width, boolean backward) {
+        try {
+            int offset = map(HEADER_SIZE + index * width, width, backward);
+            return width == 8 ? region.getLong(offset) : region.getInt(offset);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Get an iterator over the stored values of an array of objects, as (index, value)
+     * pairs in ascending index order. The values are deserialized directly from the
+     * mapped regions of the file.
+     *
+     * @param serializer The serializer of the values.
+     * @return The iterator over the stored values.
+     */
+    <T extends Serializable> Iterator<Fun.Tuple2<Long, T>> objectValues(Serializer<T> serializer) {
+        return new Iterator<Fun.Tuple2<Long, T>>() {
+            private long index = 0;
+            private long position = HEADER_SIZE;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            public Fun.Tuple2<Long, T> next() {
+                if (index >= size)
+                    throw new NoSuchElementException();
+                try {
+                    // Map before reading: the length may start a new region.
+                    int offset = map(position, 4, false);
+                    int length = region.getInt(offset);
+                    position += 4;
+                    T value = null;
+                    if (length != NOT_STORED) {
+                        offset = map(position, length, false);
+                        value = serializer.deserialize(new DataInput2(region, offset), length);
+                        position += length;
+                    }
+                    return Fun.t2(index++, value);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        region = null;
+        channel.close();
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+
+/**
+ * The summary statistics of a range of values of a {@link MapDBNumericArray}. Indexes
+ * without a stored value contribute the default value of the array (or 0 if the
+ * default value is 'null'). The values of arrays of Long and Integer are summed
+ * exactly, switching to a {@link BigInteger} if the sum overflows a long; the values of
+ * arrays of Double and Float are accumulated as double values.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+public class ArrayStatistics implements MapDBNumericArray.ValueAccumulator {
+
+    private final PrimitiveArrayChunk.Type type;
+    private final boolean integral;
+
+    private long count;
+    private long numStored;
+    private double sum;
+    private long longSum;
+    /**
+     * The exact sum of integral values, once it does not fit in a long anymore.
+     */
+    private BigInteger bigSum;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    ArrayStatistics(PrimitiveArrayChunk.Type type) {
+        if (type == null)
+            throw new NullPointerException("The type is 'null'");
+        this.type = type;
+        this.integral = type == PrimitiveArrayChunk.Type.LONG || type == PrimitiveArrayChunk.Type.INT;
+    }
+
+    @Override
+    public void accept(long bits, long count, boolean stored) {
+        if (count <= 0)
+            return;
+        this.count += count;
+        if (stored)
+            numStored += count;
+        double value = type.toDouble(bits);
+        if (integral)
+            addExact(bits, count);
+        else
+            sum += value * count;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Add "count" times the integral value to the exact sum.
+     */
+    private void addExact(long value, long count) {
+        if (bigSum == null) {
+            try {
+                longSum = Math.addExact(longSum, Math.multiplyExact(value, count));
+                return;
+            } catch (ArithmeticException e) {
+                bigSum = BigInteger.valueOf(longSum);
+            }
+        }
+        bigSum = bigSum.add(BigInteger.valueOf(value).multiply(BigInteger.valueOf(count)));
+    }
+
+    ArrayStatistics merge(ArrayStatistics other) {
+        count += other.count;
+        numStored += other.numStored;
+        if (integral) {
+            if (other.bigSum == null)
+                addExact(other.longSum, 1);
+            else
+                bigSum = getExactSum().add(other.bigSum);
+        } else {
+            sum += other.sum;
+        }
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        return this;
+    }
+
+    /**
+     * Get the number of values in the range.
+     *
+     * @return The number of values in the range.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Get the number of values stored in the range. The indexes without a stored value
+     * are not counted, while a stored value equal to the default value is.
+     *
+     * @return The number of values stored.
+     */
+    public long getNumNonDefault() {
+        return numStored;
+    }
+
+    /**
+     * Get the sum of the values in the range. For arrays of Long and Integer values
+     * the sum is computed exactly and then rounded to the nearest double value.
+     *
+     * @return The sum of the values.
+     */
+    public double getSum() {
+        return integral ? getExactSum().doubleValue() : sum;
+    }
+
+    /**
+     * Get the exact sum of the values in the range, for arrays of Long and Integer values.
+     *
+     * @return The exact sum of the values.
+     * @throws UnsupportedOperationException Raised if the array holds floating point values.
+     */
+    public BigInteger getExactSum() {
+        if (!integral)
+            throw new UnsupportedOperationException("The exact sum is available only for arrays of integral values");
+        return bigSum != null ? bigSum : BigInteger.valueOf(longSum);
+    }
+
+    /**
+     * Get the minimum value in the range.
+     *
+     * @return The minimum value or NaN if the range is empty.
+     */
+    public double getMin() {
+        return count > 0 ? min : Double.NaN;
+    }
+
+    /**
+     * Get the maximum value in the range.
+     *
+     * @return The maximum value or NaN if the range is empty.
+     */
+    public double getMax() {
+        return count > 0 ? max : Double.NaN;
+    }
+
+    /**
+     * Get the mean of the values in the range. For arrays of Long and Integer values
+     * the mean is computed from the exact sum.
+     *
+     * @return The mean or NaN if the range is empty.
+     */
+    public double getMean() {
+        if (count == 0)
+            return Double.NaN;
+        if (integral)
+            return new BigDecimal(getExactSum()).divide(BigDecimal.valueOf(count), MathContext.DECIMAL64).doubleValue();
+        return sum / count;
+    }
+
+    @Override
+    public String toString() {
+        return "ArrayStatistics [count=" + count + ", numNonDefault=" + numStored + ", sum=" + (integral ? getExactSum() : sum) +
+                ", min=" + getMin() + ", max=" + getMax() + "]";
+    }
+}
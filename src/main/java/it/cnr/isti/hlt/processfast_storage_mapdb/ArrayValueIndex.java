@@ -0,0 +1,240 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import it.cnr.isti.hlt.processfast.utils.Pair;
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.DB;
+import org.mapdb.Fun;
+import org.mapdb.Serializer;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+
+/**
+ * A secondary index of the values stored in an array, kept in a MapDB set of
+ * (value, index) pairs. The index is optional: every operation first checks, in the
+ * given transaction, that the index exists, so it is kept up to date by all the array
+ * handles in the same transaction changing the array values. Indexes without a stored
+ * value, reading as the array default value, are not indexed.
+ * <p>
+ * The array values must be {@link Comparable}. They are written in the set with the
+ * serializer of the array values, so the index does not depend on the MapDB class catalog.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+class ArrayValueIndex<T extends Serializable> {
+
+    /**
+     * The name of the MapDB set holding the index.
+     */
+    final String setName;
+
+    /**
+     * The serializer of the array values or 'null' to use Java serialization.
+     */
+    private final Serializer<T> valueSerializer;
+
+    ArrayValueIndex(String setName, Serializer<T> valueSerializer) {
+        if (setName == null)
+            throw new NullPointerException("The set name is 'null'");
+        this.setName = setName;
+        this.valueSerializer = valueSerializer;
+    }
+
+    boolean exists(DB db) {
+        return db.exists(setName);
+    }
+
+    private NavigableSet<Fun.Tuple2<T, Long>> getSet(DB db) {
+        return db.getTreeSet(setName);
+    }
+
+    @SuppressWarnings("unchecked")
+    private DB.BTreeSetMaker newSetMaker(DB db) {
+        Serializer<T> serializer = valueSerializer != null ? valueSerializer : (Serializer) Serializer.JAVA;
+        return db.createTreeSet(setName)
+                .serializer(new BTreeKeySerializer.Tuple2KeySerializer<T, Long>(Fun.COMPARATOR, serializer, Serializer.LONG));
+    }
+
+    /**
+     * Update the index before storing the given value at the specified array index.
+     *
+     * @param db     The transaction to use.
+     * @param layout The layout containing the current array values.
+     * @param index  The array index to update.
+     * @param value  The new value or 'null' if the stored value is being removed.
+     */
+    void update(DB db, ArrayLayout<T> layout, long index, T value) {
+        if (!exists(db))
+            return;
+        NavigableSet<Fun.Tuple2<T, Long>> set = getSet(db);
+        T old = layout.get(db, index);
+        if (old != null)
+            set.remove(Fun.t2(old, index));
+        if (value != null)
+            set.add(Fun.t2(value, index));
+    }
+
+    /**
+     * Update the index before storing the given values starting from the specified
+     * array index.
+     *
+     * @param db        The transaction to use.
+     * @param layout    The layout containing the current array values.
+     * @param fromIndex The array index of the first value.
+     * @param values    The new values. A 'null' value means the stored value is being removed.
+     */
+    void update(DB db, ArrayLayout<T> layout, long fromIndex, List<T> values) {
+        if (!exists(db))
+            return;
+        NavigableSet<Fun.Tuple2<T, Long>> set = getSet(db);
+        List<Pair<Long, T>> old = new ArrayList<>();
+        layout.getStoredValues(db, fromIndex, fromIndex + values.size(), old);
+        for (Pair<Long, T> p : old)
+            set.remove(Fun.t2(p.getV2(), p.getV1()));
+        long index = fromIndex;
+        for (T value : values) {
+            if (value != null)
+                set.add(Fun.t2(value, index));
+            index++;
+        }
+    }
+
+    /**
+     * Update the index before removing the values stored in the range [fromIndex, toIndex).
+     *
+     * @param db        The transaction to use.
+     * @param layout    The layout containing the current array values.
+     * @param fromIndex The first array index to remove.
+     * @param toIndex   The array index after the last one to remove.
+     */
+    void remove(DB db, ArrayLayout<T> layout, long fromIndex, long toIndex) {
+        if (!exists(db))
+            return;
+        NavigableSet<Fun.Tuple2<T, Long>> set = getSet(db);
+        Iterator<Fun.Tuple2<Long, T>> stored = layout.storedValuesIterator(db, fromIndex, toIndex);
+        while (stored.hasNext()) {
+            Fun.Tuple2<Long, T> v = stored.next();
+            set.remove(Fun.t2(v.b, v.a));
+        }
+    }
+
+    /**
+     * Replace the index, if it exists, with an empty one. The current set is renamed
+     * and must be removed later with {@link ArrayLayout#removeDetachedEntries(DB, String, int)}.
+     *
+     * @param db           The transaction to use.
+     * @param detachedName The new name of the current set.
+     */
+    void detach(DB db, String detachedName) {
+        if (!exists(db))
+            return;
+        ArrayLayout.renameMap(db, setName, detachedName);
+        newSetMaker(db).make();
+    }
+
+    /**
+     * Remove the index, if it exists. The set is renamed and must be removed later with
+     * {@link ArrayLayout#removeDetachedEntries(DB, String, int)}.
+     *
+     * @param db           The transaction to use.
+     * @param detachedName The new name of the set.
+     */
+    void drop(DB db, String detachedName) {
+        if (exists(db))
+            ArrayLayout.renameMap(db, setName, detachedName);
+    }
+
+    /**
+     * Build the index with the values stored in the given layout, using the MapDB data
+     * pump. The current set, if any, is renamed and must be removed later with
+     * {@link ArrayLayout#removeDetachedEntries(DB, String, int)}.
+     *
+     * @param db           The transaction to use.
+     * @param layout       The layout containing the values to index.
+     * @param detachedName The new name of the current set.
+     */
+    void build(DB db, ArrayLayout<T> layout, String detachedName) {
+        if (exists(db))
+            ArrayLayout.renameMap(db, setName, detachedName);
+        Iterator<Fun.Tuple2<Long, T>> stored = layout.storedValuesIterator(db, 0, Long.MAX_VALUE);
+        DB.BTreeSetMaker maker = newSetMaker(db);
+        if (!stored.hasNext()) {
+            // The MapDB data pump can not build an empty tree.
+            maker.make();
+            return;
+        }
+        maker.pumpSource(new Iterator<Fun.Tuple2<T, Long>>() {
+            @Override
+            public boolean hasNext() {
+                return stored.hasNext();
+            }
+
+            @Override
+            public Fun.Tuple2<T, Long> next() {
+                Fun.Tuple2<Long, T> v = stored.next();
+                return Fun.t2(v.b, v.a);
+            }
+        });
+        maker.pumpPresort(ArrayLayout.PUMP_PRESORT_BATCH_SIZE);
+        maker.make();
+    }
+
+    /**
+     * Get the array indexes storing the given value, in ascending order.
+     *
+     * @param db    The transaction to use.
+     * @param value The value to look for.
+     * @return The array indexes storing the value.
+     */
+    List<Long> indicesOf(DB db, T value) {
+        List<Long> ret = new ArrayList<>();
+        for (Long index : Fun.filter(getSet(db), value))
+            ret.add(index);
+        return ret;
+    }
+
+    /**
+     * Get the (index, value) pairs whose value is in the range [fromValue, toValue),
+     * ordered by value and then by index.
+     *
+     * @param db        The transaction to use.
+     * @param fromValue The lowest value to report or 'null' for no lower bound.
+     * @param toValue   The value after the highest one to report or 'null' for no upper bound.
+     * @return The pairs found.
+     */
+    List<Pair<Long, T>> range(DB db, T fromValue, T toValue) {
+        NavigableSet<Fun.Tuple2<T, Long>> set = getSet(db);
+        NavigableSet<Fun.Tuple2<T, Long>> selected;
+        if (toValue == null)
+            selected = set.tailSet(Fun.t2(fromValue, (Long) null), true);
+        else
+            selected = set.subSet(Fun.t2(fromValue, (Long) null), true, Fun.t2(toValue, (Long) null), false);
+        List<Pair<Long, T>> ret = new ArrayList<>();
+        for (Fun.Tuple2<T, Long> v : selected)
+            ret.add(new Pair<>(v.b, v.a));
+        return ret;
+    }
+}
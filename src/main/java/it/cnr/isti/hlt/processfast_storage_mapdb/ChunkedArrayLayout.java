@@ -0,0 +1,346 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import it.cnr.isti.hlt.processfast.utils.Pair;
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.Fun;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An array layout where each entry of the MapDB tree map holds a chunk of
+ * "chunkSize" consecutive values. The entry with key k contains the values
+ * in the range [k * chunkSize, (k + 1) * chunkSize). Chunks without any value
+ * stored are removed from the map.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+class ChunkedArrayLayout<T extends Serializable> extends ArrayLayout<T> {
+
+    /**
+     * A procedure applied to the part of a chunk overlapping a range of indexes.
+     */
+    interface ChunkProcedure<T extends Serializable> {
+        /**
+         * @param chunkStart The array index of the first position of the chunk.
+         * @param chunk      The chunk.
+         * @param fromOffset The first chunk position inside the range.
+         * @param toOffset   The chunk position after the last one inside the range.
+         */
+        void call(long chunkStart, ArrayChunk<T> chunk, int fromOffset, int toOffset);
+    }
+
+
+    private final int chunkSize;
+    private final ArrayChunk.Codec<T> codec;
+
+    ChunkedArrayLayout(String mapName, int chunkSize, ArrayChunk.Codec<T> codec) {
+        super(mapName);
+        if (chunkSize < 1)
+            throw new IllegalArgumentException("The chunk size is less than 1: " + chunkSize);
+        if (codec == null)
+            throw new NullPointerException("The chunk codec is 'null'");
+        this.chunkSize = chunkSize;
+        this.codec = codec;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    ArrayChunk.Codec<T> getCodec() {
+        return codec;
+    }
+
+    @Override
+    void createMap(DB db) {
+        newMapMaker(db).makeOrGet();
+    }
+
+    private DB.BTreeMapMaker newMapMaker(DB db) {
+        return db.createTreeMap(mapName).counterEnable()
+                .keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG)
+                .valueSerializer(codec)
+                .valuesOutsideNodesEnable();
+    }
+
+    protected BTreeMap<Long, ArrayChunk<T>> getMap(DB db) {
+        return db.getTreeMap(mapName);
+    }
+
+    private void storeChunk(BTreeMap<Long, ArrayChunk<T>> map, long key, ArrayChunk<T> chunk) {
+        if (chunk.isEmpty())
+            map.remove(key);
+        else
+            map.put(key, chunk);
+    }
+
+    /**
+     * Apply the given procedure, in index order, to all the stored chunks overlapping
+     * the range [fromIndex, toIndex). Chunks without values stored are skipped. The
+     * procedure must not modify the chunks.
+     */
+    void visitChunks(DB db, long fromIndex, long toIndex, ChunkProcedure<T> procedure) {
+        if (fromIndex >= toIndex)
+            return;
+        BTreeMap<Long, ArrayChunk<T>> map = getMap(db);
+        long fromKey = fromIndex / chunkSize;
+        long toKey = (toIndex - 1) / chunkSize;
+        for (Map.Entry<Long, ArrayChunk<T>> entry : map.subMap(fromKey, true, toKey, true).entrySet()) {
+            long chunkStart = entry.getKey() * chunkSize;
+            int fromOffset = (int) Math.max(0, fromIndex - chunkStart);
+            int toOffset = (int) Math.min(chunkSize, toIndex - chunkStart);
+            procedure.call(chunkStart, entry.getValue(), fromOffset, toOffset);
+        }
+    }
+
+    /**
+     * Apply the given procedure, in index order, to all the chunks overlapping the
+     * range [fromIndex, toIndex), creating the missing ones. The procedure receives a
+     * private copy of each chunk, which is then stored back.
+     */
+    void updateChunks(DB db, long fromIndex, long toIndex, ChunkProcedure<T> procedure) {
+        BTreeMap<Long, ArrayChunk<T>> map = getMap(db);
+        long index = fromIndex;
+        while (index < toIndex) {
+            long key = index / chunkSize;
+            long chunkStart = key * chunkSize;
+            int fromOffset = (int) (index - chunkStart);
+            int toOffset = (int) Math.min(chunkSize, toIndex - chunkStart);
+            ArrayChunk<T> stored = map.get(key);
+            ArrayChunk<T> chunk = stored == null ? codec.newChunk(chunkSize) : stored.copy();
+            procedure.call(chunkStart, chunk, fromOffset, toOffset);
+            storeChunk(map, key, chunk);
+            index = chunkStart + toOffset;
+        }
+    }
+
+    /**
+     * Get the stored chunk containing the given index.
+     *
+     * @return The chunk or 'null' if the chunk has no values stored.
+     */
+    ArrayChunk<T> getChunk(DB db, long index) {
+        return getMap(db).get(index / chunkSize);
+    }
+
+    @Override
+    T get(DB db, long index) {
+        ArrayChunk<T> chunk = getChunk(db, index);
+        if (chunk == null)
+            return null;
+        return chunk.get((int) (index % chunkSize));
+    }
+
+    @Override
+    void set(DB db, long index, T value) {
+        if (value == null && get(db, index) == null)
+            return;
+        updateChunks(db, index, index + 1, (chunkStart, chunk, fromOffset, toOffset) -> chunk.set(fromOffset, value));
+    }
+
+    @Override
+    void getValues(DB db, long fromIndex, long toIndex, T defaultValue, List<T> dest) {
+        long[] next = {fromIndex};
+        visitChunks(db, fromIndex, toIndex, (chunkStart, chunk, fromOffset, toOffset) -> {
+            for (long i = next[0]; i < chunkStart + fromOffset; i++)
+                dest.add(defaultValue);
+            for (int i = fromOffset; i < toOffset; i++) {
+                T v = chunk.get(i);
+                dest.add(v == null ? defaultValue : v);
+            }
+            next[0] = chunkStart + toOffset;
+        });
+        for (long i = next[0]; i < toIndex; i++)
+            dest.add(defaultValue);
+    }
+
+    @Override
+    void getStoredValues(DB db, long fromIndex, long toIndex, List<Pair<Long, T>> dest) {
+        visitChunks(db, fromIndex, toIndex, (chunkStart, chunk, fromOffset, toOffset) -> {
+            for (int i = fromOffset; i < toOffset; i++) {
+                T v = chunk.get(i);
+                if (v != null)
+                    dest.add(new Pair<>(chunkStart + i, v));
+            }
+        });
+    }
+
+    @Override
+    Iterator<Fun.Tuple2<Long, T>> storedValuesIterator(DB db, long fromIndex, long toIndex) {
+        if (fromIndex >= toIndex)
+            return Collections.emptyIterator();
+        long fromKey = fromIndex / chunkSize;
+        long toKey = (toIndex - 1) / chunkSize;
+        Iterator<Map.Entry<Long, ArrayChunk<T>>> chunks = getMap(db).subMap(fromKey, true, toKey, true).entrySet().iterator();
+        return new Iterator<Fun.Tuple2<Long, T>>() {
+            private long chunkStart;
+            private ArrayChunk<T> chunk;
+            private int offset;
+            private int toOffset;
+            private Fun.Tuple2<Long, T> next = advance();
+
+            private Fun.Tuple2<Long, T> advance() {
+                while (true) {
+                    while (chunk != null && offset < toOffset) {
+                        int pos = offset++;
+                        T v = chunk.get(pos);
+                        if (v != null)
+                            return Fun.t2(chunkStart + pos, v);
+                    }
+                    if (!chunks.hasNext())
+                        return null;
+                    Map.Entry<Long, ArrayChunk<T>> entry = chunks.next();
+                    chunkStart = entry.getKey() * chunkSize;
+                    chunk = entry.getValue();
+                    offset = (int) Math.max(0, fromIndex - chunkStart);
+                    toOffset = (int) Math.min(chunkSize, toIndex - chunkStart);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Fun.Tuple2<Long, T> next() {
+                if (next == null)
+                    throw new NoSuchElementException();
+                Fun.Tuple2<Long, T> ret = next;
+                next = advance();
+                return ret;
+            }
+        };
+    }
+
+    @Override
+    void setValues(DB db, long fromIndex, List<T> values) {
+        Iterator<T> items = values.iterator();
+        updateChunks(db, fromIndex, fromIndex + values.size(), (chunkStart, chunk, fromOffset, toOffset) -> {
+            for (int i = fromOffset; i < toOffset; i++)
+                chunk.set(i, items.next());
+        });
+    }
+
+    @Override
+    void bulkLoad(DB db, Iterator<Fun.Tuple2<Long, T>> values, boolean descending) {
+        bulkLoadChunks(db, new ChunkGroupingIterator(skipNullValues(values)), descending);
+    }
+
+    /**
+     * Replace the map of chunks with a new one built by the MapDB data pump with the
+     * given chunks.
+     *
+     * @param db         The transaction to use.
+     * @param chunks     The (key, chunk) pairs to store, without empty chunks.
+     * @param descending True if the pairs are given in descending key order, false if
+     *                   they are given in ascending key order and must be presorted.
+     */
+    void bulkLoadChunks(DB db, Iterator<Fun.Tuple2<Long, ArrayChunk<T>>> chunks, boolean descending) {
+        db.delete(mapName);
+        DB.BTreeMapMaker maker = newMapMaker(db);
+        if (!chunks.hasNext()) {
+            // The MapDB data pump can not build an empty tree.
+            maker.makeOrGet();
+            return;
+        }
+        maker.pumpSource(chunks);
+        if (!descending)
+            maker.pumpPresort(Math.max(1, PUMP_PRESORT_BATCH_SIZE / chunkSize));
+        maker.make();
+    }
+
+    /**
+     * Groups a sequence of (index, value) pairs sorted by index, in either order, into
+     * the sequence of (key, chunk) pairs containing them.
+     */
+    private class ChunkGroupingIterator implements Iterator<Fun.Tuple2<Long, ArrayChunk<T>>> {
+
+        private final Iterator<Fun.Tuple2<Long, T>> values;
+        private Fun.Tuple2<Long, T> pending;
+
+        ChunkGroupingIterator(Iterator<Fun.Tuple2<Long, T>> values) {
+            this.values = values;
+            this.pending = values.hasNext() ? values.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return pending != null;
+        }
+
+        @Override
+        public Fun.Tuple2<Long, ArrayChunk<T>> next() {
+            if (pending == null)
+                throw new NoSuchElementException();
+            long key = pending.a / chunkSize;
+            ArrayChunk<T> chunk = codec.newChunk(chunkSize);
+            while (pending != null && pending.a / chunkSize == key) {
+                chunk.set((int) (pending.a % chunkSize), pending.b);
+                pending = values.hasNext() ? values.next() : null;
+            }
+            return Fun.t2(key, chunk);
+        }
+    }
+
+    @Override
+    void removeValues(DB db, long fromIndex, long toIndex) {
+        if (fromIndex >= toIndex)
+            return;
+        BTreeMap<Long, ArrayChunk<T>> map = getMap(db);
+        long fromKey = fromIndex / chunkSize;
+        long toKey = (toIndex - 1) / chunkSize;
+        Iterator<Map.Entry<Long, ArrayChunk<T>>> entries = map.subMap(fromKey, true, toKey, true).entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Long, ArrayChunk<T>> entry = entries.next();
+            long chunkStart = entry.getKey() * chunkSize;
+            int fromOffset = (int) Math.max(0, fromIndex - chunkStart);
+            int toOffset = (int) Math.min(chunkSize, toIndex - chunkStart);
+            if (fromOffset == 0 && toOffset == chunkSize) {
+                entries.remove();
+            } else {
+                ArrayChunk<T> chunk = entry.getValue().copy();
+                chunk.clear(fromOffset, toOffset);
+                storeChunk(map, entry.getKey(), chunk);
+            }
+        }
+    }
+
+    @Override
+    ArrayLayout<T> withMapName(String mapName) {
+        return new ChunkedArrayLayout<>(mapName, chunkSize, codec);
+    }
+
+    @Override
+    void detachMap(DB db, String detachedName) {
+        renameMap(db, mapName, detachedName);
+        createMap(db);
+    }
+}
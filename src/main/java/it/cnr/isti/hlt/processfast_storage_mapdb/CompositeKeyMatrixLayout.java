@@ -0,0 +1,222 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import it.cnr.isti.hlt.processfast.utils.Pair;
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.Fun;
+import org.mapdb.Serializer;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A matrix layout storing all the values in a single MapDB collection, keyed by the
+ * (row, column) position packed in a long: the row in the high 32 bits and the column
+ * in the low 32 bits. The values of a row are therefore contiguous in the tree and are
+ * read with a single range scan.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+class CompositeKeyMatrixLayout<T extends Serializable> extends MatrixLayout<T> {
+
+    /**
+     * The maximum number of rows, keeping the packed keys positive.
+     */
+    static final long MAX_NUM_ROWS = Integer.MAX_VALUE;
+
+    /**
+     * The maximum number of columns.
+     */
+    static final long MAX_NUM_COLS = 1L << 32;
+
+    private final String mapName;
+    private final Serializer<T> valueSerializer;
+
+    CompositeKeyMatrixLayout(String mapName, Serializer<T> valueSerializer) {
+        if (mapName == null || mapName.isEmpty())
+            throw new IllegalArgumentException("The map name is 'null' or empty");
+        if (valueSerializer == null)
+            throw new NullPointerException("The value serializer is 'null'");
+        this.mapName = mapName;
+        this.valueSerializer = valueSerializer;
+    }
+
+    static long key(long row, long col) {
+        return (row << 32) + col;
+    }
+
+    static long row(long key) {
+        return key >>> 32;
+    }
+
+    static long col(long key) {
+        return key & 0xFFFFFFFFL;
+    }
+
+    @Override
+    void createMaps(DB db) {
+        newMapMaker(db).makeOrGet();
+    }
+
+    private DB.BTreeMapMaker newMapMaker(DB db) {
+        return db.createTreeMap(mapName).counterEnable()
+                .keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG)
+                .valueSerializer(valueSerializer);
+    }
+
+    BTreeMap<Long, T> getMap(DB db) {
+        return db.getTreeMap(mapName);
+    }
+
+    @Override
+    T get(DB db, long row, long col) {
+        return getMap(db).get(key(row, col));
+    }
+
+    @Override
+    void set(DB db, long row, long col, T value) {
+        if (value != null)
+            getMap(db).put(key(row, col), value);
+        else
+            getMap(db).remove(key(row, col));
+    }
+
+    @Override
+    void setRowValues(DB db, long row, long fromCol, List<T> values) {
+        BTreeMap<Long, T> map = getMap(db);
+        long col = fromCol;
+        for (T value : values) {
+            if (value != null)
+                map.put(key(row, col), value);
+            else
+                map.remove(key(row, col));
+            col++;
+        }
+    }
+
+    @Override
+    void bulkLoad(DB db, Iterator<MatrixEntry<T>> entries) {
+        db.delete(mapName);
+        DB.BTreeMapMaker maker = newMapMaker(db);
+        if (!entries.hasNext()) {
+            // The MapDB data pump can not build an empty tree.
+            maker.makeOrGet();
+            return;
+        }
+        maker.pumpSource(new Iterator<Fun.Tuple2<Long, T>>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public Fun.Tuple2<Long, T> next() {
+                MatrixEntry<T> entry = entries.next();
+                return Fun.t2(key(entry.getRow(), entry.getCol()), entry.getValue());
+            }
+        });
+        maker.make();
+    }
+
+    @Override
+    void getRowValues(DB db, long row, long fromCol, long toCol, T defaultValue, List<T> dest) {
+        long next = fromCol;
+        for (Map.Entry<Long, T> entry : getMap(db).subMap(key(row, fromCol), true, key(row, toCol), false).entrySet()) {
+            long col = col(entry.getKey());
+            for (; next < col; next++)
+                dest.add(defaultValue);
+            dest.add(entry.getValue());
+            next = col + 1;
+        }
+        for (; next < toCol; next++)
+            dest.add(defaultValue);
+    }
+
+    @Override
+    void getStoredRowValues(DB db, long row, long fromCol, long toCol, List<Pair<Long, T>> dest) {
+        for (Map.Entry<Long, T> entry : getMap(db).subMap(key(row, fromCol), true, key(row, toCol), false).entrySet())
+            dest.add(new Pair<>(col(entry.getKey()), entry.getValue()));
+    }
+
+    /**
+     * Get a cursor over the stored values. The packed keys sort the values in row-major
+     * order, so the cursor is a single walk of the map.
+     */
+    @Override
+    Iterator<MatrixEntry<T>> storedValuesIterator(DB db) {
+        Iterator<Map.Entry<Long, T>> entries = getMap(db).entrySet().iterator();
+        return new Iterator<MatrixEntry<T>>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public MatrixEntry<T> next() {
+                if (!entries.hasNext())
+                    throw new NoSuchElementException();
+                Map.Entry<Long, T> entry = entries.next();
+                return new MatrixEntry<>(row(entry.getKey()), col(entry.getKey()), entry.getValue());
+            }
+        };
+    }
+
+    /**
+     * Remove the values outside the new bounds. The rows outside the bounds are a single
+     * range of keys, while the columns outside the bounds are removed with a range of keys
+     * for every row having values there, found by seeking the tree from row to row.
+     */
+    @Override
+    void removeOutside(DB db, long numRows, long numCols, long oldNumRows, long oldNumCols) {
+        BTreeMap<Long, T> map = getMap(db);
+        if (numRows < oldNumRows)
+            map.tailMap(key(numRows, 0), true).clear();
+        if (numCols < oldNumCols) {
+            Long k = map.ceilingKey(key(0, numCols));
+            while (k != null) {
+                long row = row(k);
+                if (col(k) < numCols) {
+                    k = map.ceilingKey(key(row, numCols));
+                } else {
+                    map.subMap(key(row, numCols), true, key(row + 1, 0), false).clear();
+                    k = map.ceilingKey(key(row + 1, numCols));
+                }
+            }
+        }
+    }
+
+    @Override
+    void removeMaps(DB db) {
+        db.delete(mapName);
+    }
+
+    @Override
+    void checkSize(long numRows, long numCols) {
+        if (numRows > MAX_NUM_ROWS || numCols > MAX_NUM_COLS)
+            throw new IllegalArgumentException("The matrix size " + numRows + "x" + numCols + " is not supported. Maximum size: " + MAX_NUM_ROWS + "x" + MAX_NUM_COLS);
+    }
+}
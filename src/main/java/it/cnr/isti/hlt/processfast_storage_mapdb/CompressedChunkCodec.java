@@ -0,0 +1,80 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import org.mapdb.Serializer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * A chunk codec compressing with LZF the records written by another chunk codec.
+ * Every chunk is compressed as a unit, so the decompression is transparent for all
+ * the array operations.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+class CompressedChunkCodec<T extends Serializable> extends ArrayChunk.Codec<T> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ArrayChunk.Codec<T> codec;
+
+    /**
+     * The MapDB compression wrapper of the codec. It is not serializable, so it is
+     * created again when the codec is read back from the MapDB catalog.
+     */
+    private transient Serializer<ArrayChunk<T>> compressed;
+
+    CompressedChunkCodec(ArrayChunk.Codec<T> codec) {
+        if (codec == null)
+            throw new NullPointerException("The chunk codec is 'null'");
+        this.codec = codec;
+    }
+
+    private Serializer<ArrayChunk<T>> getCompressed() {
+        if (compressed == null)
+            compressed = new Serializer.CompressionWrapper<>(codec);
+        return compressed;
+    }
+
+    @Override
+    ArrayChunk<T> newChunk(int length) {
+        return codec.newChunk(length);
+    }
+
+    @Override
+    ArrayChunk.Codec<T> unwrap() {
+        return codec.unwrap();
+    }
+
+    @Override
+    public void serialize(DataOutput out, ArrayChunk<T> value) throws IOException {
+        getCompressed().serialize(out, value);
+    }
+
+    @Override
+    public ArrayChunk<T> deserialize(DataInput in, int available) throws IOException {
+        return getCompressed().deserialize(in, available);
+    }
+}
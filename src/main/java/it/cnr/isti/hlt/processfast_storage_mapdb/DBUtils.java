@@ -32,7 +32,8 @@ public class DBUtils {
     /**
      * Perform atomic operations on a single DB transaction. If atomic operations failed,
      * it will retry to perform the operations specified in "code" at maximum "maxNumRetries"
-     * times.
+     * times. An IllegalArgumentException thrown by "code" is reported immediately to
+     * the caller, without retrying.
      *
      * @param txMaker       The DB connection.
      * @param maxNumRetries The maximum number of tries to perform.
@@ -53,6 +54,10 @@ public class DBUtils {
                 code.call(db);
                 db.commit();
                 return;
+            } catch (IllegalArgumentException e) {
+                // Invalid arguments do not depend on concurrent transactions, do not retry.
+                db.rollback();
+                throw e;
             } catch (Exception e) {
                 db.rollback();
                 lastException = e;
@@ -69,6 +74,8 @@ public class DBUtils {
      * Perform atomic operations on a single DB transaction. If atomic operations failed,
      * it will retry to perform the operations specified in "code" at maximum "maxNumRetries"
      * times. The function upon successful execution of the code will return a proper result.
+     * An IllegalArgumentException thrown by "code" is reported immediately to the caller,
+     * without retrying.
      *
      * @param txMaker The DB connection.
      * @param maxNumRetries The maximum number of tries to perform.
@@ -88,6 +95,9 @@ public class DBUtils {
                 Out out = code.call(db);
                 db.commit();
                 return out;
+            } catch (IllegalArgumentException e) {
+                db.rollback();
+                throw e;
             } catch (Exception e) {
                 db.rollback();
                 lastException = e;
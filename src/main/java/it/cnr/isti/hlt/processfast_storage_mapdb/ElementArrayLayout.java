@@ -0,0 +1,191 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import it.cnr.isti.hlt.processfast.utils.Pair;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.Fun;
+import org.mapdb.Serializer;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The original array layout, where every array value is stored as a separate
+ * entry of a MapDB tree map keyed by the value index.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+class ElementArrayLayout<T extends Serializable> extends ArrayLayout<T> {
+
+    /**
+     * The serializer used for the values of a new map or 'null' to use Java serialization.
+     */
+    private final Serializer<T> valueSerializer;
+
+    ElementArrayLayout(String mapName, Serializer<T> valueSerializer) {
+        super(mapName);
+        this.valueSerializer = valueSerializer;
+    }
+
+    @Override
+    void createMap(DB db) {
+        newMapMaker(db, getValueSerializer()).makeOrGet();
+    }
+
+    /**
+     * Get the serializer of the existing map, which may have been created by an older
+     * version, to recreate the map with the same format.
+     */
+    private Serializer<T> getExistingSerializer(DB db) {
+        Serializer<T> serializer = db.catGet(mapName + ".valueSerializer");
+        return serializer != null ? serializer : getValueSerializer();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Serializer<T> getValueSerializer() {
+        return valueSerializer != null ? valueSerializer : (Serializer) Serializer.JAVA;
+    }
+
+    private DB.BTreeMapMaker newMapMaker(DB db, Serializer<T> serializer) {
+        return db.createTreeMap(mapName).counterEnable()
+                .valueSerializer(serializer);
+    }
+
+    @Override
+    T get(DB db, long index) {
+        BTreeMap<Long, T> array = db.getTreeMap(mapName);
+        return array.get(index);
+    }
+
+    @Override
+    void set(DB db, long index, T value) {
+        BTreeMap<Long, T> array = db.getTreeMap(mapName);
+        if (value != null)
+            array.put(index, value);
+        else
+            array.remove(index);
+    }
+
+    @Override
+    void getValues(DB db, long fromIndex, long toIndex, T defaultValue, List<T> dest) {
+        if (fromIndex >= toIndex)
+            return;
+        BTreeMap<Long, T> array = db.getTreeMap(mapName);
+        long next = fromIndex;
+        for (Map.Entry<Long, T> entry : array.subMap(fromIndex, true, toIndex, false).entrySet()) {
+            long index = entry.getKey();
+            for (; next < index; next++)
+                dest.add(defaultValue);
+            dest.add(entry.getValue());
+            next = index + 1;
+        }
+        for (; next < toIndex; next++)
+            dest.add(defaultValue);
+    }
+
+    @Override
+    void getStoredValues(DB db, long fromIndex, long toIndex, List<Pair<Long, T>> dest) {
+        if (fromIndex >= toIndex)
+            return;
+        BTreeMap<Long, T> array = db.getTreeMap(mapName);
+        for (Map.Entry<Long, T> entry : array.subMap(fromIndex, true, toIndex, false).entrySet())
+            dest.add(new Pair<>(entry.getKey(), entry.getValue()));
+    }
+
+    @Override
+    Iterator<Fun.Tuple2<Long, T>> storedValuesIterator(DB db, long fromIndex, long toIndex) {
+        if (fromIndex >= toIndex)
+            return Collections.emptyIterator();
+        BTreeMap<Long, T> array = db.getTreeMap(mapName);
+        Iterator<Map.Entry<Long, T>> entries = array.subMap(fromIndex, true, toIndex, false).entrySet().iterator();
+        return new Iterator<Fun.Tuple2<Long, T>>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public Fun.Tuple2<Long, T> next() {
+                Map.Entry<Long, T> entry = entries.next();
+                return Fun.t2(entry.getKey(), entry.getValue());
+            }
+        };
+    }
+
+    @Override
+    void setValues(DB db, long fromIndex, List<T> values) {
+        BTreeMap<Long, T> array = db.getTreeMap(mapName);
+        long index = fromIndex;
+        for (T value : values) {
+            if (value != null)
+                array.put(index, value);
+            else
+                array.remove(index);
+            index++;
+        }
+    }
+
+    @Override
+    void bulkLoad(DB db, Iterator<Fun.Tuple2<Long, T>> values, boolean descending) {
+        Serializer<T> serializer = getExistingSerializer(db);
+        db.delete(mapName);
+        Iterator<Fun.Tuple2<Long, T>> stored = skipNullValues(values);
+        DB.BTreeMapMaker maker = newMapMaker(db, serializer);
+        if (!stored.hasNext()) {
+            // The MapDB data pump can not build an empty tree.
+            maker.makeOrGet();
+            return;
+        }
+        maker.pumpSource(stored);
+        if (!descending)
+            maker.pumpPresort(PUMP_PRESORT_BATCH_SIZE);
+        maker.make();
+    }
+
+    @Override
+    void removeValues(DB db, long fromIndex, long toIndex) {
+        if (fromIndex >= toIndex)
+            return;
+        BTreeMap<Long, T> array = db.getTreeMap(mapName);
+        Iterator<Long> keys = array.subMap(fromIndex, true, toIndex, false).keySet().iterator();
+        while (keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    @Override
+    ArrayLayout<T> withMapName(String mapName) {
+        return new ElementArrayLayout<>(mapName, valueSerializer);
+    }
+
+    @Override
+    void detachMap(DB db, String detachedName) {
+        Serializer<T> serializer = getExistingSerializer(db);
+        renameMap(db, mapName, detachedName);
+        newMapMaker(db, serializer).makeOrGet();
+    }
+}
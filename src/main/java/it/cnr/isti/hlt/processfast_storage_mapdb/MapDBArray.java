@@ -23,12 +23,20 @@ import it.cnr.isti.hlt.processfast.data.*;
 import it.cnr.isti.hlt.processfast.utils.Pair;
 import org.mapdb.*;
 
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Created by Tiziano on 10/06/2015.
@@ -36,16 +44,82 @@ import java.util.concurrent.ConcurrentNavigableMap;
 public class MapDBArray<T extends Serializable> implements Array<T> {
 
     private static final String ARRAY_PREFIX = "storage_array_";
-    private static final int MAX_NUM_RETRIES = 10;
+    protected static final int MAX_NUM_RETRIES = 10;
     private static final String NUM_ITEMS_STORED_PREFIX = "arr_num_items_stored_";
     private static final String DEFAULT_VALUE_PREFIX = "arr_default_value_";
+    private static final String CHUNK_SIZE_PREFIX = "arr_chunk_size_";
+    private static final String VALUE_INDEX_PREFIX = "arr_value_index_";
+    private static final String DETACHED_MAP_SUFFIX = "_detached_";
+    private static final String STAGING_MAP_SUFFIX = "_staging_";
+    private static final String DETACHED_INDEX_SUFFIX = "_index";
+
+    /**
+     * The chunk size of new compressed arrays when no chunk size is configured.
+     */
+    protected static final int DEFAULT_COMPRESSED_CHUNK_SIZE = 1024;
+
+    /**
+     * The number of entries of a detached map removed in a single transaction.
+     */
+    private static final int DETACHED_REMOVAL_BATCH_SIZE = 10000;
+
+    /**
+     * The number of copies of a value stored at once by {@link #appendValues(long, Serializable)}.
+     */
+    private static final int APPEND_COPIES_BATCH_SIZE = 1 << 16;
+
+    /**
+     * The maximum number of values which can be kept in the local cache.
+     */
+    public static final int MAX_LOCAL_CACHE_SIZE = 1 << 24;
 
     private final long arrayID;
-    private final MapDBStorage storage;
+    protected final MapDBStorage storage;
     private final String name;
 
+    /**
+     * The class of the array values or 'null' if unknown.
+     */
+    private final Class<T> valueClass;
+
+    /**
+     * The layout used to store the array values.
+     */
+    protected final ArrayLayout<T> layout;
+
+    /**
+     * The secondary index of the array values, used only if it has been created.
+     */
+    private final ArrayValueIndex<T> valueIndex;
+
+    /**
+     * The names of the MapDB records holding the array data, resolved once.
+     */
+    private final String internalMapName;
+    private final String internalNumItemsStored;
+    private final String defaultValueName;
+    private final String chunkSizeName;
+
+    /**
+     * The local cache of the array or 'null' if the local cache is disabled.
+     */
+    private volatile ArrayLocalCache<T> localCache;
+
 
     public MapDBArray(MapDBStorage storage, String name, long arrayID) {
+        this(storage, name, arrayID, null);
+    }
+
+    /**
+     * Create an array storing values of the given class. The values of a new array are
+     * written with the serializer registered for the class in the storage manager provider.
+     *
+     * @param storage    The parent storage.
+     * @param name       The array name.
+     * @param arrayID    The array ID.
+     * @param valueClass The class of the array values or 'null' if unknown.
+     */
+    public MapDBArray(MapDBStorage storage, String name, long arrayID, Class<T> valueClass) {
         if (storage == null)
             throw new NullPointerException("The parent storage is 'null'");
         if (name == null || name.isEmpty())
@@ -53,28 +127,124 @@ public class MapDBArray<T extends Serializable> implements Array<T> {
         this.storage = storage;
         this.arrayID = arrayID;
         this.name = name;
+        this.valueClass = valueClass;
+        this.internalMapName = getInternalMapName(storage.getStorageID(), arrayID);
+        this.internalNumItemsStored = getInternalNumItemsStored(storage.getStorageID(), arrayID);
+        this.defaultValueName = getDefaultValueName(storage.getStorageID(), arrayID);
+        this.chunkSizeName = getChunkSizeName(storage.getStorageID(), arrayID);
+        this.valueIndex = new ArrayValueIndex<>(getValueIndexName(storage.getStorageID(), arrayID), getValueSerializer());
 
         // Create array structure, if not available.
-        DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+        this.layout = DBUtils.atomicGet(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
             if (!db.exists(getInternalMapName())) {
-                BTreeMap<Long, T> map = db.createTreeMap(getInternalMapName()).counterEnable().valueSerializer(Serializer.JAVA).makeOrGet();
+                int chunkSize = getNewArrayChunkSize();
+                ArrayLayout<T> newLayout = createNewLayout(chunkSize);
+                if (chunkSize > 0)
+                    db.createAtomicInteger(getChunkSizeName(), chunkSize);
+                newLayout.createMap(db);
                 db.createAtomicLong(getInternalNumItemsStored(), 0);
+                db.createAtomicVar(getDefaultValueName(), null, Serializer.JAVA);
+                return newLayout;
             }
+            return openLayout(db);
         });
+    }
+
+
+    /**
+     * Get the chunk size to use when the array does not exist yet and must be created.
+     *
+     * @return The chunk size for the new array or 0 to store every value in a separate record.
+     */
+    protected int getNewArrayChunkSize() {
+        int chunkSize = storage.sm.provider.getArrayChunkSize();
+        if (chunkSize == 0 && storage.sm.provider.isArrayCompressionEnabled())
+            return DEFAULT_COMPRESSED_CHUNK_SIZE;
+        return chunkSize;
+    }
+
+    /**
+     * Create the layout used to store the values of a new array.
+     *
+     * @param chunkSize The chunk size of the array or 0 to store every value in a separate record.
+     * @return The layout to use.
+     */
+    protected ArrayLayout<T> createNewLayout(int chunkSize) {
+        Serializer<T> valueSerializer = getValueSerializer();
+        if (chunkSize > 0)
+            return new ChunkedArrayLayout<>(getInternalMapName(), chunkSize, newChunkCodec(new ObjectArrayChunk.ChunkSerializer<>(valueSerializer)));
+        else
+            return new ElementArrayLayout<>(getInternalMapName(), valueSerializer);
+    }
+
+    /**
+     * Get the codec to use for the chunks of a new array, adding the compression if
+     * enabled in the storage manager provider.
+     *
+     * @param codec The codec of the chunks.
+     * @return The codec to use.
+     */
+    protected ArrayChunk.Codec<T> newChunkCodec(ArrayChunk.Codec<T> codec) {
+        if (storage.sm.provider.isArrayCompressionEnabled())
+            return new CompressedChunkCodec<>(codec);
+        return codec;
+    }
+
+    /**
+     * Get the class of the array values.
+     *
+     * @return The class of the values or 'null' if unknown.
+     */
+    protected Class<T> getValueClass() {
+        return valueClass;
+    }
+
+    /**
+     * Get the serializer registered for the class of the array values.
+     *
+     * @return The serializer to use or 'null' if no specific serializer is available.
+     */
+    protected Serializer<T> getValueSerializer() {
+        if (valueClass == null)
+            return null;
+        return storage.sm.provider.getValueSerializer(valueClass);
+    }
 
+    /**
+     * Get the layout of an existing array. The kind of chunks used is read back from
+     * the serializer stored by MapDB with the array map.
+     *
+     * @param db The transaction to use.
+     * @return The layout of the array.
+     */
+    private ArrayLayout<T> openLayout(DB db) {
+        if (!db.exists(getChunkSizeName())) {
+            Serializer<T> valueSerializer = db.catGet(getInternalMapName() + ".valueSerializer");
+            return new ElementArrayLayout<>(getInternalMapName(), valueSerializer);
+        }
+        int chunkSize = db.getAtomicInteger(getChunkSizeName()).get();
+        ArrayChunk.Codec<T> codec = db.catGet(getInternalMapName() + ".valueSerializer");
+        return new ChunkedArrayLayout<>(getInternalMapName(), chunkSize, codec);
     }
 
 
     protected String getInternalMapName() {
-        return getInternalMapName(storage.getStorageID(), arrayID);
+        return internalMapName;
     }
 
     protected static String getInternalMapName(long storageID, long arrayID) {
-        return ARRAY_PREFIX + storageID + "_" + arrayID;
+        return getInternalMapNamePrefix(storageID) + arrayID;
+    }
+
+    /**
+     * Get the prefix of the internal names of all the arrays of the given storage.
+     */
+    protected static String getInternalMapNamePrefix(long storageID) {
+        return ARRAY_PREFIX + storageID + "_";
     }
 
     protected String getInternalNumItemsStored() {
-        return getInternalNumItemsStored(storage.getStorageID(), arrayID);
+        return internalNumItemsStored;
     }
 
     protected static String getInternalNumItemsStored(long storageID, long arrayID) {
@@ -82,13 +252,37 @@ public class MapDBArray<T extends Serializable> implements Array<T> {
     }
 
     protected String getDefaultValueName() {
-        return getDefaultValueName(storage.getStorageID(), arrayID);
+        return defaultValueName;
     }
 
     protected static String getDefaultValueName(long storageID, long arrayID) {
         return DEFAULT_VALUE_PREFIX + storageID + "_" + arrayID;
     }
 
+    protected String getChunkSizeName() {
+        return chunkSizeName;
+    }
+
+    protected static String getChunkSizeName(long storageID, long arrayID) {
+        return CHUNK_SIZE_PREFIX + storageID + "_" + arrayID;
+    }
+
+    protected String getValueIndexName() {
+        return valueIndex.setName;
+    }
+
+    protected static String getValueIndexName(long storageID, long arrayID) {
+        return VALUE_INDEX_PREFIX + storageID + "_" + arrayID;
+    }
+
+    /**
+     * Get a new name for a detached map of this array, which will be removed by
+     * {@link #removeDetachedMaps()}.
+     */
+    private String newDetachedMapName() {
+        return getInternalMapName() + DETACHED_MAP_SUFFIX + System.nanoTime();
+    }
+
     @Override
     public String getName() {
         return name;
@@ -111,14 +305,20 @@ public class MapDBArray<T extends Serializable> implements Array<T> {
 
     @Override
     public T getValue(long index) {
-        long s = size();
-        if (index < 0 || index >= s)
-            throw new IllegalArgumentException("The index " + index + " is not valid. Valid range values: [" + 0 + "," + s + "]");
-
+        ArrayLocalCache<T> cache = localCache;
+        if (cache != null && cache.contains(index)) {
+            synchronized (cache) {
+                loadLocalCache(cache);
+                long s = cache.getArraySize();
+                if (index < 0 || index >= s)
+                    throw new IllegalArgumentException("The index " + index + " is not valid. Valid range values: [" + 0 + "," + s + "]");
+                return cache.get(index);
+            }
+        }
 
         return DBUtils.atomicGet(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
-            BTreeMap<Long, T> array = db.getTreeMap(getInternalMapName());
-            T v = array.get(index);
+            checkIndex(db, index);
+            T v = layout.get(db, index);
             if (v == null)
                 return getDefaultValue(db);
             else
@@ -129,54 +329,251 @@ public class MapDBArray<T extends Serializable> implements Array<T> {
 
     @Override
     public List<T> getValues(long fromIndex, long toIndex) {
-        long curSize = size();
-        long to = toIndex;
-        if (fromIndex >= to)
+        ArrayLocalCache<T> cache = localCache;
+        if (cache != null && fromIndex < toIndex && fromIndex >= 0) {
+            synchronized (cache) {
+                if (cache.contains(fromIndex, toIndex)) {
+                    loadLocalCache(cache);
+                    long to = Math.min(toIndex, cache.getArraySize());
+                    ArrayList<T> ret = new ArrayList<T>((int) Math.max(0, to - fromIndex));
+                    cache.getValues(fromIndex, to, ret);
+                    return ret;
+                } else if (cache.getFromIndex() < toIndex && fromIndex < cache.getToIndex()) {
+                    // Make the values written locally visible to the read.
+                    flushLocalCache(cache);
+                }
+            }
+        }
+
+        if (fromIndex >= toIndex)
             return new ArrayList<>();
-        if (to >= curSize)
-            to = curSize;
         if (fromIndex < 0)
             throw new IllegalArgumentException("The fromIndex value is less than 0");
 
-        long toAdd = to - fromIndex;
-        List<T> values = new ArrayList<T>((int) toAdd);
+        return DBUtils.atomicGet(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+            long to = Math.min(toIndex, size(db));
+            ArrayList<T> ret = new ArrayList<T>((int) Math.max(0, to - fromIndex));
+            if (fromIndex < to)
+                layout.getValues(db, fromIndex, to, getDefaultValue(db), ret);
+            return ret;
+        });
+
+    }
 
+    /**
+     * Get the values explicitly stored in the range [fromIndex, toIndex), skipping the
+     * indexes holding the default value. The cost of the read depends on the number of
+     * stored values and not on the width of the range, so this is the preferred way to
+     * read sparse arrays. The range is truncated to the current array size.
+     *
+     * @param fromIndex The first index to read.
+     * @param toIndex   The index after the last one to read.
+     * @return The (index, value) pairs stored in the range, in index order.
+     */
+    public List<Pair<Long, T>> getStoredValues(long fromIndex, long toIndex) {
+        if (fromIndex >= toIndex)
+            return new ArrayList<>();
+        if (fromIndex < 0)
+            throw new IllegalArgumentException("The fromIndex value is less than 0");
+
+        flushLocalCache(fromIndex, toIndex);
         return DBUtils.atomicGet(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
-            BTreeMap<Long, T> array = db.getTreeMap(getInternalMapName());
-            ArrayList<T> ret = new ArrayList<T>();
-            T defaultValue = getDefaultValue(db);
-            for (int i = 0; i < toAdd; i++) {
-                T v = array.get(fromIndex + i);
-                if (v == null)
-                    ret.add(defaultValue);
-                else
-                    ret.add(v);
-            }
+            long to = Math.min(toIndex, size(db));
+            ArrayList<Pair<Long, T>> ret = new ArrayList<>();
+            layout.getStoredValues(db, fromIndex, to, ret);
             return ret;
         });
+    }
+
+    /**
+     * Create the secondary index of the array values, if it does not exist yet, indexing
+     * the values currently stored. From now on the index is updated in the same
+     * transactions changing the array values, and it can be queried with
+     * {@link #indicesOf(Serializable)} and {@link #range(Serializable, Serializable)}.
+     * Indexes without a stored value are not indexed. The array values must be
+     * {@link Comparable}.
+     */
+    public void createValueIndex() {
+        if (valueClass != null && !Comparable.class.isAssignableFrom(valueClass))
+            throw new IllegalStateException("The array values are not comparable: " + valueClass.getName());
+        flush();
+        DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+            if (!valueIndex.exists(db))
+                valueIndex.build(db, layout, null);
+        });
+    }
+
+    /**
+     * Remove the secondary index of the array values, if it exists.
+     */
+    public void removeValueIndex() {
+        DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+            valueIndex.drop(db, newDetachedMapName() + DETACHED_INDEX_SUFFIX);
+        });
+        removeDetachedMaps();
+    }
+
+    /**
+     * Indicate if the array has a secondary index of its values.
+     *
+     * @return True if the index exists, false otherwise.
+     */
+    public boolean hasValueIndex() {
+        DB tx = storage.sm.provider.tx();
+        try {
+            return hasValueIndex(tx);
+        } finally {
+            tx.close();
+        }
+    }
+
+    protected boolean hasValueIndex(DB db) {
+        return valueIndex.exists(db);
+    }
+
+    /**
+     * Get the indexes storing the given value, using the secondary index of the array
+     * values (see {@link #createValueIndex()}).
+     *
+     * @param value The value to look for.
+     * @return The indexes storing the value, in ascending order.
+     * @throws IllegalStateException Raised if the array has no value index.
+     */
+    public List<Long> indicesOf(T value) {
+        if (value == null)
+            throw new NullPointerException("The specified value is 'null'");
+        flush();
+        DB tx = storage.sm.provider.tx();
+        try {
+            checkValueIndex(tx);
+            return valueIndex.indicesOf(tx, value);
+        } finally {
+            tx.close();
+        }
+    }
 
+    /**
+     * Get the stored values in the range [fromValue, toValue), using the secondary index
+     * of the array values (see {@link #createValueIndex()}).
+     *
+     * @param fromValue The lowest value to report or 'null' for no lower bound.
+     * @param toValue   The value after the highest one to report or 'null' for no upper bound.
+     * @return The (index, value) pairs found, ordered by value and then by index.
+     * @throws IllegalStateException Raised if the array has no value index.
+     */
+    public List<Pair<Long, T>> range(T fromValue, T toValue) {
+        flush();
+        DB tx = storage.sm.provider.tx();
+        try {
+            checkValueIndex(tx);
+            return valueIndex.range(tx, fromValue, toValue);
+        } finally {
+            tx.close();
+        }
+    }
+
+    private void checkValueIndex(DB db) {
+        if (!valueIndex.exists(db))
+            throw new IllegalStateException("The array " + getName() + " has no value index");
     }
 
     @Override
     public void setValue(long index, T value) {
-        long s = size();
-        if (index < 0 || index >= s)
-            throw new IllegalArgumentException("The index " + index + " is not valid. Valid range values: [" + 0 + "," + s + "]");
-
+        ArrayLocalCache<T> cache = localCache;
+        if (cache != null && cache.contains(index)) {
+            synchronized (cache) {
+                loadLocalCache(cache);
+                long s = cache.getArraySize();
+                if (index < 0 || index >= s)
+                    throw new IllegalArgumentException("The index " + index + " is not valid. Valid range values: [" + 0 + "," + s + "]");
+                cache.set(index, value);
+                return;
+            }
+        }
 
         DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+            checkIndex(db, index);
             setValue(db, index, value);
         });
 
     }
 
+    /**
+     * Check that the given index is inside the array size seen by the specified transaction.
+     *
+     * @param db    The transaction to use.
+     * @param index The index to check.
+     * @throws IllegalArgumentException Raised if the index is not valid.
+     */
+    protected void checkIndex(DB db, long index) {
+        long s = size(db);
+        if (index < 0 || index >= s)
+            throw new IllegalArgumentException("The index " + index + " is not valid. Valid range values: [" + 0 + "," + s + "]");
+    }
+
 
     protected void setValue(DB db, long index, T value) {
-        BTreeMap<Long, T> array = db.getTreeMap(getInternalMapName());
-        if (value != null)
-            array.put(index, value);
-        else
-            array.remove(index);
+        valueIndex.update(db, layout, index, value);
+        layout.set(db, index, value);
+    }
+
+
+    /**
+     * Store the specified values starting from the given index, with a single transaction.
+     * The range covered by the values must be inside the current array size. Together with
+     * {@link #reserve(long)}, it allows several producers to fill disjoint ranges of the
+     * array in independent transactions which never update the array size. Aligning the
+     * ranges to the array chunks avoids conflicts between producers writing the same chunk.
+     *
+     * @param fromIndex The index where to store the first value.
+     * @param values    The values to store. A 'null' value resets the index to the default value.
+     */
+    public void setValues(long fromIndex, List<T> values) {
+        if (values == null)
+            throw new NullPointerException("The list of values is 'null'");
+        if (values.isEmpty())
+            return;
+        long toIndex = fromIndex + values.size();
+        flushLocalCache(fromIndex, toIndex);
+        DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+            long s = size(db);
+            if (fromIndex < 0 || toIndex > s)
+                throw new IllegalArgumentException("The range [" + fromIndex + "," + toIndex + ") is not valid. Valid range values: [" + 0 + "," + s + "]");
+            setValues(db, fromIndex, values);
+        });
+    }
+
+    /**
+     * Atomically grow the array by the given number of values, which are set to the
+     * default value, and return the index of the first one. The caller owns the reserved
+     * range and can fill it with {@link #setValues(long, List)} without touching the
+     * array size again.
+     *
+     * @param numValues The number of values to reserve.
+     * @return The index of the first reserved value.
+     */
+    public long reserve(long numValues) {
+        if (numValues < 1)
+            throw new IllegalArgumentException("The number of values to reserve is less than 1: " + numValues);
+        flush();
+        return DBUtils.atomicGet(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+            long s = size(db);
+            db.getAtomicLong(getInternalNumItemsStored()).set(s + numValues);
+            return s;
+        });
+    }
+
+    /**
+     * Store the specified values starting from the given index. The range covered by
+     * the values must be inside the current array size.
+     *
+     * @param db        The transaction to use.
+     * @param fromIndex The index where to store the first value.
+     * @param values    The values to store.
+     */
+    protected void setValues(DB db, long fromIndex, List<T> values) {
+        valueIndex.update(db, layout, fromIndex, values);
+        layout.setValues(db, fromIndex, values);
     }
 
 
@@ -185,6 +582,11 @@ public class MapDBArray<T extends Serializable> implements Array<T> {
         if (value == null)
             throw new NullPointerException("The specified value is 'null'");
 
+        flush();
+        if (storage.sm.provider.isArrayGroupCommitEnabled()) {
+            storage.sm.provider.<T>getArrayAppendQueue(getInternalMapName()).append(this, value);
+            return;
+        }
         DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
             long s = size(db);
             resize(db, s + 1);
@@ -192,18 +594,40 @@ public class MapDBArray<T extends Serializable> implements Array<T> {
         });
     }
 
+    /**
+     * Append the given values with a single transaction.
+     *
+     * @param values The values to append.
+     * @return The index of the first value appended.
+     */
+    protected long appendBatch(List<T> values) {
+        return DBUtils.atomicGet(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+            long s = size(db);
+            resize(db, s + values.size());
+            setValues(db, s, values);
+            return s;
+        });
+    }
+
     @Override
     public void appendValues(long numItems, T value) {
         if (value == null)
             throw new NullPointerException("The specified value is 'null'");
 
+        if (numItems < 0)
+            throw new IllegalArgumentException("The number of items is negative: " + numItems);
+
+        flush();
         DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
             long s = size(db);
             resize(db, s + numItems);
-            for (long i = s; i < s + numItems; i++)
-                setValue(db, i, value);
+            // Store the copies in bounded batches: the count may not fit in an int.
+            for (long done = 0; done < numItems; ) {
+                int n = (int) Math.min(numItems - done, APPEND_COPIES_BATCH_SIZE);
+                setValues(db, s + done, Collections.nCopies(n, value));
+                done += n;
+            }
         });
-
     }
 
     @Override
@@ -216,34 +640,31 @@ public class MapDBArray<T extends Serializable> implements Array<T> {
         appendValues(values.iterator(), values.size());
     }
 
+    /**
+     * Append the values of the given iterator, reading at most "numBufferedItems" values
+     * in memory at once and writing every batch read with its own transaction. When the
+     * array is empty and the iterator holds at most "numBufferedItems" values, the values
+     * are loaded in one transaction with the MapDB data pump instead.
+     *
+     * @param values           The values to append.
+     * @param numBufferedItems The maximum number of values read in memory at once.
+     */
     @Override
     public void appendValues(Iterator<T> values, long numBufferedItems) {
-        ArrayList<T> buffered = new ArrayList<>();
-        while (values.hasNext()) {
-            buffered.add(values.next());
-            if (buffered.size() >= numBufferedItems) {
-                DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
-                    long s = size(db);
-                    long numItems = buffered.size();
-                    Iterator<T> items = buffered.iterator();
-                    resize(db, s + numItems);
-                    for (long i = s; i < s + numItems; i++)
-                        setValue(db, i, items.next());
-                });
-                buffered.clear();
-            }
-        }
-        if (buffered.size() > 0) {
-            DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
-                long s = size(db);
-                long numItems = buffered.size();
-                Iterator<T> items = buffered.iterator();
-                resize(db, s + numItems);
-                for (long i = s; i < s + numItems; i++)
-                    setValue(db, i, items.next());
-            });
-        }
+        if (values == null)
+            throw new NullPointerException("The iterator of values is 'null'");
+        if (numBufferedItems < 1)
+            throw new IllegalArgumentException("The number of buffered items is less than 1");
+
+        flush();
+        List<T> buffered = readValuesFromIterator(values, numBufferedItems);
+        if (buffered.isEmpty() || (!values.hasNext() && bulkLoad(buffered)))
+            return;
 
+        while (!buffered.isEmpty()) {
+            appendBatch(buffered);
+            buffered = readValuesFromIterator(values, numBufferedItems);
+        }
     }
 
     @Override
@@ -256,60 +677,124 @@ public class MapDBArray<T extends Serializable> implements Array<T> {
 
 
     protected T getDefaultValue(DB db) {
+        if (!db.exists(getDefaultValueName()))
+            return null;
         Atomic.Var<T> val = db.getAtomicVar(getDefaultValueName());
         return val.get();
     }
 
     @Override
     public void setDefaultValue(T defaultValue) {
+        flush();
         DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
-            Atomic.Var<T> val = db.getAtomicVar(getDefaultValueName());
-            val.set(defaultValue);
+            if (!db.exists(getDefaultValueName())) {
+                db.createAtomicVar(getDefaultValueName(), defaultValue, Serializer.JAVA);
+            } else {
+                Atomic.Var<T> val = db.getAtomicVar(getDefaultValueName());
+                val.set(defaultValue);
+            }
         });
 
     }
 
     @Override
     public void clear() {
+        flush();
         DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
             clear(db);
         });
-
+        removeDetachedMaps();
     }
 
+    /**
+     * Remove all the array values. The cost does not depend on the array size: the map
+     * containing the values is detached and replaced by an empty one, and it is removed
+     * later by {@link #removeDetachedMaps()}.
+     *
+     * @param db The transaction to use.
+     */
     protected void clear(DB db) {
-        resize(db, 0);
+        if (size(db) == 0)
+            return;
+        String detachedName = newDetachedMapName();
+        layout.detachMap(db, detachedName);
+        valueIndex.detach(db, detachedName + DETACHED_INDEX_SUFFIX);
+        db.getAtomicLong(getInternalNumItemsStored()).set(0);
+    }
+
+    /**
+     * Remove the maps detached by the clear operations, removing a batch of entries
+     * in every transaction so that memory usage does not depend on the size of the maps.
+     */
+    protected void removeDetachedMaps() {
+        boolean done = false;
+        while (!done) {
+            done = DBUtils.atomicGet(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+                String detached = getMapNameWithPrefix(db, getInternalMapName() + DETACHED_MAP_SUFFIX);
+                if (detached == null)
+                    return true;
+                ArrayLayout.removeDetachedEntries(db, detached, DETACHED_REMOVAL_BATCH_SIZE);
+                return false;
+            });
+        }
+    }
+
+    /**
+     * Get the name of a map whose name starts with the given prefix.
+     *
+     * @param db     The transaction to use.
+     * @param prefix The prefix of the map name.
+     * @return The name of a map or 'null' if no map name starts with the prefix.
+     */
+    private static String getMapNameWithPrefix(DB db, String prefix) {
+        for (String key : db.getCatalog().tailMap(prefix).keySet()) {
+            if (!key.startsWith(prefix))
+                break;
+            int end = key.indexOf('.', prefix.length());
+            return end < 0 ? key : key.substring(0, end);
+        }
+        return null;
     }
 
     @Override
     public void resize(long newSize) {
         if (newSize < 0)
             throw new IllegalArgumentException("The new size is less than 0");
+        flush();
         DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
             resize(db, newSize);
         });
+        if (newSize == 0)
+            removeDetachedMaps();
     }
 
     protected void resize(DB db, long newSize) {
+        if (newSize == 0) {
+            clear(db);
+            return;
+        }
         long curSize = size(db);
         if (newSize < curSize) {
             // Remove all items outside new size.
-            BTreeMap<Long, T> array = db.getTreeMap(getInternalMapName());
-            ConcurrentNavigableMap<Long, T> subMap = array.subMap(newSize, true, curSize, true);
-            Iterator<Long> keys = subMap.keySet().iterator();
-            ArrayList<Long> keysToRemove = new ArrayList<>();
-            while (keys.hasNext())
-                keysToRemove.add(keys.next());
-            for (long k : keysToRemove)
-                array.remove(k);
+            valueIndex.remove(db, layout, newSize, curSize);
+            layout.removeValues(db, newSize, curSize);
         }
         Atomic.Long numItemsStored = db.getAtomicLong(getInternalNumItemsStored());
         numItemsStored.set(newSize);
     }
 
+    /**
+     * Get an iterator over all the array values. The iterator reads pages of at most
+     * "numBufferedItems" values, each one in its own short MapDB transaction, so it does
+     * not keep a transaction open and it can be abandoned at any time.
+     *
+     * @param numBufferedItems The maximum number of values read in a single transaction.
+     * @return The iterator over the array values.
+     */
     @Override
-    public Iterator<T> asIterator(long numBufferedItems) {
-        return new ArrayIterator<T>(this, numBufferedItems);
+    public MapDBArrayIterator<T> asIterator(long numBufferedItems) {
+        flush();
+        return new MapDBArrayIterator<>(this, 0, Long.MAX_VALUE, numBufferedItems);
     }
 
     @Override
@@ -317,10 +802,13 @@ public class MapDBArray<T extends Serializable> implements Array<T> {
         if (source == null)
             throw new NullPointerException("The source array is 'null'");
 
-        return DBUtils.atomicGet(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+        flush();
+        Array<T> ret = DBUtils.atomicGet(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
             return copyFrom(db, source, clearArrayContent, numBufferedItems);
         });
-
+        if (clearArrayContent)
+            removeDetachedMaps();
+        return ret;
     }
 
     protected Array<T> copyFrom(DB db, Array<T> source, boolean clearArrayContent, long numBufferedItems) {
@@ -332,6 +820,13 @@ public class MapDBArray<T extends Serializable> implements Array<T> {
         long sourceSize = source.size();
         long startFrom = size(db);
         resize(db, startFrom + sourceSize);
+        if (startFrom == 0 && sourceSize > 0) {
+            // The array is empty: build its map directly with the source values.
+            layout.bulkLoad(db, readBackward(source, sourceSize, numBufferedItems), true);
+            if (valueIndex.exists(db))
+                valueIndex.build(db, layout, newDetachedMapName() + DETACHED_INDEX_SUFFIX);
+            return this;
+        }
         long numRead = 0;
         boolean done = false;
         while (!done) {
@@ -341,23 +836,203 @@ public class MapDBArray<T extends Serializable> implements Array<T> {
                 break;
             }
 
-            for (int i = 0; i < values.size(); i++) {
-                setValue(db, startFrom + numRead + i, values.get(i));
-            }
+            setValues(db, startFrom + numRead, values);
 
             numRead += values.size();
         }
         return this;
     }
 
+    /**
+     * Get an iterator over the values of the source array in descending index order,
+     * reading them in pages of "pageSize" values.
+     */
+    private static <T extends Serializable> Iterator<Fun.Tuple2<Long, T>> readBackward(Array<T> source, long size, long pageSize) {
+        if (pageSize < 1)
+            throw new IllegalArgumentException("The number of buffered items is less than 1");
+        return new Iterator<Fun.Tuple2<Long, T>>() {
+            private long pageStart = size;
+            private List<T> page = Collections.emptyList();
+            private int pos = 0;
+
+            @Override
+            public boolean hasNext() {
+                return pos > 0 || pageStart > 0;
+            }
+
+            @Override
+            public Fun.Tuple2<Long, T> next() {
+                if (pos == 0) {
+                    if (pageStart == 0)
+                        throw new NoSuchElementException();
+                    long from = Math.max(0, pageStart - pageSize);
+                    page = source.getValues(from, pageStart);
+                    if (page.size() != pageStart - from)
+                        throw new IllegalStateException("The source array has been resized during the copy");
+                    pageStart = from;
+                    pos = page.size();
+                }
+                pos--;
+                return Fun.t2(pageStart + pos, page.get(pos));
+            }
+        };
+    }
+
+    /**
+     * Load the given values in one transaction with the MapDB data pump, if the array
+     * is empty. The values are given to the pump in descending index order, so they do
+     * not need to be presorted.
+     *
+     * @param values The values to append.
+     * @return True if the values have been loaded, false if the array is not empty.
+     */
+    private boolean bulkLoad(List<T> values) {
+        return DBUtils.atomicGet(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+            if (size(db) != 0)
+                return false;
+            Iterator<Fun.Tuple2<Long, T>> indexed = new Iterator<Fun.Tuple2<Long, T>>() {
+                private int index = values.size() - 1;
+
+                @Override
+                public boolean hasNext() {
+                    return index >= 0;
+                }
+
+                @Override
+                public Fun.Tuple2<Long, T> next() {
+                    if (index < 0)
+                        throw new NoSuchElementException();
+                    T value = values.get(index);
+                    return Fun.t2((long) index--, value);
+                }
+            };
+            layout.bulkLoad(db, indexed, true);
+            if (valueIndex.exists(db))
+                valueIndex.build(db, layout, newDetachedMapName() + DETACHED_INDEX_SUFFIX);
+            db.getAtomicLong(getInternalNumItemsStored()).set(values.size());
+            return true;
+        });
+    }
+
+    /**
+     * Copy the values of the given collection into the array, using the ingest mode
+     * configured in the storage manager provider.
+     *
+     * @see #copyFrom(Collection, boolean, long, ArrayIngestMode)
+     */
     @Override
     public Array<T> copyFrom(Collection<T> source, boolean clearArrayContent, long numBufferedItems) {
+        return copyFrom(source, clearArrayContent, numBufferedItems, storage.sm.provider.getArrayIngestMode());
+    }
+
+    /**
+     * Copy the values of the given collection into the array. The values are read from the
+     * collection and written in batches of "numBufferedItems" values, each one in its own
+     * transaction, so the memory used does not depend on the size of the collection.
+     *
+     * @param source            The collection to copy.
+     * @param clearArrayContent True if the array must be cleared before copying the values,
+     *                          false to append the values to the current ones.
+     * @param numBufferedItems  The number of values written in each transaction.
+     * @param mode              The consistency guaranteed while copying the values.
+     * @return This array.
+     */
+    public Array<T> copyFrom(Collection<T> source, boolean clearArrayContent, long numBufferedItems, ArrayIngestMode mode) {
         if (source == null)
-            throw new NullPointerException("The source array is 'null'");
+            throw new NullPointerException("The source collection is 'null'");
+        if (mode == null)
+            throw new NullPointerException("The ingest mode is 'null'");
+        if (numBufferedItems < 1)
+            throw new IllegalArgumentException("The number of buffered items is less than 1");
 
-        return DBUtils.atomicGet(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
-            return copyFrom(db, source, clearArrayContent, numBufferedItems);
+        flush();
+        if (mode == ArrayIngestMode.ATOMIC)
+            copyFromStaging(source, clearArrayContent, numBufferedItems);
+        else
+            copyFromChunked(source, clearArrayContent, numBufferedItems);
+        removeDetachedMaps();
+        return this;
+    }
+
+    private void copyFromChunked(Collection<T> source, boolean clearArrayContent, long numBufferedItems) {
+        long startFrom = DBUtils.atomicGet(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+            if (clearArrayContent)
+                clear(db);
+            long s = size(db);
+            resize(db, s + source.size());
+            return s;
         });
+
+        Iterator<T> iter = source.iterator();
+        long numRead = 0;
+        while (true) {
+            List<T> values = readValuesFromIterator(iter, numBufferedItems);
+            if (values.isEmpty())
+                break;
+            long index = startFrom + numRead;
+            DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+                setValues(db, index, values);
+            });
+            numRead += values.size();
+        }
+    }
+
+    private void copyFromStaging(Collection<T> source, boolean clearArrayContent, long numBufferedItems) {
+        ArrayLayout<T> staging = layout.withMapName(getInternalMapName() + STAGING_MAP_SUFFIX + System.nanoTime());
+        DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+            staging.createMap(db);
+        });
+        try {
+            Iterator<T> iter = source.iterator();
+            long numRead = 0;
+            while (true) {
+                List<T> values = readValuesFromIterator(iter, numBufferedItems);
+                if (values.isEmpty())
+                    break;
+                long index = numRead;
+                DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+                    staging.setValues(db, index, values);
+                });
+                numRead += values.size();
+            }
+
+            long numValues = numRead;
+            DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+                if (clearArrayContent || size(db) == 0) {
+                    // The staging map becomes the array map. The index must be built
+                    // before, since the replaced map is not accessible afterwards.
+                    String detachedName = newDetachedMapName();
+                    if (valueIndex.exists(db))
+                        valueIndex.build(db, staging, detachedName + DETACHED_INDEX_SUFFIX);
+                    layout.replaceMap(db, staging, detachedName);
+                    db.getAtomicLong(getInternalNumItemsStored()).set(numValues);
+                } else {
+                    long startFrom = size(db);
+                    resize(db, startFrom + numValues);
+                    for (long from = 0; from < numValues; from += numBufferedItems) {
+                        List<T> values = new ArrayList<>();
+                        staging.getValues(db, from, Math.min(numValues, from + numBufferedItems), null, values);
+                        setValues(db, startFrom + from, values);
+                    }
+                }
+            });
+        } finally {
+            removeStagingMap(staging.mapName);
+        }
+    }
+
+    /**
+     * Remove the given staging map, if it still exists, a batch of entries per transaction.
+     */
+    private void removeStagingMap(String stagingName) {
+        boolean done = false;
+        while (!done) {
+            done = DBUtils.atomicGet(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+                if (!db.exists(stagingName))
+                    return true;
+                return ArrayLayout.removeDetachedEntries(db, stagingName, DETACHED_REMOVAL_BATCH_SIZE);
+            });
+        }
     }
 
     Array<T> copyFrom(DB db, Collection<T> source, boolean clearArrayContent, long numBufferedItems) {
@@ -380,9 +1055,7 @@ public class MapDBArray<T extends Serializable> implements Array<T> {
                 break;
             }
 
-            for (int i = 0; i < values.size(); i++) {
-                setValue(db, startFrom + numRead + i, values.get(i));
-            }
+            setValues(db, startFrom + numRead, values);
             numRead += values.size();
         }
         return this;
@@ -390,17 +1063,154 @@ public class MapDBArray<T extends Serializable> implements Array<T> {
 
     protected List<T> readValuesFromIterator(java.util.Iterator<T> iter, long numToRead) {
         List<T> l = new ArrayList<>();
-        while (iter.hasNext()) {
+        while (l.size() < numToRead && iter.hasNext()) {
             l.add(iter.next());
         }
         return l;
     }
 
+    /**
+     * Write all the array values to the given file, in the binary format described in
+     * {@link ArraySnapshotFile}. The values are read from a single transaction, so the
+     * file contains a consistent snapshot of the array. An existing file is overwritten.
+     *
+     * @param path The file to write.
+     * @throws IOException Raised if the file can not be written.
+     */
+    public void exportTo(Path path) throws IOException {
+        if (path == null)
+            throw new NullPointerException("The path is 'null'");
+        flush();
+        DB tx = storage.sm.provider.tx();
+        try {
+            long s = size(tx);
+            try (DataOutputStream out = ArraySnapshotFile.create(path, getSnapshotKind(), s)) {
+                writeSnapshotValues(tx, s, out);
+            }
+        } finally {
+            tx.close();
+        }
+    }
+
+    /**
+     * Replace the array values with the ones of a file written by {@link #exportTo(Path)}
+     * from an array of the same type. The file is memory mapped and the values are loaded
+     * with the MapDB data pump in a single transaction. Indexes without a stored value in
+     * the file read as the default value of this array.
+     *
+     * @param path The file to read.
+     * @throws IOException Raised if the file can not be read.
+     */
+    public void importFrom(Path path) throws IOException {
+        importFrom(path, ArraySnapshotFile.MAX_MAPPED_REGION_SIZE);
+    }
+
+    /**
+     * Replace the array values with the ones of a snapshot file, mapping at most
+     * "maxRegionSize" bytes of the file at once.
+     *
+     * @param path          The file to read.
+     * @param maxRegionSize The maximum size of a region of the file mapped at once.
+     * @throws IOException Raised if the file can not be read.
+     */
+    void importFrom(Path path, long maxRegionSize) throws IOException {
+        flush();
+        try (ArraySnapshotFile file = ArraySnapshotFile.open(path, maxRegionSize)) {
+            if (file.getKind() != getSnapshotKind())
+                throw new IllegalArgumentException("The file " + path + " does not contain values of the type of the array " + getName());
+            DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+                clear(db);
+                loadSnapshotValues(db, file);
+                if (valueIndex.exists(db))
+                    valueIndex.build(db, layout, newDetachedMapName() + DETACHED_INDEX_SUFFIX);
+                db.getAtomicLong(getInternalNumItemsStored()).set(file.getSize());
+            });
+        }
+        removeDetachedMaps();
+    }
+
+    /**
+     * Get the kind of values written by {@link #exportTo(Path)}.
+     */
+    protected byte getSnapshotKind() {
+        return ArraySnapshotFile.OBJECT_VALUES;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Serializer<T> getSnapshotSerializer() {
+        Serializer<T> serializer = getValueSerializer();
+        return serializer != null ? serializer : (Serializer) Serializer.JAVA;
+    }
+
+    /**
+     * Write the values in the range [0, size) to a snapshot file.
+     *
+     * @param db   The transaction to use.
+     * @param size The number of values to write.
+     * @param out  The output.
+     * @throws IOException Raised if the values can not be written.
+     */
+    protected void writeSnapshotValues(DB db, long size, DataOutput out) throws IOException {
+        Serializer<T> serializer = getSnapshotSerializer();
+        DataOutput2 buffer = new DataOutput2();
+        Iterator<Fun.Tuple2<Long, T>> stored = layout.storedValuesIterator(db, 0, size);
+        long next = 0;
+        while (stored.hasNext()) {
+            Fun.Tuple2<Long, T> v = stored.next();
+            for (; next < v.a; next++)
+                out.writeInt(ArraySnapshotFile.NOT_STORED);
+            ArraySnapshotFile.writeObject(out, serializer, v.b, buffer);
+            next = v.a + 1;
+        }
+        for (; next < size; next++)
+            out.writeInt(ArraySnapshotFile.NOT_STORED);
+    }
+
+    /**
+     * Load the values of a snapshot file in the array, which must be empty.
+     *
+     * @param db   The transaction to use.
+     * @param file The snapshot file.
+     */
+    protected void loadSnapshotValues(DB db, ArraySnapshotFile file) {
+        layout.bulkLoad(db, file.objectValues(getSnapshotSerializer()), false);
+    }
+
+    /**
+     * Get a spliterator over all the array values. Splitting the spliterator divides the
+     * range of indexes, so parallel workers scan disjoint parts of the array.
+     *
+     * @return The spliterator over the array values.
+     */
+    public MapDBArraySpliterator<T> spliterator() {
+        flush();
+        return new MapDBArraySpliterator<>(this, 0, size());
+    }
+
+    /**
+     * Get a sequential stream over all the array values.
+     *
+     * @return The stream of the array values.
+     */
+    public Stream<T> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * Get a parallel stream over all the array values. Each worker reads a disjoint range
+     * of indexes.
+     *
+     * @return The parallel stream of the array values.
+     */
+    public Stream<T> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
     @Override
     public void copyTo(Collection<T> dest, boolean clearList, long numBufferedItems) {
         if (clearList)
             dest.clear();
-        ArrayIterator<T> iter = new ArrayIterator<T>(this, numBufferedItems);
+        Iterator<T> iter = asIterator(numBufferedItems);
         while (iter.hasNext()) {
             T item = iter.next();
             dest.add(item);
@@ -412,38 +1222,151 @@ public class MapDBArray<T extends Serializable> implements Array<T> {
         dest.copyFrom(this, clearArray, numBufferedItems);
     }
 
+    /**
+     * Get a provider of iterators over all the array values. Every iterator is a
+     * {@link MapDBArrayIterator} reading pages of at most "numBufferedItems" values.
+     *
+     * @param numBufferedItems The maximum number of values read in a single transaction.
+     * @return The iterator provider.
+     */
     @Override
     public ImmutableDataSourceIteratorProvider<T> asIteratorProvider(long numBufferedItems) {
         if (numBufferedItems < 1)
             throw new IllegalArgumentException("The number of buffered items is less than 1");
-        return new ArrayDataSourceIteratorProvider<T>(this, numBufferedItems);
+        return () -> asIterator(numBufferedItems);
     }
 
+    /**
+     * Get a provider of iterators over all the (index, value) pairs of the array. Every
+     * iterator reads the values with a {@link MapDBArrayIterator}, in pages of at most
+     * "numBufferedItems" values.
+     *
+     * @param numBufferedItems The maximum number of values read in a single transaction.
+     * @return The iterator provider.
+     */
     @Override
     public ImmutableDataSourceIteratorProvider<Pair<Long, T>> asIteratorProviderWithIndex(long numBufferedItems) {
         if (numBufferedItems < 1)
             throw new IllegalArgumentException("The number of buffered items is less than 1");
-        return new ArrayPairDataSourceIteratorProvider<T>(this, numBufferedItems);
+        return () -> {
+            MapDBArrayIterator<T> values = asIterator(numBufferedItems);
+            return new Iterator<Pair<Long, T>>() {
+                @Override
+                public boolean hasNext() {
+                    return values.hasNext();
+                }
+
+                @Override
+                public Pair<Long, T> next() {
+                    long index = values.nextIndex();
+                    return new Pair<>(index, values.next());
+                }
+            };
+        };
     }
 
+    /**
+     * Enable or disable the local cache of the array. When enabled, the values in the range
+     * [fromIndex, toIndex) are read from the storage with a single range read on first
+     * access and then served from memory. The values written in the range are kept in
+     * memory until {@link #flush()} is called, when all of them are stored in a single
+     * transaction. Any previous cache is flushed before being replaced or disabled.
+     * <p>
+     * The cached values are a snapshot of the array: changes made by other clients become
+     * visible only after the next flush. Operations changing the array size or the default
+     * value flush the cache before being executed.
+     *
+     * @param enabled   True to enable the cache, false to disable it.
+     * @param fromIndex The first index to cache.
+     * @param toIndex   The index after the last one to cache.
+     */
     @Override
     public void enableLocalCache(boolean enabled, long fromIndex, long toIndex) {
-
+        ArrayLocalCache<T> newCache = enabled ? new ArrayLocalCache<>(fromIndex, toIndex) : null;
+        synchronized (this) {
+            flush();
+            localCache = newCache;
+        }
     }
 
     @Override
     public boolean isLocalCacheEnabled(long index) {
-        return false;
+        ArrayLocalCache<T> cache = localCache;
+        return cache != null && cache.contains(index);
     }
 
+    /**
+     * Store the values written in the local cache in a single transaction. The cache is
+     * then reloaded on the next access. Does nothing if the local cache is disabled.
+     */
     @Override
     public void flush() {
+        ArrayLocalCache<T> cache = localCache;
+        if (cache == null)
+            return;
+        synchronized (cache) {
+            flushLocalCache(cache);
+        }
+    }
+
+    /**
+     * Flush the local cache if it overlaps the range [fromIndex, toIndex). Used before
+     * accessing directly the stored values of the range.
+     *
+     * @param fromIndex The first index of the range.
+     * @param toIndex   The index after the last one of the range.
+     */
+    protected void flushLocalCache(long fromIndex, long toIndex) {
+        ArrayLocalCache<T> cache = localCache;
+        if (cache == null)
+            return;
+        synchronized (cache) {
+            if (cache.getFromIndex() < toIndex && fromIndex < cache.getToIndex())
+                flushLocalCache(cache);
+        }
+    }
 
+    private void loadLocalCache(ArrayLocalCache<T> cache) {
+        if (cache.isLoaded())
+            return;
+        DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+            long s = size(db);
+            long to = Math.min(cache.getToIndex(), s);
+            ArrayList<T> stored = new ArrayList<T>((int) Math.max(0, to - cache.getFromIndex()));
+            if (to > cache.getFromIndex())
+                layout.getValues(db, cache.getFromIndex(), to, null, stored);
+            cache.load(s, getDefaultValue(db), stored);
+        });
+    }
+
+    private void flushLocalCache(ArrayLocalCache<T> cache) {
+        if (cache.isDirty()) {
+            BitSet dirty = cache.getDirtyPositions();
+            DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+                // Values beyond the current size belong to an array shrunk by another client.
+                long s = size(db);
+                for (int pos = dirty.nextSetBit(0); pos >= 0; pos = dirty.nextSetBit(pos + 1)) {
+                    long index = cache.getFromIndex() + pos;
+                    if (index >= s)
+                        break;
+                    setValue(db, index, cache.getStored(pos));
+                }
+            });
+        }
+        cache.invalidate();
     }
 
     public static void removeArray(DB db, long storageID, long arrayID) {
+        String mapName = getInternalMapName(storageID, arrayID);
+        String detached;
+        while ((detached = getMapNameWithPrefix(db, mapName + DETACHED_MAP_SUFFIX)) != null)
+            db.delete(detached);
+        while ((detached = getMapNameWithPrefix(db, mapName + STAGING_MAP_SUFFIX)) != null)
+            db.delete(detached);
         db.delete(getInternalMapName(storageID, arrayID));
         db.delete(getInternalNumItemsStored(storageID, arrayID));
         db.delete(getDefaultValueName(storageID, arrayID));
+        db.delete(getChunkSizeName(storageID, arrayID));
+        db.delete(getValueIndexName(storageID, arrayID));
     }
 }
@@ -0,0 +1,109 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import org.mapdb.DB;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An iterator over a range of values of a {@link MapDBArray}. The values are read in
+ * pages of at most "numBufferedItems" values, each one with a range read in its own short
+ * MapDB transaction, so the iterator never keeps a transaction open between two calls
+ * and it can be abandoned before the end without releasing anything.
+ * <p>
+ * Every page is a consistent snapshot of its values, but different pages may see
+ * different versions of the array. The end of the range is truncated to the array size
+ * read with each page, so the iteration stops early if the array shrinks meanwhile.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+public class MapDBArrayIterator<T extends Serializable> implements Iterator<T> {
+
+    private final MapDBArray<T> array;
+    private final long pageSize;
+    private long toIndex;
+    private final ArrayList<T> page = new ArrayList<>();
+    private int pagePos;
+    private long index;
+
+    /**
+     * Create an iterator over the values in the range [fromIndex, toIndex).
+     *
+     * @param array            The array to read.
+     * @param fromIndex        The first index to read.
+     * @param toIndex          The index after the last one to read.
+     * @param numBufferedItems The maximum number of values read in a single transaction.
+     */
+    MapDBArrayIterator(MapDBArray<T> array, long fromIndex, long toIndex, long numBufferedItems) {
+        if (array == null)
+            throw new NullPointerException("The array is 'null'");
+        if (fromIndex < 0)
+            throw new IllegalArgumentException("The fromIndex value is less than 0");
+        if (numBufferedItems < 1)
+            throw new IllegalArgumentException("The number of buffered items is less than 1");
+        this.array = array;
+        this.index = fromIndex;
+        this.toIndex = toIndex;
+        this.pageSize = numBufferedItems;
+    }
+
+    /**
+     * Get the index of the value returned by the next call to {@link #next()}.
+     *
+     * @return The index of the next value.
+     */
+    public long nextIndex() {
+        return index;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (pagePos == page.size() && index < toIndex)
+            readPage();
+        return pagePos < page.size();
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        index++;
+        return page.get(pagePos++);
+    }
+
+    private void readPage() {
+        page.clear();
+        pagePos = 0;
+        DB tx = array.storage.sm.provider.tx();
+        try {
+            toIndex = Math.min(toIndex, array.size(tx));
+            long to = toIndex - index > pageSize ? index + pageSize : toIndex;
+            if (index < to)
+                array.layout.getValues(tx, index, to, array.getDefaultValue(tx), page);
+        } finally {
+            tx.close();
+        }
+    }
+}
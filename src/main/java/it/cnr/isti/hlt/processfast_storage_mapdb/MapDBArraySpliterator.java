@@ -0,0 +1,118 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import java.io.Serializable;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A spliterator over a range of values of a {@link MapDBArray}. Splitting halves the
+ * range of indexes, aligned to the array chunks when the array is chunked, so that
+ * every worker scans a disjoint part of the MapDB tree with its own
+ * {@link MapDBArrayIterator}. The iterator of a part is created at the first traversal
+ * and reads {@link #PAGE_SIZE} values per transaction.
+ * <p>
+ * The parts, and the pages of a part, may read different snapshots of the array, so the
+ * spliterator is not SIZED: the range is fixed when the spliterator is created, but the
+ * traversal stops early if the array shrinks meanwhile.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+public class MapDBArraySpliterator<T extends Serializable> implements Spliterator<T> {
+
+    /**
+     * The minimum number of values of a range to split it.
+     */
+    static final long MIN_SPLIT_SIZE = 4096;
+
+    /**
+     * The number of values read in a single transaction by the iterator of a part.
+     */
+    static final long PAGE_SIZE = 4096;
+
+    private final MapDBArray<T> array;
+    private long fromIndex;
+    private final long toIndex;
+    private final long splitAlignment;
+    private MapDBArrayIterator<T> iterator;
+
+    MapDBArraySpliterator(MapDBArray<T> array, long fromIndex, long toIndex) {
+        if (array == null)
+            throw new NullPointerException("The array is 'null'");
+        if (fromIndex < 0)
+            throw new IllegalArgumentException("The fromIndex value is less than 0");
+        this.array = array;
+        this.fromIndex = fromIndex;
+        this.toIndex = Math.max(fromIndex, toIndex);
+        if (array.layout instanceof ChunkedArrayLayout)
+            this.splitAlignment = ((ChunkedArrayLayout<T>) array.layout).getChunkSize();
+        else
+            this.splitAlignment = 1;
+    }
+
+    private MapDBArrayIterator<T> getIterator() {
+        if (iterator == null)
+            iterator = new MapDBArrayIterator<>(array, fromIndex, toIndex, PAGE_SIZE);
+        return iterator;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        MapDBArrayIterator<T> iter = getIterator();
+        if (!iter.hasNext())
+            return false;
+        action.accept(iter.next());
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super T> action) {
+        MapDBArrayIterator<T> iter = getIterator();
+        while (iter.hasNext())
+            action.accept(iter.next());
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        if (iterator != null || toIndex - fromIndex < MIN_SPLIT_SIZE)
+            return null;
+        long mid = fromIndex + (toIndex - fromIndex) / 2;
+        mid -= mid % splitAlignment;
+        if (mid <= fromIndex)
+            return null;
+        MapDBArraySpliterator<T> prefix = new MapDBArraySpliterator<>(array, fromIndex, mid);
+        fromIndex = mid;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        if (iterator != null)
+            return toIndex - iterator.nextIndex();
+        return toIndex - fromIndex;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED;
+    }
+}
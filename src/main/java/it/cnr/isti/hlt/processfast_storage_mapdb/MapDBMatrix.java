@@ -19,23 +19,39 @@
 
 package it.cnr.isti.hlt.processfast_storage_mapdb;
 
+import it.cnr.isti.hlt.processfast.data.ImmutableDataSourceIteratorProvider;
 import it.cnr.isti.hlt.processfast.data.Matrix;
+import it.cnr.isti.hlt.processfast.utils.Pair;
 import org.mapdb.Atomic;
-import org.mapdb.BTreeMap;
 import org.mapdb.DB;
+import org.mapdb.Fun;
+import org.mapdb.Pump;
+import org.mapdb.Serializer;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
  */
 public class MapDBMatrix<T extends Serializable> implements Matrix<T> {
 
+    /**
+     * The maximum number of values which can be cached locally by a matrix.
+     */
+    public static final int MAX_LOCAL_CACHE_SIZE = 1 << 24;
+
     private static final String MATRIX_PREFIX_ROW = "storage_matrix_row_";
     private static final String MATRIX_PREFIX_COL = "storage_matrix_col_";
+    private static final String MATRIX_PREFIX_CELLS = "storage_matrix_cells_";
+    private static final String MATRIX_PREFIX_TILES = "storage_matrix_tiles_";
+    private static final String MATRIX_PREFIX_COL_INDEX = "storage_matrix_colindex_";
+    private static final String TILE_SIZE_PREFIX = "mat_tile_size_";
     private static final int MAX_NUM_RETRIES = 10;
     private static final String NUM_ROWS_STORED_PREFIX = "mat_num_rows_stored_";
     private static final String NUM_COLS_STORED_PREFIX = "mat_num_cols_stored_";
@@ -45,10 +61,57 @@ public class MapDBMatrix<T extends Serializable> implements Matrix<T> {
 
 
     private final long matrixID;
-    private final MapDBStorage storage;
+    protected final MapDBStorage storage;
     private final String name;
 
+    /**
+     * The class of the matrix values or 'null' if unknown.
+     */
+    private final Class<T> valueClass;
+
+    /**
+     * The names of the MapDB records holding the matrix data, resolved once.
+     */
+    private final String internalMapRowName;
+    private final String internalMapColNamePrefix;
+    private final String internalMapCellsName;
+    private final String internalNumRowsStored;
+    private final String internalNumColsStored;
+    private final String nextAvailableRowIDName;
+    private final String defaultValueName;
+
+    /**
+     * The layout used to store the matrix values.
+     */
+    protected final MatrixLayout<T> layout;
+
+    /**
+     * The optional column index of the matrix values.
+     */
+    private final MatrixColumnIndex<T> columnIndex;
+
+    /**
+     * The rectangles cached locally, from the most recently used to the least recently
+     * used. The rectangles never overlap. Guarded by "localCacheLock".
+     */
+    private final List<MatrixLocalCache<T>> localCaches = new ArrayList<>();
+    private final Object localCacheLock = new Object();
+    private volatile boolean localCacheEnabled;
+
     public MapDBMatrix(MapDBStorage storage, String name, long matrixID) {
+        this(storage, name, matrixID, null);
+    }
+
+    /**
+     * Create a matrix storing values of the given class. The values of new matrix rows are
+     * written with the serializer registered for the class in the storage manager provider.
+     *
+     * @param storage    The parent storage.
+     * @param name       The matrix name.
+     * @param matrixID   The matrix ID.
+     * @param valueClass The class of the matrix values or 'null' if unknown.
+     */
+    public MapDBMatrix(MapDBStorage storage, String name, long matrixID, Class<T> valueClass) {
         if (storage == null)
             throw new NullPointerException("The parent storage is 'null'");
         if (name == null || name.isEmpty())
@@ -57,20 +120,96 @@ public class MapDBMatrix<T extends Serializable> implements Matrix<T> {
         this.storage = storage;
         this.name = name;
         this.matrixID = matrixID;
+        this.valueClass = valueClass;
+        this.internalMapRowName = getInternalMapRowName(storage.getStorageID(), matrixID);
+        this.internalMapColNamePrefix = getInternalMapColNamePrefix(storage.getStorageID(), matrixID);
+        this.internalMapCellsName = getInternalMapCellsName(storage.getStorageID(), matrixID);
+        this.internalNumRowsStored = getInternalNumRowsStored(storage.getStorageID(), matrixID);
+        this.internalNumColsStored = getInternalNumColsStored(storage.getStorageID(), matrixID);
+        this.nextAvailableRowIDName = nextAvailableRowIDName(storage.getStorageID(), matrixID);
+        this.defaultValueName = getDefaultValueName(storage.getStorageID(), matrixID);
+        this.columnIndex = new MatrixColumnIndex<>(getColumnIndexName(storage.getStorageID(), matrixID));
 
-        // Create array structure, if not available.
-        DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
-            if (!db.exists(getInternalMapRowName())) {
-                BTreeMap<Long, Long> map = db.createTreeMap(getInternalMapRowName()).counterEnable().makeOrGet();
-                db.createAtomicLong(getInternalNumRowsStored(), 1);
-                db.createAtomicLong(getInternalNumColsStored(), 1);
-                db.createAtomicLong(nextAvailableRowIDName(), 0);
-            }
+        // Create matrix structure, if not available.
+        this.layout = DBUtils.atomicGet(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+            MatrixLayout<T> existing = openLayout(db, storage.getStorageID(), matrixID, getValueSerializer());
+            if (existing != null)
+                return existing;
+            MatrixLayout<T> newLayout = createNewLayout(storage.sm.provider.getMatrixStorageMode());
+            newLayout.createMaps(db);
+            db.createAtomicLong(getInternalNumRowsStored(), 1);
+            db.createAtomicLong(getInternalNumColsStored(), 1);
+            db.createAtomicVar(getDefaultValueName(), null, Serializer.JAVA);
+            return newLayout;
         });
     }
 
+    /**
+     * Create the layout used to store the values of a new matrix.
+     *
+     * @param mode The storage mode of the matrix.
+     * @return The layout to use.
+     */
+    protected MatrixLayout<T> createNewLayout(MatrixStorageMode mode) {
+        if (mode == MatrixStorageMode.COMPOSITE_KEY)
+            return new CompositeKeyMatrixLayout<>(internalMapCellsName, getValueSerializer());
+        if (mode == MatrixStorageMode.DENSE_TILES)
+            return new TiledMatrixLayout<>(getInternalMapTilesName(storage.getStorageID(), matrixID), getTileSizeName(storage.getStorageID(), matrixID),
+                    storage.sm.provider.getMatrixTileSize(), newTileCodec());
+        return new RowMapMatrixLayout<>(getInternalMapRowName(), internalMapColNamePrefix, nextAvailableRowIDName(), getValueSerializer());
+    }
+
+    /**
+     * Get the layout of an existing matrix, found by looking for the MapDB collections
+     * of each layout.
+     *
+     * @param db              The transaction to use.
+     * @param storageID       The ID of the parent storage.
+     * @param matrixID        The ID of the matrix.
+     * @param valueSerializer The serializer of the values of new rows.
+     * @return The layout of the matrix or 'null' if the matrix does not exist.
+     */
+    private static <T extends Serializable> MatrixLayout<T> openLayout(DB db, long storageID, long matrixID, Serializer<T> valueSerializer) {
+        if (db.exists(getInternalMapRowName(storageID, matrixID)))
+            return new RowMapMatrixLayout<>(getInternalMapRowName(storageID, matrixID), getInternalMapColNamePrefix(storageID, matrixID),
+                    nextAvailableRowIDName(storageID, matrixID), valueSerializer);
+        if (db.exists(getInternalMapCellsName(storageID, matrixID)))
+            return new CompositeKeyMatrixLayout<>(getInternalMapCellsName(storageID, matrixID), valueSerializer);
+        if (db.exists(getInternalMapTilesName(storageID, matrixID)))
+            return TiledMatrixLayout.open(db, getInternalMapTilesName(storageID, matrixID), getTileSizeName(storageID, matrixID));
+        return null;
+    }
+
+    /**
+     * Get the codec of the tiles of a new tiled matrix: matrices of Double, Float, Long
+     * and Integer values use tiles of primitive values.
+     */
+    @SuppressWarnings("unchecked")
+    private ArrayChunk.Codec<T> newTileCodec() {
+        PrimitiveArrayChunk.Type type = PrimitiveArrayChunk.Type.forClass(valueClass);
+        if (type != null)
+            return (ArrayChunk.Codec<T>) new PrimitiveArrayChunk.ChunkSerializer<>(type);
+        return new ObjectArrayChunk.ChunkSerializer<>(getValueSerializer());
+    }
+
+    /**
+     * Get the serializer used for the values of new matrix rows.
+     *
+     * @return The serializer registered for the class of the matrix values or Java
+     * serialization if no specific serializer is available.
+     */
+    @SuppressWarnings("unchecked")
+    protected Serializer<T> getValueSerializer() {
+        Serializer<T> serializer = null;
+        if (valueClass != null)
+            serializer = storage.sm.provider.getValueSerializer(valueClass);
+        if (serializer == null)
+            serializer = (Serializer) Serializer.JAVA;
+        return serializer;
+    }
+
     protected String getInternalMapRowName() {
-        return getInternalMapRowName(storage.getStorageID(), matrixID);
+        return internalMapRowName;
     }
 
     protected static String getInternalMapRowName(long storageID, long matrixID) {
@@ -78,16 +217,36 @@ public class MapDBMatrix<T extends Serializable> implements Matrix<T> {
     }
 
     protected String getInternalMapColName(long row) {
-        return getInternalMapColName(storage.getStorageID(), matrixID, row);
+        return internalMapColNamePrefix + row;
     }
 
     protected static String getInternalMapColName(long storageID, long matrixID, long row) {
-        return MATRIX_PREFIX_COL + storageID + "_" + matrixID + "_" + row;
+        return getInternalMapColNamePrefix(storageID, matrixID) + row;
+    }
+
+    private static String getInternalMapColNamePrefix(long storageID, long matrixID) {
+        return MATRIX_PREFIX_COL + storageID + "_" + matrixID + "_";
+    }
+
+    protected static String getInternalMapCellsName(long storageID, long matrixID) {
+        return MATRIX_PREFIX_CELLS + storageID + "_" + matrixID;
+    }
+
+    protected static String getInternalMapTilesName(long storageID, long matrixID) {
+        return MATRIX_PREFIX_TILES + storageID + "_" + matrixID;
+    }
+
+    protected static String getTileSizeName(long storageID, long matrixID) {
+        return TILE_SIZE_PREFIX + storageID + "_" + matrixID;
+    }
+
+    protected static String getColumnIndexName(long storageID, long matrixID) {
+        return MATRIX_PREFIX_COL_INDEX + storageID + "_" + matrixID;
     }
 
 
     protected String nextAvailableRowIDName() {
-        return nextAvailableRowIDName(storage.getStorageID(), matrixID);
+        return nextAvailableRowIDName;
     }
 
     protected static String nextAvailableRowIDName(long storageID, long matrixID) {
@@ -95,7 +254,7 @@ public class MapDBMatrix<T extends Serializable> implements Matrix<T> {
     }
 
     protected String getInternalNumRowsStored() {
-        return getInternalNumRowsStored(storage.getStorageID(), matrixID);
+        return internalNumRowsStored;
     }
 
     protected static String getInternalNumRowsStored(long storageID, long matrixID) {
@@ -103,7 +262,7 @@ public class MapDBMatrix<T extends Serializable> implements Matrix<T> {
     }
 
     protected String getInternalNumColsStored() {
-        return getInternalNumColsStored(storage.getStorageID(), matrixID);
+        return internalNumColsStored;
     }
 
     protected static String getInternalNumColsStored(long storageID, long matrixID) {
@@ -115,7 +274,7 @@ public class MapDBMatrix<T extends Serializable> implements Matrix<T> {
     }
 
     protected String getDefaultValueName() {
-        return getDefaultValueName(storage.getStorageID(), matrixID);
+        return defaultValueName;
     }
 
     @Override
@@ -148,12 +307,23 @@ public class MapDBMatrix<T extends Serializable> implements Matrix<T> {
         return num.get();
     }
 
+    /**
+     * Change the size of the matrix, keeping the values stored inside the new bounds.
+     * Growing the matrix only updates its size, while shrinking it removes the values
+     * stored in the rows and columns outside the new bounds, at a cost depending on the
+     * number of values removed and, when the columns shrink, on the number of stored
+     * rows. The new positions read as the default value.
+     *
+     * @param numRows    The new number of rows.
+     * @param numColumns The new number of columns.
+     */
     @Override
     public void resize(long numRows, long numColumns) {
         if (numRows < 1)
             throw new IllegalArgumentException("The number of rows is less than 1: " + numRows);
         if (numColumns < 1)
             throw new IllegalArgumentException("The number of cols is less than 1: " + numColumns);
+        flush();
         DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
             resize(db, numRows, numColumns);
         });
@@ -165,24 +335,44 @@ public class MapDBMatrix<T extends Serializable> implements Matrix<T> {
     }
 
     protected void resize(DB db, long numRows, long numCols) {
-        BTreeMap<Long, Long> map = db.getTreeMap(getInternalMapRowName());
-        Iterator<Long> keys = map.keySet().iterator();
-        // Delete all rows associated with this matrix.
-        while (keys.hasNext()) {
-            long key = keys.next();
-            long rowID = map.get(key);
-            db.delete(getInternalMapColName(rowID));
+        layout.checkSize(numRows, numCols);
+        long oldNumRows = getNumRows(db);
+        long oldNumCols = getNumCols(db);
+        // Growing the matrix only changes its size: there are no values stored outside the old bounds.
+        if (numRows < oldNumRows || numCols < oldNumCols) {
+            layout.removeOutside(db, numRows, numCols, oldNumRows, oldNumCols);
+            columnIndex.removeOutside(db, numRows, numCols, oldNumRows, oldNumCols);
         }
-        map.clear();
         db.getAtomicLong(getInternalNumRowsStored()).set(numRows);
         db.getAtomicLong(getInternalNumColsStored()).set(numCols);
     }
 
+    /**
+     * Get the value at the given position. The value is read from a transaction which
+     * is never committed, so reads do not modify the storage and do not conflict with
+     * other transactions.
+     *
+     * @param row    The row index.
+     * @param column The column index.
+     * @return The value at the given position or the default value if no value is stored.
+     */
     @Override
     public T getValue(long row, long column) {
-        return DBUtils.atomicGet(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
-            return getValue(db, row, column);
-        });
+        if (localCacheEnabled) {
+            synchronized (localCacheLock) {
+                MatrixLocalCache<T> cache = findLocalCache(row, row + 1, column, column + 1);
+                if (cache != null) {
+                    checkCachedBlock(cache, row, row + 1, column, column + 1);
+                    return cache.get(row, column);
+                }
+            }
+        }
+        DB tx = storage.sm.provider.tx();
+        try {
+            return getValue(tx, row, column);
+        } finally {
+            tx.close();
+        }
     }
 
     protected T getValue(DB db, long row, long col) {
@@ -193,25 +383,23 @@ public class MapDBMatrix<T extends Serializable> implements Matrix<T> {
         if (col < 0 || col >= numCols)
             throw new IllegalArgumentException("The column index is not valid: " + col);
 
-        BTreeMap<Long, Long> map = db.getTreeMap(getInternalMapRowName());
-        if (!map.containsKey(row)) {
-            Atomic.Long nextID = db.getAtomicLong(nextAvailableRowIDName());
-            long nextIDAssigned = nextID.getAndIncrement();
-            map.put(row, nextIDAssigned);
-            db.createTreeMap(getInternalMapColName(nextIDAssigned)).counterEnable().makeOrGet();
-        }
-        long rowID = map.get(row);
-        BTreeMap<Long, T> mapRow = db.getTreeMap(getInternalMapColName(rowID));
-        if (mapRow.containsKey(col)) {
-            return mapRow.get(col);
-        } else {
-            return getDefaultValue(db);
-        }
+        T value = layout.get(db, row, col);
+        return value != null ? value : getDefaultValue(db);
     }
 
 
     @Override
     public void setValue(long row, long column, T value) {
+        if (localCacheEnabled) {
+            synchronized (localCacheLock) {
+                MatrixLocalCache<T> cache = findLocalCache(row, row + 1, column, column + 1);
+                if (cache != null) {
+                    checkCachedBlock(cache, row, row + 1, column, column + 1);
+                    cache.set(row, column, value);
+                    return;
+                }
+            }
+        }
         DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
             setValue(db, row, column, value);
         });
@@ -225,28 +413,233 @@ public class MapDBMatrix<T extends Serializable> implements Matrix<T> {
         if (col < 0 || col >= numCols)
             throw new IllegalArgumentException("The column index is not valid: " + col);
 
+        storeValue(db, row, col, value);
+    }
+
+    /**
+     * Store a value at the given position, without checking the matrix bounds.
+     *
+     * @param db    The transaction to use.
+     * @param row   The row index.
+     * @param col   The column index.
+     * @param value The value to store or 'null' to remove the stored value.
+     */
+    protected void storeValue(DB db, long row, long col, T value) {
+        layout.set(db, row, col, value);
+        columnIndex.update(db, row, col, value);
+    }
 
-        BTreeMap<Long, Long> map = db.getTreeMap(getInternalMapRowName());
-        if (!map.containsKey(row)) {
-            Atomic.Long nextID = db.getAtomicLong(nextAvailableRowIDName());
-            long nextIDAssigned = nextID.getAndIncrement();
-            map.put(row, nextIDAssigned);
-            db.createTreeMap(getInternalMapColName(nextIDAssigned)).counterEnable().makeOrGet();
+
+    /**
+     * Store the values of a row starting from the given column, with a single transaction.
+     *
+     * @param row      The row index.
+     * @param startCol The column where to store the first value.
+     * @param values   The values to store. A 'null' value resets the position to the default value.
+     */
+    public void setRowValues(long row, long startCol, List<T> values) {
+        if (values == null)
+            throw new NullPointerException("The list of values is 'null'");
+        setBlockValues(row, startCol, Collections.singletonList(values));
+    }
+
+    /**
+     * Store the values of a column starting from the given row, with a single transaction.
+     *
+     * @param col      The column index.
+     * @param startRow The row where to store the first value.
+     * @param values   The values to store. A 'null' value resets the position to the default value.
+     */
+    public void setColValues(long col, long startRow, List<T> values) {
+        if (values == null)
+            throw new NullPointerException("The list of values is 'null'");
+        List<List<T>> rows = new ArrayList<>(values.size());
+        for (T value : values)
+            rows.add(Collections.singletonList(value));
+        setBlockValues(startRow, col, rows);
+    }
+
+    /**
+     * Store the values of a block starting from the given position, with a single
+     * transaction. With the {@link MatrixStorageMode#DENSE_TILES} storage mode, every tile
+     * overlapping the block is read and written once.
+     *
+     * @param startRow The row where to store the first value.
+     * @param startCol The column where to store the first value.
+     * @param values   The values to store, one list of the same size for every row. A
+     *                 'null' value resets the position to the default value.
+     */
+    public void setBlockValues(long startRow, long startCol, List<List<T>> values) {
+        if (values == null)
+            throw new NullPointerException("The list of values is 'null'");
+        if (values.isEmpty() || values.get(0).isEmpty())
+            return;
+        long numBlockCols = values.get(0).size();
+        for (List<T> rowValues : values) {
+            if (rowValues == null)
+                throw new NullPointerException("The list of values of a row is 'null'");
+            if (rowValues.size() != numBlockCols)
+                throw new IllegalArgumentException("The rows of the block have different sizes: " + rowValues.size() + " and " + numBlockCols);
         }
-        long rowID = map.get(row);
-        BTreeMap<Long, T> mapRow = db.getTreeMap(getInternalMapColName(rowID));
-        if (value != null)
-            mapRow.put(col, value);
-        else
-            mapRow.remove(col);
+        long endRow = startRow + values.size();
+        long endCol = startCol + numBlockCols;
+        flushLocalCaches(startRow, endRow, startCol, endCol);
+        DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+            long numRows = getNumRows(db);
+            long numCols = getNumCols(db);
+            if (startRow < 0 || endRow > numRows || startCol < 0 || endCol > numCols)
+                throw new IllegalArgumentException("The block rows [" + startRow + "," + endRow + "), cols [" + startCol + "," + endCol + ") is not valid. Matrix size: " + numRows + "x" + numCols);
+            layout.setBlockValues(db, startRow, startCol, values);
+            columnIndex.update(db, startRow, startCol, values);
+        });
+    }
+
+    /**
+     * Store the values of the given (row, column, value) entries. If the matrix has no
+     * stored values, all the entries are loaded in a single transaction building the
+     * MapDB collections with the data pump, after sorting the entries in temporary
+     * storage if they do not fit in memory. Otherwise the entries are stored in batches
+     * of "numBufferedItems" entries, each one in its own transaction.
+     * <p>
+     * If a position is repeated, its last entry wins. A 'null' value resets the position
+     * to the default value.
+     *
+     * @param entries          The entries to store.
+     * @param numBufferedItems The number of entries stored in each transaction when the
+     *                         matrix is not empty.
+     */
+    public void loadValues(Iterator<MatrixEntry<T>> entries, long numBufferedItems) {
+        if (entries == null)
+            throw new NullPointerException("The iterator of entries is 'null'");
+        if (numBufferedItems < 1)
+            throw new IllegalArgumentException("The number of buffered items is less than 1");
+
+        flush();
+        if (!entries.hasNext() || bulkLoad(entries))
+            return;
+        while (entries.hasNext()) {
+            List<MatrixEntry<T>> batch = new ArrayList<>();
+            while (entries.hasNext() && batch.size() < numBufferedItems)
+                batch.add(entries.next());
+            DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+                long numRows = getNumRows(db);
+                long numCols = getNumCols(db);
+                for (MatrixEntry<T> entry : batch) {
+                    checkEntry(entry, numRows, numCols);
+                    storeValue(db, entry.getRow(), entry.getCol(), entry.getValue());
+                }
+            });
+        }
+    }
+
+    /**
+     * Load the given entries in one transaction with the MapDB data pump, if the matrix
+     * has no stored values. The transaction is not retried, because the entries can not
+     * be read again once the load has started.
+     *
+     * @param entries The entries to store.
+     * @return True if the entries have been loaded, false if the matrix is not empty.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean bulkLoad(Iterator<MatrixEntry<T>> entries) {
+        return DBUtils.atomicGet(storage.sm.provider.txMaker(), 1, db -> {
+            if (layout.storedValuesIterator(db).hasNext())
+                return false;
+            long numRows = getNumRows(db);
+            long numCols = getNumCols(db);
+            // Every entry is numbered with its position in the input.
+            Iterator<Fun.Tuple2<Long, MatrixEntry<T>>> checked = new Iterator<Fun.Tuple2<Long, MatrixEntry<T>>>() {
+                private long seq = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return entries.hasNext();
+                }
+
+                @Override
+                public Fun.Tuple2<Long, MatrixEntry<T>> next() {
+                    MatrixEntry<T> entry = entries.next();
+                    checkEntry(entry, numRows, numCols);
+                    return Fun.t2(seq++, entry);
+                }
+            };
+            // The data pump needs the entries in descending order. The entries of a
+            // repeated position are sorted from the last one.
+            Iterator<Fun.Tuple2<Long, MatrixEntry<T>>> sorted = Pump.sort(checked, false, ArrayLayout.PUMP_PRESORT_BATCH_SIZE, (a, b) -> {
+                Fun.Tuple2<Long, MatrixEntry<T>> t1 = (Fun.Tuple2<Long, MatrixEntry<T>>) a;
+                Fun.Tuple2<Long, MatrixEntry<T>> t2 = (Fun.Tuple2<Long, MatrixEntry<T>>) b;
+                int cmp = Long.compare(t2.b.getRow(), t1.b.getRow());
+                if (cmp == 0)
+                    cmp = Long.compare(t2.b.getCol(), t1.b.getCol());
+                return cmp != 0 ? cmp : Long.compare(t2.a, t1.a);
+            }, db.getDefaultSerializer());
+            layout.bulkLoad(db, lastStoredValues(sorted));
+            if (columnIndex.exists(db))
+                columnIndex.build(db, layout, getValueSerializer());
+            return true;
+        });
+    }
+
+    /**
+     * Keep only the first entry of every position, that is the last one in input order,
+     * and skip the positions whose last value is 'null': resetting a position of an empty
+     * matrix leaves it without a stored value.
+     */
+    private static <T extends Serializable> Iterator<MatrixEntry<T>> lastStoredValues(Iterator<Fun.Tuple2<Long, MatrixEntry<T>>> sorted) {
+        return new Iterator<MatrixEntry<T>>() {
+            private Fun.Tuple2<Long, MatrixEntry<T>> pending = sorted.hasNext() ? sorted.next() : null;
+            private MatrixEntry<T> next = advance();
+
+            private MatrixEntry<T> advance() {
+                while (pending != null) {
+                    MatrixEntry<T> last = pending.b;
+                    pending = null;
+                    while (sorted.hasNext() && pending == null) {
+                        Fun.Tuple2<Long, MatrixEntry<T>> t = sorted.next();
+                        if (t.b.getRow() != last.getRow() || t.b.getCol() != last.getCol())
+                            pending = t;
+                    }
+                    if (last.getValue() != null)
+                        return last;
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public MatrixEntry<T> next() {
+                if (next == null)
+                    throw new NoSuchElementException();
+                MatrixEntry<T> ret = next;
+                next = advance();
+                return ret;
+            }
+        };
     }
 
+    private void checkEntry(MatrixEntry<T> entry, long numRows, long numCols) {
+        if (entry == null)
+            throw new NullPointerException("The matrix entry is 'null'");
+        if (entry.getRow() < 0 || entry.getRow() >= numRows)
+            throw new IllegalArgumentException("The row index is not valid: " + entry.getRow());
+        if (entry.getCol() < 0 || entry.getCol() >= numCols)
+            throw new IllegalArgumentException("The column index is not valid: " + entry.getCol());
+    }
 
     @Override
     public void setDefaultValue(T value) {
+        flush();
         DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
-            Atomic.Var<T> val = db.getAtomicVar(getDefaultValueName());
-            val.set(value);
+            if (!db.exists(getDefaultValueName())) {
+                db.createAtomicVar(getDefaultValueName(), value, Serializer.JAVA);
+            } else {
+                Atomic.Var<T> val = db.getAtomicVar(getDefaultValueName());
+                val.set(value);
+            }
         });
     }
 
@@ -258,15 +651,32 @@ public class MapDBMatrix<T extends Serializable> implements Matrix<T> {
     }
 
     protected T getDefaultValue(DB db) {
+        if (!db.exists(getDefaultValueName()))
+            return null;
         Atomic.Var<T> val = db.getAtomicVar(getDefaultValueName());
         return val.get();
     }
 
     @Override
     public List<T> getRowValues(long row, long startCol, long endCol) {
-        return DBUtils.atomicGet(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
-            return getRowValues(db, row, startCol, endCol);
-        });
+        if (localCacheEnabled) {
+            synchronized (localCacheLock) {
+                MatrixLocalCache<T> cache = findLocalCache(row, row + 1, startCol, endCol);
+                if (cache != null) {
+                    checkCachedBlock(cache, row, row + 1, startCol, endCol);
+                    ArrayList<T> values = new ArrayList<>((int) (endCol - startCol));
+                    cache.getRowValues(row, startCol, endCol, values);
+                    return values;
+                }
+            }
+            flushLocalCaches(row, row + 1, startCol, endCol);
+        }
+        DB tx = storage.sm.provider.tx();
+        try {
+            return getRowValues(tx, row, startCol, endCol);
+        } finally {
+            tx.close();
+        }
     }
 
 
@@ -279,18 +689,187 @@ public class MapDBMatrix<T extends Serializable> implements Matrix<T> {
         long numCols = getNumCols(db);
         if (row < 0 || row >= numRows)
             throw new IllegalArgumentException("The row index is not valid: " + row);
-        ArrayList<T> values = new ArrayList<>();
-        for (long j = startCol; j < endCol; j++) {
-            values.add(getValue(db, row, j));
+        if (endCol > numCols)
+            throw new IllegalArgumentException("The column index is not valid: " + numCols);
+        ArrayList<T> values = new ArrayList<>((int) (endCol - startCol));
+        layout.getRowValues(db, row, startCol, endCol, getDefaultValue(db), values);
+        return values;
+    }
+
+    /**
+     * Get the values explicitly stored in a row in the columns [startCol, endCol), skipping
+     * the columns holding the default value. The stored values are read with a single
+     * ordered scan of the row, so the cost of the read depends on the number of stored
+     * values and not on the width of the range: this is the preferred way to read the
+     * rows of sparse matrices.
+     *
+     * @param row      The row index.
+     * @param startCol The first column to read.
+     * @param endCol   The column after the last one to read.
+     * @return The (column, value) pairs stored in the row, in column order.
+     */
+    public List<Pair<Long, T>> getStoredRowValues(long row, long startCol, long endCol) {
+        flushLocalCaches(row, row + 1, startCol, endCol);
+        DB tx = storage.sm.provider.tx();
+        try {
+            return getStoredRowValues(tx, row, startCol, endCol);
+        } finally {
+            tx.close();
         }
+    }
+
+    protected List<Pair<Long, T>> getStoredRowValues(DB db, long row, long startCol, long endCol) {
+        if (startCol < 0)
+            throw new IllegalArgumentException("The starting column is invalid: " + startCol);
+        if (startCol >= endCol)
+            throw new IllegalArgumentException("The starting column is greater equals to end column: startCol: " + startCol + ", endCol: " + endCol);
+        long numRows = getNumRows(db);
+        long numCols = getNumCols(db);
+        if (row < 0 || row >= numRows)
+            throw new IllegalArgumentException("The row index is not valid: " + row);
+        if (endCol > numCols)
+            throw new IllegalArgumentException("The column index is not valid: " + numCols);
+        ArrayList<Pair<Long, T>> values = new ArrayList<>();
+        layout.getStoredRowValues(db, row, startCol, endCol, values);
+        return values;
+    }
+
+    /**
+     * Get the values explicitly stored in a column in the rows [startRow, endRow), skipping
+     * the rows holding the default value.
+     *
+     * @param col      The column index.
+     * @param startRow The first row to read.
+     * @param endRow   The row after the last one to read.
+     * @return The (row, value) pairs stored in the column, in row order.
+     */
+    public List<Pair<Long, T>> getStoredColValues(long col, long startRow, long endRow) {
+        flushLocalCaches(startRow, endRow, col, col + 1);
+        DB tx = storage.sm.provider.tx();
+        try {
+            return getStoredColValues(tx, col, startRow, endRow);
+        } finally {
+            tx.close();
+        }
+    }
+
+    protected List<Pair<Long, T>> getStoredColValues(DB db, long col, long startRow, long endRow) {
+        if (startRow < 0)
+            throw new IllegalArgumentException("The starting row is invalid: " + startRow);
+        if (startRow >= endRow)
+            throw new IllegalArgumentException("The starting row is greater equals to end row: startRow: " + startRow + ", endRow: " + endRow);
+        long numRows = getNumRows(db);
+        long numCols = getNumCols(db);
+        if (col < 0 || col >= numCols)
+            throw new IllegalArgumentException("The column index is not valid: " + col);
+        if (endRow > numRows)
+            throw new IllegalArgumentException("The row index is not valid: " + numRows);
+        ArrayList<Pair<Long, T>> values = new ArrayList<>();
+        if (columnIndex.exists(db))
+            columnIndex.getStoredColValues(db, col, startRow, endRow, values);
+        else
+            layout.getStoredColValues(db, col, startRow, endRow, values);
+        return values;
+    }
+
+    /**
+     * Get an iterator over the values explicitly stored in the matrix, as (row, column,
+     * value) entries in row-major order. Positions holding the default value are skipped.
+     * The iterator reads the values from a single MapDB transaction, so it sees a
+     * consistent snapshot of the matrix. The transaction is closed when the iterator is
+     * exhausted or when {@link MapDBMatrixIterator#close()} is called.
+     *
+     * @return The iterator over the stored values.
+     */
+    public MapDBMatrixIterator<T> nonZeroIterator() {
+        flush();
+        return new MapDBMatrixIterator<>(this);
+    }
+
+    /**
+     * Get a provider of iterators over the values explicitly stored in the matrix. Every
+     * iterator is obtained with {@link #nonZeroIterator()}.
+     *
+     * @return The provider of iterators over the stored values.
+     */
+    public ImmutableDataSourceIteratorProvider<MatrixEntry<T>> asRowIteratorProvider() {
+        return this::nonZeroIterator;
+    }
+
+    /**
+     * Get the values in the block [startRow, endRow) x [startCol, endCol), read from a
+     * single transaction. With the {@link MatrixStorageMode#DENSE_TILES} storage mode,
+     * every tile overlapping the block is read and decoded once.
+     *
+     * @param startRow The first row to read.
+     * @param endRow   The row after the last one to read.
+     * @param startCol The first column to read.
+     * @param endCol   The column after the last one to read.
+     * @return The values of every row of the block.
+     */
+    public List<List<T>> getBlockValues(long startRow, long endRow, long startCol, long endCol) {
+        if (localCacheEnabled) {
+            synchronized (localCacheLock) {
+                MatrixLocalCache<T> cache = findLocalCache(startRow, endRow, startCol, endCol);
+                if (cache != null) {
+                    checkCachedBlock(cache, startRow, endRow, startCol, endCol);
+                    List<List<T>> values = new ArrayList<>((int) (endRow - startRow));
+                    for (long row = startRow; row < endRow; row++) {
+                        ArrayList<T> rowValues = new ArrayList<>((int) (endCol - startCol));
+                        cache.getRowValues(row, startCol, endCol, rowValues);
+                        values.add(rowValues);
+                    }
+                    return values;
+                }
+            }
+            flushLocalCaches(startRow, endRow, startCol, endCol);
+        }
+        DB tx = storage.sm.provider.tx();
+        try {
+            return getBlockValues(tx, startRow, endRow, startCol, endCol);
+        } finally {
+            tx.close();
+        }
+    }
+
+    protected List<List<T>> getBlockValues(DB db, long startRow, long endRow, long startCol, long endCol) {
+        if (startRow < 0 || startCol < 0)
+            throw new IllegalArgumentException("The starting position is invalid: (" + startRow + "," + startCol + ")");
+        if (startRow >= endRow || startCol >= endCol)
+            throw new IllegalArgumentException("The block is empty: rows [" + startRow + "," + endRow + "), cols [" + startCol + "," + endCol + ")");
+        long numRows = getNumRows(db);
+        long numCols = getNumCols(db);
+        if (endRow > numRows)
+            throw new IllegalArgumentException("The row index is not valid: " + numRows);
+        if (endCol > numCols)
+            throw new IllegalArgumentException("The column index is not valid: " + numCols);
+        List<List<T>> values = new ArrayList<>((int) (endRow - startRow));
+        for (long row = startRow; row < endRow; row++)
+            values.add(new ArrayList<>((int) (endCol - startCol)));
+        layout.getBlockValues(db, startRow, endRow, startCol, endCol, getDefaultValue(db), values);
         return values;
     }
 
     @Override
     public List<T> getColValues(long col, long startRow, long endRow) {
-        return DBUtils.atomicGet(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
-            return getColValues(db, col, startRow, endRow);
-        });
+        if (localCacheEnabled) {
+            synchronized (localCacheLock) {
+                MatrixLocalCache<T> cache = findLocalCache(startRow, endRow, col, col + 1);
+                if (cache != null) {
+                    checkCachedBlock(cache, startRow, endRow, col, col + 1);
+                    ArrayList<T> values = new ArrayList<>((int) (endRow - startRow));
+                    cache.getColValues(col, startRow, endRow, values);
+                    return values;
+                }
+            }
+            flushLocalCaches(startRow, endRow, col, col + 1);
+        }
+        DB tx = storage.sm.provider.tx();
+        try {
+            return getColValues(tx, col, startRow, endRow);
+        } finally {
+            tx.close();
+        }
     }
 
     protected List<T> getColValues(DB db, long col, long startRow, long endRow) {
@@ -302,38 +881,250 @@ public class MapDBMatrix<T extends Serializable> implements Matrix<T> {
         long numCols = getNumCols(db);
         if (col < 0 || col >= numCols)
             throw new IllegalArgumentException("The column index is not valid: " + col);
-        ArrayList<T> values = new ArrayList<>();
-        for (long j = startRow; j < endRow; j++) {
-            values.add(getValue(db, j, col));
-        }
+        if (endRow > numRows)
+            throw new IllegalArgumentException("The row index is not valid: " + numRows);
+        ArrayList<T> values = new ArrayList<>((int) (endRow - startRow));
+        if (columnIndex.exists(db))
+            columnIndex.getColValues(db, col, startRow, endRow, getDefaultValue(db), values);
+        else
+            layout.getColValues(db, col, startRow, endRow, getDefaultValue(db), values);
         return values;
     }
 
+    /**
+     * Create the column index of the matrix, if it does not exist yet, indexing the
+     * values currently stored. The index keeps a copy of the stored values ordered by
+     * (column, row), so {@link #getColValues(long, long, long)} and
+     * {@link #getStoredColValues(long, long, long)} read a column with a single range
+     * scan. From now on the index is updated in the same transactions changing the
+     * matrix values, at the cost of a second write for every stored value.
+     */
+    public void createColumnIndex() {
+        DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+            if (!columnIndex.exists(db))
+                columnIndex.build(db, layout, getValueSerializer());
+        });
+    }
+
+    /**
+     * Remove the column index of the matrix, if it exists.
+     */
+    public void removeColumnIndex() {
+        DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+            columnIndex.drop(db);
+        });
+    }
+
+    /**
+     * Indicate if the matrix has a column index.
+     *
+     * @return True if the index exists, false otherwise.
+     */
+    public boolean hasColumnIndex() {
+        DB tx = storage.sm.provider.tx();
+        try {
+            return hasColumnIndex(tx);
+        } finally {
+            tx.close();
+        }
+    }
+
+    protected boolean hasColumnIndex(DB db) {
+        return columnIndex.exists(db);
+    }
+
+    /**
+     * Enable or disable the local cache of the rectangle [fromRowIndex, toRowIndex) x
+     * [fromColumnIndex, toColumnIndex). The values of an enabled rectangle are loaded with
+     * a single block read on the first access and then read from memory. The values
+     * written in the rectangle are kept in memory until {@link #flush()} is called, when
+     * the values written in all the rectangles are stored in a single transaction.
+     * <p>
+     * Several rectangles can be enabled at the same time: any rectangle overlapping the
+     * new one is flushed and disabled, and the least recently used rectangles are
+     * flushed and evicted when the values cached would exceed the limit set with
+     * {@link AbstractMapDBStorageManagerProvider#setMatrixLocalCacheSize(int)}. Disabling
+     * a rectangle flushes and disables all the rectangles overlapping it.
+     * <p>
+     * The cached values are a snapshot of the matrix: changes made by other clients become
+     * visible only after the next flush. Operations changing the matrix size or the default
+     * value flush the caches before being executed.
+     *
+     * @param enabled         True to enable the cache, false to disable it.
+     * @param fromRowIndex    The first row to cache.
+     * @param toRowIndex      The row after the last one to cache.
+     * @param fromColumnIndex The first column to cache.
+     * @param toColumnIndex   The column after the last one to cache.
+     */
     @Override
     public void enableLocalCache(boolean enabled, long fromRowIndex, long toRowIndex, long fromColumnIndex, long toColumnIndex) {
-
+        MatrixLocalCache<T> newCache = null;
+        if (enabled) {
+            newCache = new MatrixLocalCache<>(fromRowIndex, toRowIndex, fromColumnIndex, toColumnIndex);
+            int maxSize = storage.sm.provider.getMatrixLocalCacheSize();
+            if (newCache.size() > maxSize)
+                throw new IllegalArgumentException("The rectangle to cache is bigger than " + maxSize + " values");
+        }
+        synchronized (localCacheLock) {
+            List<MatrixLocalCache<T>> removed = new ArrayList<>();
+            // Overlapping rectangles would hold different copies of the same values.
+            for (MatrixLocalCache<T> cache : localCaches) {
+                if (cache.overlaps(fromRowIndex, toRowIndex, fromColumnIndex, toColumnIndex))
+                    removed.add(cache);
+            }
+            localCaches.removeAll(removed);
+            if (newCache != null) {
+                long cachedSize = newCache.size();
+                for (MatrixLocalCache<T> cache : localCaches)
+                    cachedSize += cache.size();
+                while (cachedSize > storage.sm.provider.getMatrixLocalCacheSize()) {
+                    MatrixLocalCache<T> evicted = localCaches.remove(localCaches.size() - 1);
+                    cachedSize -= evicted.size();
+                    removed.add(evicted);
+                }
+                localCaches.add(0, newCache);
+            }
+            flushLocalCaches(removed);
+            localCacheEnabled = !localCaches.isEmpty();
+        }
     }
 
     @Override
     public boolean isLocalCacheEnabled(long row, long col) {
-        return false;
+        if (!localCacheEnabled)
+            return false;
+        synchronized (localCacheLock) {
+            for (MatrixLocalCache<T> cache : localCaches) {
+                if (cache.contains(row, col))
+                    return true;
+            }
+            return false;
+        }
     }
 
+    /**
+     * Store the values written in all the local caches in a single transaction. The
+     * caches are then reloaded on the next access. Does nothing if the local cache is
+     * disabled.
+     */
     @Override
     public void flush() {
+        if (!localCacheEnabled)
+            return;
+        synchronized (localCacheLock) {
+            flushLocalCaches(localCaches);
+        }
     }
 
-    public static void removeMatrix(DB db, long storageID, long matrixID) {
-        BTreeMap<Long, Long> map = db.getTreeMap(getInternalMapRowName(storageID, matrixID));
-        Iterator<Long> keys = map.keySet().iterator();
-        while (keys.hasNext()) {
-            long key = keys.next();
-            long rowID = map.get(key);
-            db.delete(getInternalMapColName(storageID, matrixID, rowID));
+    /**
+     * Flush the local caches overlapping the block [startRow, endRow) x [startCol, endCol).
+     * Used before accessing directly the stored values of the block.
+     *
+     * @param startRow The first row of the block.
+     * @param endRow   The row after the last one of the block.
+     * @param startCol The first column of the block.
+     * @param endCol   The column after the last one of the block.
+     */
+    protected void flushLocalCaches(long startRow, long endRow, long startCol, long endCol) {
+        if (!localCacheEnabled)
+            return;
+        synchronized (localCacheLock) {
+            List<MatrixLocalCache<T>> overlapping = new ArrayList<>();
+            for (MatrixLocalCache<T> cache : localCaches) {
+                if (cache.overlaps(startRow, endRow, startCol, endCol))
+                    overlapping.add(cache);
+            }
+            flushLocalCaches(overlapping);
+        }
+    }
+
+    /**
+     * Get the local cache containing the whole given block, marking it as the most
+     * recently used one, and load it if needed. Must be called holding "localCacheLock".
+     *
+     * @return The cache found or 'null' if no cache contains the block.
+     */
+    private MatrixLocalCache<T> findLocalCache(long startRow, long endRow, long startCol, long endCol) {
+        for (int i = 0; i < localCaches.size(); i++) {
+            MatrixLocalCache<T> cache = localCaches.get(i);
+            if (cache.contains(startRow, endRow, startCol, endCol)) {
+                if (i > 0) {
+                    localCaches.remove(i);
+                    localCaches.add(0, cache);
+                }
+                loadLocalCache(cache);
+                return cache;
+            }
+        }
+        return null;
+    }
+
+    private void checkCachedBlock(MatrixLocalCache<T> cache, long startRow, long endRow, long startCol, long endCol) {
+        if (startRow >= endRow || startCol >= endCol)
+            throw new IllegalArgumentException("The block is empty: rows [" + startRow + "," + endRow + "), cols [" + startCol + "," + endCol + ")");
+        if (endRow > cache.getNumRows())
+            throw new IllegalArgumentException("The row index is not valid: " + (endRow - 1));
+        if (endCol > cache.getNumCols())
+            throw new IllegalArgumentException("The column index is not valid: " + (endCol - 1));
+    }
+
+    private void loadLocalCache(MatrixLocalCache<T> cache) {
+        if (cache.isLoaded())
+            return;
+        DB tx = storage.sm.provider.tx();
+        try {
+            long numRows = getNumRows(tx);
+            long numCols = getNumCols(tx);
+            long toRow = Math.min(cache.getToRow(), numRows);
+            long toCol = Math.min(cache.getToCol(), numCols);
+            List<List<T>> stored = new ArrayList<>();
+            if (cache.getFromRow() < toRow && cache.getFromCol() < toCol) {
+                for (long row = cache.getFromRow(); row < toRow; row++)
+                    stored.add(new ArrayList<>((int) (toCol - cache.getFromCol())));
+                layout.getBlockValues(tx, cache.getFromRow(), toRow, cache.getFromCol(), toCol, null, stored);
+            }
+            cache.load(numRows, numCols, getDefaultValue(tx), stored);
+        } finally {
+            tx.close();
+        }
+    }
+
+    /**
+     * Store the values written in the given caches in a single transaction and invalidate
+     * the caches. Must be called holding "localCacheLock".
+     */
+    private void flushLocalCaches(List<MatrixLocalCache<T>> caches) {
+        boolean dirty = false;
+        for (MatrixLocalCache<T> cache : caches)
+            dirty |= cache.isDirty();
+        if (dirty) {
+            DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+                // Values outside the current size belong to a matrix shrunk by another client.
+                long numRows = getNumRows(db);
+                long numCols = getNumCols(db);
+                for (MatrixLocalCache<T> cache : caches) {
+                    BitSet positions = cache.getDirtyPositions();
+                    for (int pos = positions.nextSetBit(0); pos >= 0; pos = positions.nextSetBit(pos + 1)) {
+                        long row = cache.rowOf(pos);
+                        long col = cache.colOf(pos);
+                        if (row < numRows && col < numCols)
+                            storeValue(db, row, col, cache.getStored(pos));
+                    }
+                }
+            });
         }
-        db.delete(getInternalMapRowName(storageID, matrixID));
+        for (MatrixLocalCache<T> cache : caches)
+            cache.invalidate();
+    }
+
+    @SuppressWarnings("unchecked")
+    public static void removeMatrix(DB db, long storageID, long matrixID) {
+        MatrixLayout<Serializable> layout = openLayout(db, storageID, matrixID, (Serializer) Serializer.JAVA);
+        if (layout != null)
+            layout.removeMaps(db);
         db.delete(getInternalNumRowsStored(storageID, matrixID));
-        db.createAtomicLong(getInternalNumColsStored(storageID, matrixID), 1);
-        db.createAtomicLong(nextAvailableRowIDName(storageID, matrixID), 0);
+        db.delete(getInternalNumColsStored(storageID, matrixID));
+        db.delete(getDefaultValueName(storageID, matrixID));
+        new MatrixColumnIndex<>(getColumnIndexName(storageID, matrixID)).drop(db);
     }
 }
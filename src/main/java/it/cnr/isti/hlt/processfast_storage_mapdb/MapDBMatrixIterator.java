@@ -0,0 +1,85 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import org.mapdb.DB;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An iterator over the values explicitly stored in a {@link MapDBMatrix}, in row-major
+ * order. All the values are read from a single MapDB transaction with a cursor walking
+ * the matrix collections, so the iterator sees a consistent snapshot of the matrix and
+ * its cost depends on the number of stored values and not on the matrix size.
+ * <p>
+ * The transaction is closed when the iterator is exhausted. Call {@link #close()} to
+ * release it if the iteration is stopped before the end.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+public class MapDBMatrixIterator<T extends Serializable> implements Iterator<MatrixEntry<T>>, AutoCloseable {
+
+    private DB tx;
+    private final Iterator<MatrixEntry<T>> stored;
+
+    MapDBMatrixIterator(MapDBMatrix<T> matrix) {
+        if (matrix == null)
+            throw new NullPointerException("The matrix is 'null'");
+        this.tx = matrix.storage.sm.provider.tx();
+        try {
+            this.stored = matrix.layout.storedValuesIterator(tx);
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+        if (!stored.hasNext())
+            close();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return tx != null && stored.hasNext();
+    }
+
+    @Override
+    public MatrixEntry<T> next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        MatrixEntry<T> entry = stored.next();
+        if (!stored.hasNext())
+            close();
+        return entry;
+    }
+
+    /**
+     * Close the transaction used by the iterator. After this call the iterator
+     * has no more values.
+     */
+    @Override
+    public void close() {
+        if (tx != null) {
+            tx.close();
+            tx = null;
+        }
+    }
+}
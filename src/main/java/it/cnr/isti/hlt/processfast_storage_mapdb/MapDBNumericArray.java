@@ -0,0 +1,727 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import org.mapdb.DB;
+import org.mapdb.Fun;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.BinaryOperator;
+import java.util.function.IntToLongFunction;
+import java.util.function.Supplier;
+import java.util.stream.LongStream;
+
+/**
+ * An array of Double, Float, Long or Integer values. The values are stored in chunks
+ * of fixed-width binary values, and the array offers accessors working directly on
+ * primitive values, so bulk reads and writes do not box the array values. Only the
+ * accessors of the primitive type of the array values can be used: for example an
+ * array of Long values is read with {@link #getLong(long)} and {@link #getLongs(long, long, long[])}.
+ * <p>
+ * Reading through the primitive accessors an index without a stored value returns the
+ * default value of the array or 0 if the default value is 'null'.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+public class MapDBNumericArray<T extends Number & Serializable> extends MapDBArray<T> {
+
+    /**
+     * The chunk size used by numeric arrays when the storage manager provider does not
+     * specify one.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1024;
+
+    /**
+     * The number of values aggregated by every task of a parallel aggregation.
+     */
+    static final long PARALLEL_AGGREGATION_RANGE_SIZE = 1 << 16;
+
+    /**
+     * A consumer of the raw bits of the values read from the array.
+     */
+    protected interface BitsConsumer {
+        /**
+         * @param position The position of the value inside the range read.
+         * @param bits     The raw bits of the value.
+         */
+        void accept(int position, long bits);
+    }
+
+    /**
+     * An accumulator of the values read by an aggregation.
+     */
+    interface ValueAccumulator {
+        /**
+         * @param bits   The raw bits of the value read.
+         * @param count  The number of times the value has been read.
+         * @param stored True if the value is stored, false if it has been read from
+         *               indexes without a stored value, holding the default value.
+         */
+        void accept(long bits, long count, boolean stored);
+    }
+
+    /**
+     * Indicate if the array values are stored in primitive chunks. This is always true
+     * except for arrays created with a different layout before being opened as numeric
+     * arrays, which are accessed through the generic (boxing) path.
+     */
+    private final boolean primitiveChunks;
+
+    private final PrimitiveArrayChunk.Type type;
+
+    /**
+     * Create the array object giving access to the specified array.
+     *
+     * @param storage    The storage containing the array.
+     * @param name       The name of the array.
+     * @param arrayID    The ID of the array.
+     * @param valueClass The class of the array values: Double, Float, Long or Integer.
+     */
+    public MapDBNumericArray(MapDBStorage storage, String name, long arrayID, Class<T> valueClass) {
+        super(storage, name, arrayID, valueClass);
+        this.type = getPrimitiveType(valueClass);
+        this.primitiveChunks = layout instanceof ChunkedArrayLayout &&
+                ((ChunkedArrayLayout<T>) layout).getCodec().unwrap() instanceof PrimitiveArrayChunk.ChunkSerializer;
+    }
+
+    private static PrimitiveArrayChunk.Type getPrimitiveType(Class<?> valueClass) {
+        PrimitiveArrayChunk.Type type = PrimitiveArrayChunk.Type.forClass(valueClass);
+        if (type == null)
+            throw new IllegalArgumentException("The value class is not Double, Float, Long or Integer: " + valueClass);
+        return type;
+    }
+
+    private void checkPrimitiveType(PrimitiveArrayChunk.Type expected) {
+        if (type != expected)
+            throw new IllegalStateException("The array " + getName() + " holds " + type + " values, not " + expected);
+    }
+
+    @Override
+    protected int getNewArrayChunkSize() {
+        int chunkSize = super.getNewArrayChunkSize();
+        return chunkSize > 0 ? chunkSize : DEFAULT_CHUNK_SIZE;
+    }
+
+    @Override
+    protected ArrayLayout<T> createNewLayout(int chunkSize) {
+        // Called by the MapDBArray constructor, before the type is set.
+        PrimitiveArrayChunk.Type type = getPrimitiveType(getValueClass());
+        return new ChunkedArrayLayout<>(getInternalMapName(), chunkSize, newChunkCodec(new PrimitiveArrayChunk.ChunkSerializer<T>(type)));
+    }
+
+    private long toBits(T value) {
+        if (value == null)
+            return 0;
+        return type.toBits(value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private T fromBits(long bits) {
+        return (T) type.fromBits(bits);
+    }
+
+    /**
+     * Get the raw bits of the value at the given index.
+     *
+     * @param index The index of the value.
+     * @return The raw bits of the value.
+     */
+    protected long getBits(long index) {
+        if (isLocalCacheEnabled(index))
+            return toBits(getValue(index));
+        return DBUtils.atomicGet(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+            checkIndex(db, index);
+            return getBits(db, index);
+        });
+    }
+
+    protected long getBits(DB db, long index) {
+        if (primitiveChunks) {
+            ChunkedArrayLayout<T> chunked = (ChunkedArrayLayout<T>) layout;
+            PrimitiveArrayChunk<T> chunk = (PrimitiveArrayChunk<T>) chunked.getChunk(db, index);
+            int offset = (int) (index % chunked.getChunkSize());
+            if (chunk != null && chunk.isStored(offset))
+                return chunk.getBits(offset);
+            return toBits(getDefaultValue(db));
+        }
+
+        T v = layout.get(db, index);
+        return toBits(v != null ? v : getDefaultValue(db));
+    }
+
+    /**
+     * Read the raw bits of the values in the range [fromIndex, toIndex). The range is
+     * truncated to the current array size.
+     *
+     * @param fromIndex  The first index to read.
+     * @param toIndex    The index after the last one to read.
+     * @param destLength The maximum number of values the consumer accepts.
+     * @param consumer   The consumer of the values read.
+     * @return The number of values read.
+     */
+    protected int readBits(long fromIndex, long toIndex, int destLength, BitsConsumer consumer) {
+        if (fromIndex < 0)
+            throw new IllegalArgumentException("The fromIndex value is less than 0");
+        flushLocalCache(fromIndex, toIndex);
+        if (fromIndex >= toIndex)
+            return 0;
+
+        return DBUtils.atomicGet(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+            long to = Math.min(toIndex, size(db));
+            if (fromIndex >= to)
+                return 0;
+            if (to - fromIndex > destLength)
+                throw new IllegalArgumentException("The destination can not hold " + (to - fromIndex) + " values");
+
+            int numValues = (int) (to - fromIndex);
+            long defaultBits = toBits(getDefaultValue(db));
+            if (primitiveChunks) {
+                for (int i = 0; i < numValues; i++)
+                    consumer.accept(i, defaultBits);
+                ((ChunkedArrayLayout<T>) layout).visitChunks(db, fromIndex, fromIndex + numValues, (chunkStart, chunk, fromOffset, toOffset) -> {
+                    PrimitiveArrayChunk<T> c = (PrimitiveArrayChunk<T>) chunk;
+                    int pos = (int) (chunkStart + fromOffset - fromIndex);
+                    for (int i = fromOffset; i < toOffset; i++, pos++) {
+                        if (c.isStored(i))
+                            consumer.accept(pos, c.getBits(i));
+                    }
+                });
+            } else {
+                List<T> values = new ArrayList<>(numValues);
+                layout.getValues(db, fromIndex, fromIndex + numValues, null, values);
+                for (int i = 0; i < numValues; i++) {
+                    T v = values.get(i);
+                    consumer.accept(i, v != null ? toBits(v) : defaultBits);
+                }
+            }
+            return numValues;
+        });
+    }
+
+    /**
+     * Set the raw bits of the value at the given index.
+     *
+     * @param index The index of the value.
+     * @param bits  The raw bits of the value.
+     */
+    protected void setBits(long index, long bits) {
+        if (isLocalCacheEnabled(index)) {
+            setValue(index, fromBits(bits));
+            return;
+        }
+        writeBits(index, 1, pos -> bits);
+    }
+
+    /**
+     * Write the raw bits of "numValues" consecutive values, starting from the given index.
+     * The range written must be inside the current array size.
+     *
+     * @param fromIndex The index of the first value to write.
+     * @param numValues The number of values to write.
+     * @param source    The function giving the raw bits of the value at each position of the range.
+     */
+    protected void writeBits(long fromIndex, int numValues, IntToLongFunction source) {
+        flushLocalCache(fromIndex, fromIndex + numValues);
+        if (numValues == 0)
+            return;
+
+        DBUtils.atomic(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+            long s = size(db);
+            if (fromIndex < 0 || fromIndex + numValues > s)
+                throw new IllegalArgumentException("The range [" + fromIndex + "," + (fromIndex + numValues) + ") is not valid. Valid range values: [" + 0 + "," + s + "]");
+            if (primitiveChunks && !hasValueIndex(db)) {
+                ((ChunkedArrayLayout<T>) layout).updateChunks(db, fromIndex, fromIndex + numValues, (chunkStart, chunk, fromOffset, toOffset) -> {
+                    PrimitiveArrayChunk<T> c = (PrimitiveArrayChunk<T>) chunk;
+                    int pos = (int) (chunkStart + fromOffset - fromIndex);
+                    for (int i = fromOffset; i < toOffset; i++, pos++)
+                        c.setBits(i, source.applyAsLong(pos));
+                });
+            } else {
+                List<T> values = new ArrayList<>(numValues);
+                for (int i = 0; i < numValues; i++)
+                    values.add(fromBits(source.applyAsLong(i)));
+                setValues(db, fromIndex, values);
+            }
+        });
+    }
+
+    /**
+     * Get the value at the given index of an array of Double values.
+     *
+     * @param index The index of the value.
+     * @return The value at the given index.
+     * @throws IllegalStateException Raised if the array values are not Double.
+     */
+    public double getDouble(long index) {
+        checkPrimitiveType(PrimitiveArrayChunk.Type.DOUBLE);
+        return Double.longBitsToDouble(getBits(index));
+    }
+
+    /**
+     * Read the values in the range [fromIndex, toIndex) of an array of Double values into
+     * "dest", starting from position 0. The range is truncated to the current array size.
+     *
+     * @param fromIndex The first index to read.
+     * @param toIndex   The index after the last one to read.
+     * @param dest      The destination of the values read.
+     * @return The number of values read.
+     * @throws IllegalStateException Raised if the array values are not Double.
+     */
+    public int getDoubles(long fromIndex, long toIndex, double[] dest) {
+        if (dest == null)
+            throw new NullPointerException("The destination array is 'null'");
+        checkPrimitiveType(PrimitiveArrayChunk.Type.DOUBLE);
+        return readBits(fromIndex, toIndex, dest.length, (pos, bits) -> dest[pos] = Double.longBitsToDouble(bits));
+    }
+
+    /**
+     * Set the value at the given index of an array of Double values.
+     *
+     * @param index The index of the value.
+     * @param value The value to set.
+     * @throws IllegalStateException Raised if the array values are not Double.
+     */
+    public void setDouble(long index, double value) {
+        checkPrimitiveType(PrimitiveArrayChunk.Type.DOUBLE);
+        setBits(index, Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Set the values of an array of Double values starting from the given index. The
+     * range of indexes written must be inside the current array size.
+     *
+     * @param fromIndex The index of the first value to write.
+     * @param values    The values to write.
+     * @throws IllegalStateException Raised if the array values are not Double.
+     */
+    public void setDoubles(long fromIndex, double[] values) {
+        if (values == null)
+            throw new NullPointerException("The values array is 'null'");
+        checkPrimitiveType(PrimitiveArrayChunk.Type.DOUBLE);
+        writeBits(fromIndex, values.length, pos -> Double.doubleToRawLongBits(values[pos]));
+    }
+
+    /**
+     * Get the value at the given index of an array of Float values. See {@link #getDouble(long)}.
+     */
+    public float getFloat(long index) {
+        checkPrimitiveType(PrimitiveArrayChunk.Type.FLOAT);
+        return Float.intBitsToFloat((int) getBits(index));
+    }
+
+    /**
+     * Read the values of an array of Float values. See {@link #getDoubles(long, long, double[])}.
+     */
+    public int getFloats(long fromIndex, long toIndex, float[] dest) {
+        if (dest == null)
+            throw new NullPointerException("The destination array is 'null'");
+        checkPrimitiveType(PrimitiveArrayChunk.Type.FLOAT);
+        return readBits(fromIndex, toIndex, dest.length, (pos, bits) -> dest[pos] = Float.intBitsToFloat((int) bits));
+    }
+
+    /**
+     * Set the value at the given index of an array of Float values. See {@link #setDouble(long, double)}.
+     */
+    public void setFloat(long index, float value) {
+        checkPrimitiveType(PrimitiveArrayChunk.Type.FLOAT);
+        setBits(index, Float.floatToRawIntBits(value));
+    }
+
+    /**
+     * Set the values of an array of Float values. See {@link #setDoubles(long, double[])}.
+     */
+    public void setFloats(long fromIndex, float[] values) {
+        if (values == null)
+            throw new NullPointerException("The values array is 'null'");
+        checkPrimitiveType(PrimitiveArrayChunk.Type.FLOAT);
+        writeBits(fromIndex, values.length, pos -> Float.floatToRawIntBits(values[pos]));
+    }
+
+    /**
+     * Get the value at the given index of an array of Long values. See {@link #getDouble(long)}.
+     */
+    public long getLong(long index) {
+        checkPrimitiveType(PrimitiveArrayChunk.Type.LONG);
+        return getBits(index);
+    }
+
+    /**
+     * Read the values of an array of Long values. See {@link #getDoubles(long, long, double[])}.
+     */
+    public int getLongs(long fromIndex, long toIndex, long[] dest) {
+        if (dest == null)
+            throw new NullPointerException("The destination array is 'null'");
+        checkPrimitiveType(PrimitiveArrayChunk.Type.LONG);
+        return readBits(fromIndex, toIndex, dest.length, (pos, bits) -> dest[pos] = bits);
+    }
+
+    /**
+     * Set the value at the given index of an array of Long values. See {@link #setDouble(long, double)}.
+     */
+    public void setLong(long index, long value) {
+        checkPrimitiveType(PrimitiveArrayChunk.Type.LONG);
+        setBits(index, value);
+    }
+
+    /**
+     * Set the values of an array of Long values. See {@link #setDoubles(long, double[])}.
+     */
+    public void setLongs(long fromIndex, long[] values) {
+        if (values == null)
+            throw new NullPointerException("The values array is 'null'");
+        checkPrimitiveType(PrimitiveArrayChunk.Type.LONG);
+        writeBits(fromIndex, values.length, pos -> values[pos]);
+    }
+
+    /**
+     * Get the value at the given index of an array of Integer values. See {@link #getDouble(long)}.
+     */
+    public int getInt(long index) {
+        checkPrimitiveType(PrimitiveArrayChunk.Type.INT);
+        return (int) getBits(index);
+    }
+
+    /**
+     * Read the values of an array of Integer values. See {@link #getDoubles(long, long, double[])}.
+     */
+    public int getInts(long fromIndex, long toIndex, int[] dest) {
+        if (dest == null)
+            throw new NullPointerException("The destination array is 'null'");
+        checkPrimitiveType(PrimitiveArrayChunk.Type.INT);
+        return readBits(fromIndex, toIndex, dest.length, (pos, bits) -> dest[pos] = (int) bits);
+    }
+
+    /**
+     * Set the value at the given index of an array of Integer values. See {@link #setDouble(long, double)}.
+     */
+    public void setInt(long index, int value) {
+        checkPrimitiveType(PrimitiveArrayChunk.Type.INT);
+        setBits(index, value);
+    }
+
+    /**
+     * Set the values of an array of Integer values. See {@link #setDoubles(long, double[])}.
+     */
+    public void setInts(long fromIndex, int[] values) {
+        if (values == null)
+            throw new NullPointerException("The values array is 'null'");
+        checkPrimitiveType(PrimitiveArrayChunk.Type.INT);
+        writeBits(fromIndex, values.length, pos -> values[pos]);
+    }
+
+    @Override
+    protected byte getSnapshotKind() {
+        return (byte) (1 + type.ordinal());
+    }
+
+    /**
+     * Write the fixed-width raw bits of the values in the range [0, size), including
+     * the indexes holding the default value.
+     */
+    @Override
+    protected void writeSnapshotValues(DB db, long size, DataOutput out) throws IOException {
+        long defaultBits = toBits(getDefaultValue(db));
+        long[] next = {0};
+        if (primitiveChunks) {
+            try {
+                ((ChunkedArrayLayout<T>) layout).visitChunks(db, 0, size, (chunkStart, chunk, fromOffset, toOffset) -> {
+                    PrimitiveArrayChunk<T> c = (PrimitiveArrayChunk<T>) chunk;
+                    try {
+                        for (; next[0] < chunkStart + fromOffset; next[0]++)
+                            type.write(out, defaultBits);
+                        for (int i = fromOffset; i < toOffset; i++)
+                            type.write(out, c.isStored(i) ? c.getBits(i) : defaultBits);
+                        next[0] = chunkStart + toOffset;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        } else {
+            Iterator<Fun.Tuple2<Long, T>> stored = layout.storedValuesIterator(db, 0, size);
+            while (stored.hasNext()) {
+                Fun.Tuple2<Long, T> v = stored.next();
+                for (; next[0] < v.a; next[0]++)
+                    type.write(out, defaultBits);
+                type.write(out, toBits(v.b));
+                next[0] = v.a + 1;
+            }
+        }
+        for (; next[0] < size; next[0]++)
+            type.write(out, defaultBits);
+    }
+
+    /**
+     * Load the fixed-width values of a snapshot file. With primitive chunks, the chunks
+     * are filled directly with the raw bits read from the file, in descending index
+     * order, so the MapDB data pump does not need to presort them.
+     */
+    @Override
+    protected void loadSnapshotValues(DB db, ArraySnapshotFile file) {
+        int width = type.width();
+        long size = file.getSize();
+        if (!primitiveChunks) {
+            layout.bulkLoad(db, new Iterator<Fun.Tuple2<Long, T>>() {
+                private long index = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return index < size;
+                }
+
+                @Override
+                public Fun.Tuple2<Long, T> next() {
+                    if (index >= size)
+                        throw new NoSuchElementException();
+                    T value = fromBits(file.readBits(index, width, false));
+                    return Fun.t2(index++, value);
+                }
+            }, false);
+            return;
+        }
+
+        ChunkedArrayLayout<T> chunked = (ChunkedArrayLayout<T>) layout;
+        int chunkSize = chunked.getChunkSize();
+        chunked.bulkLoadChunks(db, new Iterator<Fun.Tuple2<Long, ArrayChunk<T>>>() {
+            private long key = (size + chunkSize - 1) / chunkSize - 1;
+
+            @Override
+            public boolean hasNext() {
+                return key >= 0;
+            }
+
+            @Override
+            public Fun.Tuple2<Long, ArrayChunk<T>> next() {
+                if (key < 0)
+                    throw new NoSuchElementException();
+                long start = key * chunkSize;
+                long end = Math.min(size, start + chunkSize);
+                PrimitiveArrayChunk<T> chunk = (PrimitiveArrayChunk<T>) chunked.getCodec().newChunk(chunkSize);
+                for (long i = end - 1; i >= start; i--)
+                    chunk.setBits((int) (i - start), file.readBits(i, width, true));
+                return Fun.t2(key--, chunk);
+            }
+        }, true);
+    }
+
+    /**
+     * Get the statistics of the values in the range [fromIndex, toIndex), computed in a
+     * single read transaction. The range is truncated to the current array size.
+     *
+     * @param fromIndex The first index to aggregate.
+     * @param toIndex   The index after the last one to aggregate.
+     * @return The statistics of the values in the range.
+     */
+    public ArrayStatistics getStatistics(long fromIndex, long toIndex) {
+        return getStatistics(fromIndex, toIndex, false);
+    }
+
+    /**
+     * Get the statistics of the values in the range [fromIndex, toIndex). The range is
+     * truncated to the current array size. If "parallel" is true, the range is split
+     * in subranges aggregated concurrently, each one in its own read transaction, so
+     * the subranges may read different snapshots of the array.
+     *
+     * @param fromIndex The first index to aggregate.
+     * @param toIndex   The index after the last one to aggregate.
+     * @param parallel  True to aggregate the subranges in parallel.
+     * @return The statistics of the values in the range.
+     */
+    public ArrayStatistics getStatistics(long fromIndex, long toIndex, boolean parallel) {
+        return aggregate(fromIndex, toIndex, parallel, () -> new ArrayStatistics(type), ArrayStatistics::merge);
+    }
+
+    public double sum(long fromIndex, long toIndex) {
+        return getStatistics(fromIndex, toIndex).getSum();
+    }
+
+    public double min(long fromIndex, long toIndex) {
+        return getStatistics(fromIndex, toIndex).getMin();
+    }
+
+    public double max(long fromIndex, long toIndex) {
+        return getStatistics(fromIndex, toIndex).getMax();
+    }
+
+    public double mean(long fromIndex, long toIndex) {
+        return getStatistics(fromIndex, toIndex).getMean();
+    }
+
+    /**
+     * Count the values stored in the range [fromIndex, toIndex), that is the indexes not
+     * reading the default value because no value has been set. A stored value equal to
+     * the default value, such as 0 with a 'null' default value, is counted.
+     *
+     * @param fromIndex The first index to aggregate.
+     * @param toIndex   The index after the last one to aggregate.
+     * @return The number of values stored.
+     */
+    public long countNonDefault(long fromIndex, long toIndex) {
+        return getStatistics(fromIndex, toIndex).getNumNonDefault();
+    }
+
+    /**
+     * Get the histogram of the values in the range [fromIndex, toIndex), computed in a
+     * single read transaction. See {@link #getHistogram(long, long, double, double, int, boolean)}.
+     */
+    public long[] getHistogram(long fromIndex, long toIndex, double minValue, double maxValue, int numBins) {
+        return getHistogram(fromIndex, toIndex, minValue, maxValue, numBins, false);
+    }
+
+    /**
+     * Get the histogram of the values in the range [fromIndex, toIndex). The interval
+     * [minValue, maxValue] is divided in "numBins" bins of equal width, the last one
+     * including maxValue. Values outside the interval (and NaN values) are not counted.
+     * The range is truncated to the current array size. See
+     * {@link #getStatistics(long, long, boolean)} about the parallel computation.
+     *
+     * @param fromIndex The first index to aggregate.
+     * @param toIndex   The index after the last one to aggregate.
+     * @param minValue  The lower bound of the first bin.
+     * @param maxValue  The upper bound of the last bin.
+     * @param numBins   The number of bins.
+     * @param parallel  True to aggregate the subranges in parallel.
+     * @return The number of values in every bin.
+     */
+    public long[] getHistogram(long fromIndex, long toIndex, double minValue, double maxValue, int numBins, boolean parallel) {
+        if (numBins < 1)
+            throw new IllegalArgumentException("The number of bins is less than 1");
+        if (!(minValue < maxValue))
+            throw new IllegalArgumentException("The interval [" + minValue + "," + maxValue + "] is not valid");
+        return aggregate(fromIndex, toIndex, parallel, () -> new Histogram(type, minValue, maxValue, numBins), Histogram::merge).bins;
+    }
+
+    /**
+     * Aggregate the values in the range [fromIndex, toIndex), truncated to the current
+     * array size.
+     *
+     * @param fromIndex   The first index to aggregate.
+     * @param toIndex     The index after the last one to aggregate.
+     * @param parallel    True to aggregate subranges in parallel.
+     * @param accumulator The supplier of the accumulators of the subranges.
+     * @param merge       The function merging the accumulators of two subranges.
+     * @return The accumulator of the whole range.
+     */
+    protected <A extends ValueAccumulator> A aggregate(long fromIndex, long toIndex, boolean parallel,
+                                                       Supplier<A> accumulator, BinaryOperator<A> merge) {
+        if (fromIndex < 0)
+            throw new IllegalArgumentException("The fromIndex value is less than 0");
+        flushLocalCache(fromIndex, toIndex);
+        if (!parallel || toIndex - fromIndex <= PARALLEL_AGGREGATION_RANGE_SIZE)
+            return aggregate(fromIndex, toIndex, accumulator);
+
+        long to = Math.min(toIndex, size());
+        long rangeSize = PARALLEL_AGGREGATION_RANGE_SIZE;
+        if (layout instanceof ChunkedArrayLayout) {
+            long chunkSize = ((ChunkedArrayLayout<T>) layout).getChunkSize();
+            rangeSize = Math.max(1, rangeSize / chunkSize) * chunkSize;
+        }
+        long firstRange = fromIndex / rangeSize;
+        long lastRange = (Math.max(fromIndex, to) + rangeSize - 1) / rangeSize;
+        long step = rangeSize;
+        return LongStream.range(firstRange, Math.max(firstRange + 1, lastRange)).parallel()
+                .mapToObj(range -> aggregate(Math.max(fromIndex, range * step), Math.min(to, (range + 1) * step), accumulator))
+                .reduce(merge)
+                .get();
+    }
+
+    private <A extends ValueAccumulator> A aggregate(long fromIndex, long toIndex, Supplier<A> accumulator) {
+        return DBUtils.atomicGet(storage.sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+            A acc = accumulator.get();
+            aggregate(db, fromIndex, toIndex, acc);
+            return acc;
+        });
+    }
+
+    /**
+     * Pass to the accumulator the values in the range [fromIndex, toIndex), truncated to
+     * the array size. The stored values of primitive chunks are read without boxing,
+     * and the indexes without a stored value are accumulated at once.
+     */
+    private void aggregate(DB db, long fromIndex, long toIndex, ValueAccumulator acc) {
+        long to = Math.min(toIndex, size(db));
+        if (fromIndex >= to)
+            return;
+
+        long defaultBits = toBits(getDefaultValue(db));
+        long[] numStored = new long[1];
+        if (primitiveChunks) {
+            ((ChunkedArrayLayout<T>) layout).visitChunks(db, fromIndex, to, (chunkStart, chunk, fromOffset, toOffset) -> {
+                PrimitiveArrayChunk<T> c = (PrimitiveArrayChunk<T>) chunk;
+                for (int i = fromOffset; i < toOffset; i++) {
+                    if (c.isStored(i)) {
+                        acc.accept(c.getBits(i), 1, true);
+                        numStored[0]++;
+                    }
+                }
+            });
+        } else {
+            Iterator<Fun.Tuple2<Long, T>> values = layout.storedValuesIterator(db, fromIndex, to);
+            while (values.hasNext()) {
+                acc.accept(toBits(values.next().b), 1, true);
+                numStored[0]++;
+            }
+        }
+        acc.accept(defaultBits, to - fromIndex - numStored[0], false);
+    }
+
+
+    /**
+     * The accumulator of a histogram with bins of equal width.
+     */
+    private static class Histogram implements ValueAccumulator {
+        private final PrimitiveArrayChunk.Type type;
+        private final double minValue;
+        private final double maxValue;
+        private final long[] bins;
+
+        Histogram(PrimitiveArrayChunk.Type type, double minValue, double maxValue, int numBins) {
+            this.type = type;
+            this.minValue = minValue;
+            this.maxValue = maxValue;
+            this.bins = new long[numBins];
+        }
+
+        @Override
+        public void accept(long bits, long count, boolean stored) {
+            double value = type.toDouble(bits);
+            if (count <= 0 || !(value >= minValue && value <= maxValue))
+                return;
+            int bin = (int) ((value - minValue) / (maxValue - minValue) * bins.length);
+            bins[Math.min(bin, bins.length - 1)] += count;
+        }
+
+        Histogram merge(Histogram other) {
+            for (int i = 0; i < bins.length; i++)
+                bins[i] += other.bins[i];
+            return this;
+        }
+    }
+}
@@ -145,20 +145,41 @@ public class MapDBStorage implements Storage {
             return idx;
         });
 
-        return new MapDBArray<T>(this, name, arrayIdx);
+        return newArray(name, arrayIdx, cl);
+    }
+
+    /**
+     * Create the array object giving access to the specified array. Arrays of Double,
+     * Float, Long and Integer values are {@link MapDBNumericArray}s, specialized for the
+     * primitive type.
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends Serializable> MapDBArray<T> newArray(String name, long arrayID, Class<T> cl) {
+        if (PrimitiveArrayChunk.Type.forClass(cl) != null) {
+            // The type argument is erased: the array works with the actual class.
+            MapDBArray<?> array = new MapDBNumericArray<>(this, name, arrayID, (Class<Double>) (Class<?>) cl);
+            return (MapDBArray<T>) array;
+        }
+        return new MapDBArray<T>(this, name, arrayID, cl);
     }
 
     @Override
     public void removeArray(String name) {
-        if (!containsArrayName(computeArrayName(name)))
-            return;
+        if (name == null || name.isEmpty())
+            throw new IllegalArgumentException("The name is 'null' or empty");
 
-        DBUtils.atomic(sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+        Long removedID = DBUtils.atomicGet(sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
+            if (!containsArrayName(db, name))
+                return null;
             HTreeMap<String, Long> mapArrays = db.getHashMap(ARRAY_PREFIX + storageID);
             long arrayID = mapArrays.get(computeArrayName(name));
             mapArrays.remove(computeArrayName(name));
             MapDBArray.removeArray(db, storageID, arrayID);
+            return arrayID;
         });
+        // The queue would otherwise be kept, and reused by an array with the same internal name.
+        if (removedID != null)
+            sm.provider.removeArrayAppendQueue(MapDBArray.getInternalMapName(storageID, removedID));
     }
 
     @Override
@@ -171,7 +192,7 @@ public class MapDBStorage implements Storage {
             return mapStorages.get(computeArrayName(name));
         });
 
-        return new MapDBArray(this, name, arrayID);
+        return newArray(name, arrayID, cl);
     }
 
     @Override
@@ -238,12 +259,12 @@ public class MapDBStorage implements Storage {
             return idx;
         });
 
-        return new MapDBMatrix<T>(this, name, matrixIdx);
+        return new MapDBMatrix<T>(this, name, matrixIdx, cl);
     }
 
     @Override
     public void removeMatrix(String name) {
-        if (!containsMatrixName(computeMatrixName(name)))
+        if (!containsMatrixName(name))
             return;
 
         DBUtils.atomic(sm.provider.txMaker(), MAX_NUM_RETRIES, db -> {
@@ -264,7 +285,7 @@ public class MapDBStorage implements Storage {
             return mapStorages.get(computeMatrixName(name));
         });
 
-        return new MapDBMatrix(this, name, matrixID);
+        return new MapDBMatrix<T>(this, name, matrixID, cl);
     }
 
     @Override
@@ -120,15 +120,20 @@ public class MapDBStorageManager implements StorageManager {
 
     @Override
     public void removeStorage(String name) {
-        if (!containsStorageName(computeStorageName(name)))
-            return;
+        if (name == null || name.isEmpty())
+            throw new IllegalArgumentException("The name is 'null' or empty");
 
-        DBUtils.atomic(provider.txMaker(), MAX_NUM_RETRIES, db -> {
+        Long storageID = DBUtils.atomicGet(provider.txMaker(), MAX_NUM_RETRIES, db -> {
+            if (!containsStorageName(db, name))
+                return null;
             HTreeMap<String, Long> mapStorages = db.getHashMap(STORAGE_TABLE_NAME);
-            long storageID = mapStorages.get(computeStorageName(name));
+            long id = mapStorages.get(computeStorageName(name));
             mapStorages.remove(computeStorageName(name));
-            MapDBStorage.removeStorage(db, storageID);
+            MapDBStorage.removeStorage(db, id);
+            return id;
         });
+        if (storageID != null)
+            provider.removeArrayAppendQueues(MapDBArray.getInternalMapNamePrefix(storageID));
     }
 
     @Override
@@ -151,18 +156,23 @@ public class MapDBStorageManager implements StorageManager {
 
     @Override
     public void clear() {
-        DBUtils.atomic(provider.txMaker(), MAX_NUM_RETRIES, db -> {
+        List<Long> removedIDs = DBUtils.atomicGet(provider.txMaker(), MAX_NUM_RETRIES, db -> {
             HTreeMap<String, Long> mapStorages = db.getHashMap(STORAGE_TABLE_NAME);
             Iterator<String> keys = mapStorages.keySet().iterator();
             ArrayList<String> toRemove = new ArrayList<>();
             while (keys.hasNext())
                 toRemove.add(keys.next());
+            ArrayList<Long> ids = new ArrayList<>();
             for (String key : toRemove) {
                 long storageID = mapStorages.get(key);
                 mapStorages.remove(key);
                 MapDBStorage.removeStorage(db, storageID);
+                ids.add(storageID);
             }
+            return ids;
         });
+        for (long storageID : removedIDs)
+            provider.removeArrayAppendQueues(MapDBArray.getInternalMapNamePrefix(storageID));
     }
 
     @Override
@@ -0,0 +1,225 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import it.cnr.isti.hlt.processfast.utils.Pair;
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.Fun;
+import org.mapdb.Serializer;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A column-oriented copy of the values stored in a matrix, kept in a MapDB collection
+ * keyed by the (column, row) position. The values of a column are therefore contiguous
+ * in the tree and are read with a single range scan, whatever the matrix layout.
+ * <p>
+ * The index is optional: every operation first checks, in the given transaction, that
+ * the index exists, so it is kept up to date by all the matrix handles in the same
+ * transaction changing the matrix values. Positions without a stored value, reading as
+ * the matrix default value, are not indexed.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+class MatrixColumnIndex<T extends Serializable> {
+
+    /**
+     * The name of the MapDB collection holding the index.
+     */
+    final String mapName;
+
+    MatrixColumnIndex(String mapName) {
+        if (mapName == null)
+            throw new NullPointerException("The map name is 'null'");
+        this.mapName = mapName;
+    }
+
+    boolean exists(DB db) {
+        return db.exists(mapName);
+    }
+
+    private BTreeMap<Fun.Tuple2<Long, Long>, T> getMap(DB db) {
+        return db.getTreeMap(mapName);
+    }
+
+    /**
+     * Update the index with the value stored at the given position.
+     *
+     * @param db    The transaction to use.
+     * @param row   The row index.
+     * @param col   The column index.
+     * @param value The new value or 'null' if the stored value is being removed.
+     */
+    void update(DB db, long row, long col, T value) {
+        if (!exists(db))
+            return;
+        if (value != null)
+            getMap(db).put(Fun.t2(col, row), value);
+        else
+            getMap(db).remove(Fun.t2(col, row));
+    }
+
+    /**
+     * Update the index with the values of a block stored starting from the given position.
+     *
+     * @param db      The transaction to use.
+     * @param fromRow The row of the first value.
+     * @param fromCol The column of the first value.
+     * @param values  The values of the block, one list for every row. A 'null' value
+     *                means the stored value is being removed.
+     */
+    void update(DB db, long fromRow, long fromCol, List<List<T>> values) {
+        if (!exists(db))
+            return;
+        BTreeMap<Fun.Tuple2<Long, Long>, T> map = getMap(db);
+        long row = fromRow;
+        for (List<T> rowValues : values) {
+            long col = fromCol;
+            for (T value : rowValues) {
+                if (value != null)
+                    map.put(Fun.t2(col, row), value);
+                else
+                    map.remove(Fun.t2(col, row));
+                col++;
+            }
+            row++;
+        }
+    }
+
+    /**
+     * Remove the indexed values outside the rows [0, numRows) and the columns [0, numCols),
+     * if the index exists.
+     *
+     * @param db         The transaction to use.
+     * @param numRows    The new number of rows.
+     * @param numCols    The new number of columns.
+     * @param oldNumRows The number of rows before the resize.
+     * @param oldNumCols The number of columns before the resize.
+     */
+    void removeOutside(DB db, long numRows, long numCols, long oldNumRows, long oldNumCols) {
+        if (!exists(db))
+            return;
+        BTreeMap<Fun.Tuple2<Long, Long>, T> map = getMap(db);
+        if (numCols < oldNumCols)
+            map.tailMap(Fun.t2(numCols, (Long) null), true).clear();
+        if (numRows < oldNumRows) {
+            // Seek the tree from column to column, 'null' sorts before any row.
+            Fun.Tuple2<Long, Long> k = map.ceilingKey(Fun.t2(0L, numRows));
+            while (k != null) {
+                if (k.b < numRows) {
+                    k = map.ceilingKey(Fun.t2(k.a, numRows));
+                } else {
+                    map.subMap(Fun.t2(k.a, numRows), true, Fun.t2(k.a + 1, (Long) null), false).clear();
+                    k = map.ceilingKey(Fun.t2(k.a + 1, numRows));
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove the index, if it exists.
+     *
+     * @param db The transaction to use.
+     */
+    void drop(DB db) {
+        if (exists(db))
+            db.delete(mapName);
+    }
+
+    /**
+     * Build the index with the values stored in the given layout, using the MapDB data
+     * pump. The current index, if any, is replaced.
+     *
+     * @param db              The transaction to use.
+     * @param layout          The layout containing the values to index.
+     * @param valueSerializer The serializer of the indexed values.
+     */
+    void build(DB db, MatrixLayout<T> layout, Serializer<T> valueSerializer) {
+        drop(db);
+        Iterator<MatrixEntry<T>> stored = layout.storedValuesIterator(db);
+        DB.BTreeMapMaker maker = db.createTreeMap(mapName)
+                .keySerializer(BTreeKeySerializer.TUPLE2)
+                .valueSerializer(valueSerializer);
+        if (!stored.hasNext()) {
+            // The MapDB data pump can not build an empty tree.
+            maker.make();
+            return;
+        }
+        maker.pumpSource(new Iterator<Fun.Tuple2<Fun.Tuple2<Long, Long>, T>>() {
+            @Override
+            public boolean hasNext() {
+                return stored.hasNext();
+            }
+
+            @Override
+            public Fun.Tuple2<Fun.Tuple2<Long, Long>, T> next() {
+                MatrixEntry<T> v = stored.next();
+                return Fun.t2(Fun.t2(v.getCol(), v.getRow()), v.getValue());
+            }
+        });
+        maker.pumpPresort(ArrayLayout.PUMP_PRESORT_BATCH_SIZE);
+        maker.make();
+    }
+
+    /**
+     * Read the values of a column in the rows [fromRow, toRow), adding them to "dest".
+     * Positions without a stored value are reported as "defaultValue".
+     *
+     * @param db           The transaction to use.
+     * @param col          The column index.
+     * @param fromRow      The first row to read.
+     * @param toRow        The row after the last one to read.
+     * @param defaultValue The value reported for positions without a stored value.
+     * @param dest         The list where to add the values read.
+     */
+    void getColValues(DB db, long col, long fromRow, long toRow, T defaultValue, List<T> dest) {
+        long next = fromRow;
+        for (Map.Entry<Fun.Tuple2<Long, Long>, T> entry : getMap(db).subMap(Fun.t2(col, fromRow), true, Fun.t2(col, toRow), false).entrySet()) {
+            long row = entry.getKey().b;
+            for (; next < row; next++)
+                dest.add(defaultValue);
+            dest.add(entry.getValue());
+            next = row + 1;
+        }
+        for (; next < toRow; next++)
+            dest.add(defaultValue);
+    }
+
+    /**
+     * Read the values stored in a column in the rows [fromRow, toRow) and add them to
+     * "dest" as (row, value) pairs in row order.
+     *
+     * @param db      The transaction to use.
+     * @param col     The column index.
+     * @param fromRow The first row to read.
+     * @param toRow   The row after the last one to read.
+     * @param dest    The list where to add the values read.
+     */
+    void getStoredColValues(DB db, long col, long fromRow, long toRow, List<Pair<Long, T>> dest) {
+        for (Map.Entry<Fun.Tuple2<Long, Long>, T> entry : getMap(db).subMap(Fun.t2(col, fromRow), true, Fun.t2(col, toRow), false).entrySet())
+            dest.add(new Pair<>(entry.getKey().b, entry.getValue()));
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import java.io.Serializable;
+
+/**
+ * A value explicitly stored in a {@link MapDBMatrix}, together with its position.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+public class MatrixEntry<T extends Serializable> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long row;
+    private final long col;
+    private final T value;
+
+    public MatrixEntry(long row, long col, T value) {
+        this.row = row;
+        this.col = col;
+        this.value = value;
+    }
+
+    public long getRow() {
+        return row;
+    }
+
+    public long getCol() {
+        return col;
+    }
+
+    public T getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "(" + row + "," + col + "): " + value;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import it.cnr.isti.hlt.processfast.utils.Pair;
+import org.mapdb.DB;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The way the values of a {@link MapDBMatrix} are laid out inside the MapDB
+ * collections backing the matrix. All the methods work on the transaction
+ * specified by the caller and do not check the matrix bounds.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+abstract class MatrixLayout<T extends Serializable> {
+
+    /**
+     * Create the MapDB collections containing the matrix values.
+     *
+     * @param db The transaction to use.
+     */
+    abstract void createMaps(DB db);
+
+    /**
+     * Get the value stored at the given position.
+     *
+     * @param db  The transaction to use.
+     * @param row The row index.
+     * @param col The column index.
+     * @return The stored value or 'null' if no value is stored at the given position.
+     */
+    abstract T get(DB db, long row, long col);
+
+    /**
+     * Set the value stored at the given position.
+     *
+     * @param db    The transaction to use.
+     * @param row   The row index.
+     * @param col   The column index.
+     * @param value The value to store or 'null' to remove the stored value.
+     */
+    abstract void set(DB db, long row, long col, T value);
+
+    /**
+     * Store the values of a row starting from the given column.
+     *
+     * @param db      The transaction to use.
+     * @param row     The row index.
+     * @param fromCol The column of the first value.
+     * @param values  The values to store. A 'null' value removes the stored value.
+     */
+    void setRowValues(DB db, long row, long fromCol, List<T> values) {
+        long col = fromCol;
+        for (T value : values)
+            set(db, row, col++, value);
+    }
+
+    /**
+     * Store the values of a block starting from the given position.
+     *
+     * @param db      The transaction to use.
+     * @param fromRow The row of the first value.
+     * @param fromCol The column of the first value.
+     * @param values  The values to store, one list of the same size for every row. A
+     *                'null' value removes the stored value.
+     */
+    void setBlockValues(DB db, long fromRow, long fromCol, List<List<T>> values) {
+        long row = fromRow;
+        for (List<T> rowValues : values)
+            setRowValues(db, row++, fromCol, rowValues);
+    }
+
+    /**
+     * Replace all the stored values with the given ones, building the MapDB collections
+     * with the data pump.
+     *
+     * @param db      The transaction to use.
+     * @param entries The values to store, in descending row-major order, without
+     *                duplicate positions and without 'null' values.
+     */
+    abstract void bulkLoad(DB db, Iterator<MatrixEntry<T>> entries);
+
+    /**
+     * Read the values of a row in the columns [fromCol, toCol), adding them to "dest".
+     * Positions without a stored value are reported as "defaultValue".
+     *
+     * @param db           The transaction to use.
+     * @param row          The row index.
+     * @param fromCol      The first column to read.
+     * @param toCol        The column after the last one to read.
+     * @param defaultValue The value reported for positions without a stored value.
+     * @param dest         The list where to add the values read.
+     */
+    abstract void getRowValues(DB db, long row, long fromCol, long toCol, T defaultValue, List<T> dest);
+
+    /**
+     * Read the values stored in a row in the columns [fromCol, toCol) and add them to
+     * "dest" as (column, value) pairs in column order. Columns without a stored value
+     * are skipped, so the cost of the read depends on the number of stored values.
+     *
+     * @param db      The transaction to use.
+     * @param row     The row index.
+     * @param fromCol The first column to read.
+     * @param toCol   The column after the last one to read.
+     * @param dest    The list where to add the values read.
+     */
+    abstract void getStoredRowValues(DB db, long row, long fromCol, long toCol, List<Pair<Long, T>> dest);
+
+    /**
+     * Read the values stored in a column in the rows [fromRow, toRow) and add them to
+     * "dest" as (row, value) pairs in row order. Rows without a stored value are skipped.
+     *
+     * @param db      The transaction to use.
+     * @param col     The column index.
+     * @param fromRow The first row to read.
+     * @param toRow   The row after the last one to read.
+     * @param dest    The list where to add the values read.
+     */
+    void getStoredColValues(DB db, long col, long fromRow, long toRow, List<Pair<Long, T>> dest) {
+        for (long row = fromRow; row < toRow; row++) {
+            T v = get(db, row, col);
+            if (v != null)
+                dest.add(new Pair<>(row, v));
+        }
+    }
+
+    /**
+     * Get a cursor over all the values stored in the matrix, in row-major order.
+     * Positions without a stored value are skipped. The cursor reads the values lazily,
+     * so it is valid only while the given transaction is open.
+     *
+     * @param db The transaction to use.
+     * @return The cursor over the stored values.
+     */
+    abstract Iterator<MatrixEntry<T>> storedValuesIterator(DB db);
+
+    /**
+     * Read the values of a column in the rows [fromRow, toRow), adding them to "dest".
+     * Positions without a stored value are reported as "defaultValue".
+     *
+     * @param db           The transaction to use.
+     * @param col          The column index.
+     * @param fromRow      The first row to read.
+     * @param toRow        The row after the last one to read.
+     * @param defaultValue The value reported for positions without a stored value.
+     * @param dest         The list where to add the values read.
+     */
+    void getColValues(DB db, long col, long fromRow, long toRow, T defaultValue, List<T> dest) {
+        for (long row = fromRow; row < toRow; row++) {
+            T v = get(db, row, col);
+            dest.add(v != null ? v : defaultValue);
+        }
+    }
+
+    /**
+     * Read the values in the block [fromRow, toRow) x [fromCol, toCol), adding the values
+     * of every row to the list of "dest" at position (row - fromRow). Positions without
+     * a stored value are reported as "defaultValue".
+     *
+     * @param db           The transaction to use.
+     * @param fromRow      The first row to read.
+     * @param toRow        The row after the last one to read.
+     * @param fromCol      The first column to read.
+     * @param toCol        The column after the last one to read.
+     * @param defaultValue The value reported for positions without a stored value.
+     * @param dest         The lists where to add the values read, one for every row.
+     */
+    void getBlockValues(DB db, long fromRow, long toRow, long fromCol, long toCol, T defaultValue, List<List<T>> dest) {
+        for (long row = fromRow; row < toRow; row++)
+            getRowValues(db, row, fromCol, toCol, defaultValue, dest.get((int) (row - fromRow)));
+    }
+
+    /**
+     * Remove the values stored outside the rows [0, numRows) and the columns [0, numCols),
+     * after the matrix has been shrunk. Removing rows costs in the number of values
+     * removed. Removing columns also costs one lookup per stored row, since every row
+     * may hold values in the removed columns: a lookup in the keys of the row (or of the
+     * tile row) for the layouts with a single map, the opening of the column map of the
+     * row for the row map layout.
+     *
+     * @param db         The transaction to use.
+     * @param numRows    The new number of rows.
+     * @param numCols    The new number of columns.
+     * @param oldNumRows The number of rows before the resize.
+     * @param oldNumCols The number of columns before the resize.
+     */
+    abstract void removeOutside(DB db, long numRows, long numCols, long oldNumRows, long oldNumCols);
+
+    /**
+     * Remove the MapDB collections containing the matrix values.
+     *
+     * @param db The transaction to use.
+     */
+    abstract void removeMaps(DB db);
+
+    /**
+     * Check that the layout can store a matrix of the given size.
+     *
+     * @param numRows The number of rows.
+     * @param numCols The number of columns.
+     * @throws IllegalArgumentException Raised if the size is not supported.
+     */
+    void checkSize(long numRows, long numCols) {
+    }
+}
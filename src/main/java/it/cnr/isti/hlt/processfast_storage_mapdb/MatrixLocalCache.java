@@ -0,0 +1,217 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import java.io.Serializable;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A client-side copy of the values of a matrix in the rectangle [fromRow, toRow) x
+ * [fromCol, toCol). The cache is loaded with a single block read the first time it is
+ * accessed, serves reads from memory and keeps track of the values written locally
+ * until they are flushed to the storage. Once flushed or invalidated, the cache is
+ * loaded again on the next access.
+ * <p>
+ * The cache is not thread-safe: callers must synchronize the accesses.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+class MatrixLocalCache<T extends Serializable> {
+
+    private final long fromRow;
+    private final long toRow;
+    private final long fromCol;
+    private final long toCol;
+    private final int width;
+
+    /**
+     * The values stored in the cached rectangle, in row-major order. A 'null' entry
+     * means no value stored.
+     */
+    private Object[] values;
+
+    /**
+     * The positions written locally and not yet flushed.
+     */
+    private final BitSet dirty;
+
+    private boolean loaded;
+    private long numRows;
+    private long numCols;
+    private T defaultValue;
+
+    MatrixLocalCache(long fromRow, long toRow, long fromCol, long toCol) {
+        if (fromRow < 0 || fromCol < 0)
+            throw new IllegalArgumentException("The starting position is invalid: (" + fromRow + "," + fromCol + ")");
+        if (fromRow >= toRow || fromCol >= toCol)
+            throw new IllegalArgumentException("The rectangle to cache is empty: rows [" + fromRow + "," + toRow + "), cols [" + fromCol + "," + toCol + ")");
+        if ((toRow - fromRow) > MapDBMatrix.MAX_LOCAL_CACHE_SIZE / (toCol - fromCol))
+            throw new IllegalArgumentException("The rectangle to cache is bigger than " + MapDBMatrix.MAX_LOCAL_CACHE_SIZE + " values");
+        this.fromRow = fromRow;
+        this.toRow = toRow;
+        this.fromCol = fromCol;
+        this.toCol = toCol;
+        this.width = (int) (toCol - fromCol);
+        this.dirty = new BitSet();
+        this.loaded = false;
+    }
+
+    boolean contains(long row, long col) {
+        return row >= fromRow && row < toRow && col >= fromCol && col < toCol;
+    }
+
+    boolean contains(long startRow, long endRow, long startCol, long endCol) {
+        return startRow >= fromRow && endRow <= toRow && startCol >= fromCol && endCol <= toCol;
+    }
+
+    boolean overlaps(long startRow, long endRow, long startCol, long endCol) {
+        return startRow < toRow && fromRow < endRow && startCol < toCol && fromCol < endCol;
+    }
+
+    long getFromRow() {
+        return fromRow;
+    }
+
+    long getToRow() {
+        return toRow;
+    }
+
+    long getFromCol() {
+        return fromCol;
+    }
+
+    long getToCol() {
+        return toCol;
+    }
+
+    /**
+     * Get the number of values covered by the cache.
+     */
+    long size() {
+        return (toRow - fromRow) * width;
+    }
+
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Load the cache.
+     *
+     * @param numRows      The current number of rows of the matrix.
+     * @param numCols      The current number of columns of the matrix.
+     * @param defaultValue The current matrix default value.
+     * @param stored       The values stored in the rows [fromRow, min(toRow, numRows)) and
+     *                     columns [fromCol, min(toCol, numCols)), one list for every row,
+     *                     with 'null' for the positions without a value stored.
+     */
+    void load(long numRows, long numCols, T defaultValue, List<List<T>> stored) {
+        this.values = new Object[(int) size()];
+        int pos = 0;
+        for (List<T> row : stored) {
+            int i = pos;
+            for (T v : row)
+                values[i++] = v;
+            pos += width;
+        }
+        this.numRows = numRows;
+        this.numCols = numCols;
+        this.defaultValue = defaultValue;
+        this.dirty.clear();
+        this.loaded = true;
+    }
+
+    /**
+     * Drop the cached values. Any value not yet flushed is lost.
+     */
+    void invalidate() {
+        values = null;
+        defaultValue = null;
+        dirty.clear();
+        loaded = false;
+    }
+
+    /**
+     * Get the number of rows of the matrix seen when the cache has been loaded.
+     */
+    long getNumRows() {
+        return numRows;
+    }
+
+    /**
+     * Get the number of columns of the matrix seen when the cache has been loaded.
+     */
+    long getNumCols() {
+        return numCols;
+    }
+
+    private int position(long row, long col) {
+        return (int) (row - fromRow) * width + (int) (col - fromCol);
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(long row, long col) {
+        Object v = values[position(row, col)];
+        return v != null ? (T) v : defaultValue;
+    }
+
+    void getRowValues(long row, long startCol, long endCol, List<T> dest) {
+        for (long col = startCol; col < endCol; col++)
+            dest.add(get(row, col));
+    }
+
+    void getColValues(long col, long startRow, long endRow, List<T> dest) {
+        for (long row = startRow; row < endRow; row++)
+            dest.add(get(row, col));
+    }
+
+    void set(long row, long col, T value) {
+        int pos = position(row, col);
+        values[pos] = value;
+        dirty.set(pos);
+    }
+
+    boolean isDirty() {
+        return !dirty.isEmpty();
+    }
+
+    /**
+     * Get the positions written locally and not yet flushed. The position of the cell
+     * (row, col) is (row - fromRow) * (toCol - fromCol) + (col - fromCol).
+     */
+    BitSet getDirtyPositions() {
+        return dirty;
+    }
+
+    long rowOf(int position) {
+        return fromRow + position / width;
+    }
+
+    long colOf(int position) {
+        return fromCol + position % width;
+    }
+
+    @SuppressWarnings("unchecked")
+    T getStored(int position) {
+        return (T) values[position];
+    }
+}
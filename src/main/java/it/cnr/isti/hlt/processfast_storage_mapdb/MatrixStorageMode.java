@@ -0,0 +1,51 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+/**
+ * The way the values of a new {@link MapDBMatrix} are stored in MapDB. The storage
+ * mode is chosen when the matrix is created and is kept for the whole life of the
+ * matrix.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+public enum MatrixStorageMode {
+    /**
+     * Every row with values stored has its own MapDB collection, found through a map
+     * from the row index to a row ID.
+     */
+    ROW_MAPS,
+
+    /**
+     * All the values are stored in a single MapDB collection, keyed by the (row, column)
+     * position packed in a single long. Rows are read with a single range scan. The
+     * matrix can have at most 2^31 - 1 rows and 2^32 columns.
+     */
+    COMPOSITE_KEY,
+
+    /**
+     * The values are stored in square tiles of fixed size, each one a single MapDB record
+     * keyed by the tile coordinates. Matrices of Double, Float, Long and Integer values
+     * use tiles of primitive values. Suited for dense matrices, since a tile with a single
+     * value stored takes the space of a full tile.
+     */
+    DENSE_TILES
+}
@@ -0,0 +1,176 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+import org.mapdb.Serializer;
+
+import java.io.*;
+
+/**
+ * An array chunk able to hold any kind of serializable value.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+class ObjectArrayChunk<T extends Serializable> extends ArrayChunk<T> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Object[] values;
+    private int numStored;
+
+    ObjectArrayChunk(int length) {
+        if (length < 1)
+            throw new IllegalArgumentException("The chunk length is less than 1: " + length);
+        this.values = new Object[length];
+        this.numStored = 0;
+    }
+
+    private ObjectArrayChunk(ObjectArrayChunk<T> source) {
+        this.values = source.values.clone();
+        this.numStored = source.numStored;
+    }
+
+    @Override
+    int length() {
+        return values.length;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    T get(int offset) {
+        return (T) values[offset];
+    }
+
+    @Override
+    void set(int offset, T value) {
+        if (values[offset] != null)
+            numStored--;
+        values[offset] = value;
+        if (value != null)
+            numStored++;
+    }
+
+    @Override
+    int numStored() {
+        return numStored;
+    }
+
+    @Override
+    ArrayChunk<T> copy() {
+        return new ObjectArrayChunk<>(this);
+    }
+
+
+    /**
+     * The MapDB serializer for object chunks. If no value serializer is specified, the
+     * stored values of a chunk are written using a single Java object stream, so class
+     * descriptors are written once per chunk instead of once per value.
+     */
+    static class ChunkSerializer<T extends Serializable> extends ArrayChunk.Codec<T> {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The serializer used for each stored value or 'null' to use Java serialization.
+         */
+        private final Serializer<T> valueSerializer;
+
+        ChunkSerializer(Serializer<T> valueSerializer) {
+            this.valueSerializer = valueSerializer;
+        }
+
+        @Override
+        ArrayChunk<T> newChunk(int length) {
+            return new ObjectArrayChunk<>(length);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void serialize(DataOutput out, ArrayChunk<T> value) throws IOException {
+            ObjectArrayChunk<T> chunk = (ObjectArrayChunk<T>) value;
+            DataOutput2.packInt(out, chunk.values.length);
+            DataOutput2.packInt(out, chunk.numStored);
+            int prevOffset = 0;
+            for (int i = 0; i < chunk.values.length; i++) {
+                if (chunk.values[i] == null)
+                    continue;
+                DataOutput2.packInt(out, i - prevOffset);
+                prevOffset = i;
+            }
+
+            if (valueSerializer != null) {
+                DataOutput2 bytes = new DataOutput2();
+                for (Object v : chunk.values) {
+                    if (v == null)
+                        continue;
+                    bytes.pos = 0;
+                    valueSerializer.serialize(bytes, (T) v);
+                    DataOutput2.packInt(out, bytes.pos);
+                    out.write(bytes.buf, 0, bytes.pos);
+                }
+            } else {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ObjectOutputStream oos = new ObjectOutputStream(bytes);
+                for (Object v : chunk.values) {
+                    if (v != null)
+                        oos.writeObject(v);
+                }
+                oos.close();
+                DataOutput2.packInt(out, bytes.size());
+                out.write(bytes.toByteArray());
+            }
+        }
+
+        @Override
+        public ArrayChunk<T> deserialize(DataInput in, int available) throws IOException {
+            ObjectArrayChunk<T> chunk = new ObjectArrayChunk<>(DataInput2.unpackInt(in));
+            int numStored = DataInput2.unpackInt(in);
+            int[] offsets = new int[numStored];
+            int prevOffset = 0;
+            for (int i = 0; i < numStored; i++) {
+                prevOffset += DataInput2.unpackInt(in);
+                offsets[i] = prevOffset;
+            }
+
+            if (valueSerializer != null) {
+                for (int offset : offsets) {
+                    byte[] bytes = new byte[DataInput2.unpackInt(in)];
+                    in.readFully(bytes);
+                    chunk.values[offset] = valueSerializer.deserialize(new DataInput2(bytes), bytes.length);
+                }
+            } else {
+                byte[] bytes = new byte[DataInput2.unpackInt(in)];
+                in.readFully(bytes);
+                ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+                try {
+                    for (int offset : offsets)
+                        chunk.values[offset] = ois.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Unable to read chunk values", e);
+                }
+            }
+            chunk.numStored = numStored;
+            return chunk;
+        }
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * An array chunk holding values of a primitive numeric type. Every value is exchanged
+ * as its raw 64 bits representation (see {@link Type#toBits(Number)}), so values
+ * can be read and written without boxing through {@link #getBits(int)} and
+ * {@link #setBits(int, long)}. The values of the 4 bytes types are kept in an int
+ * array, so a chunk takes in memory the same space of its values on disk.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+class PrimitiveArrayChunk<T extends Number & Serializable> extends ArrayChunk<T> {
+
+    /**
+     * The primitive types supported by the chunk.
+     */
+    enum Type {
+        DOUBLE {
+            @Override
+            long toBits(Number value) {
+                return Double.doubleToRawLongBits(value.doubleValue());
+            }
+
+            @Override
+            Number fromBits(long bits) {
+                return Double.longBitsToDouble(bits);
+            }
+
+            @Override
+            double toDouble(long bits) {
+                return Double.longBitsToDouble(bits);
+            }
+
+            @Override
+            void write(DataOutput out, long bits) throws IOException {
+                out.writeLong(bits);
+            }
+
+            @Override
+            long read(DataInput in) throws IOException {
+                return in.readLong();
+            }
+        },
+        FLOAT {
+            @Override
+            long toBits(Number value) {
+                return Float.floatToRawIntBits(value.floatValue());
+            }
+
+            @Override
+            Number fromBits(long bits) {
+                return Float.intBitsToFloat((int) bits);
+            }
+
+            @Override
+            double toDouble(long bits) {
+                return Float.intBitsToFloat((int) bits);
+            }
+
+            @Override
+            void write(DataOutput out, long bits) throws IOException {
+                out.writeInt((int) bits);
+            }
+
+            @Override
+            long read(DataInput in) throws IOException {
+                return in.readInt();
+            }
+        },
+        LONG {
+            @Override
+            long toBits(Number value) {
+                return value.longValue();
+            }
+
+            @Override
+            Number fromBits(long bits) {
+                return bits;
+            }
+
+            @Override
+            double toDouble(long bits) {
+                return bits;
+            }
+
+            @Override
+            void write(DataOutput out, long bits) throws IOException {
+                out.writeLong(bits);
+            }
+
+            @Override
+            long read(DataInput in) throws IOException {
+                return in.readLong();
+            }
+        },
+        INT {
+            @Override
+            long toBits(Number value) {
+                return value.intValue();
+            }
+
+            @Override
+            Number fromBits(long bits) {
+                return (int) bits;
+            }
+
+            @Override
+            double toDouble(long bits) {
+                return (int) bits;
+            }
+
+            @Override
+            void write(DataOutput out, long bits) throws IOException {
+                out.writeInt((int) bits);
+            }
+
+            @Override
+            long read(DataInput in) throws IOException {
+                return in.readInt();
+            }
+        };
+
+        /**
+         * Get the raw bits representation of the given value. A 'null' value is
+         * represented as 0.
+         */
+        abstract long toBits(Number value);
+
+        abstract Number fromBits(long bits);
+
+        abstract double toDouble(long bits);
+
+        /**
+         * Get the primitive type of the values of the given class.
+         *
+         * @param cl The class of the values.
+         * @return The primitive type or 'null' if the class is not Double, Float, Long or Integer.
+         */
+        static Type forClass(Class<?> cl) {
+            if (cl == Double.class)
+                return DOUBLE;
+            else if (cl == Float.class)
+                return FLOAT;
+            else if (cl == Long.class)
+                return LONG;
+            else if (cl == Integer.class)
+                return INT;
+            return null;
+        }
+
+        /**
+         * Get the number of bytes written for every value.
+         */
+        int width() {
+            return this == DOUBLE || this == LONG ? 8 : 4;
+        }
+
+        abstract void write(DataOutput out, long bits) throws IOException;
+
+        abstract long read(DataInput in) throws IOException;
+    }
+
+
+    private static final long serialVersionUID = 1L;
+
+    private final Type type;
+
+    /**
+     * The values of the 8 bytes types, 'null' for the 4 bytes types.
+     */
+    private final long[] longValues;
+
+    /**
+     * The values of the 4 bytes types, 'null' for the 8 bytes types.
+     */
+    private final int[] intValues;
+
+    private final long[] stored;
+    private int numStored;
+
+    PrimitiveArrayChunk(Type type, int length) {
+        if (type == null)
+            throw new NullPointerException("The chunk type is 'null'");
+        if (length < 1)
+            throw new IllegalArgumentException("The chunk length is less than 1: " + length);
+        this.type = type;
+        this.longValues = type.width() == 8 ? new long[length] : null;
+        this.intValues = type.width() == 8 ? null : new int[length];
+        this.stored = new long[(length + 63) / 64];
+        this.numStored = 0;
+    }
+
+    private PrimitiveArrayChunk(PrimitiveArrayChunk<T> source) {
+        this.type = source.type;
+        this.longValues = source.longValues != null ? source.longValues.clone() : null;
+        this.intValues = source.intValues != null ? source.intValues.clone() : null;
+        this.stored = source.stored.clone();
+        this.numStored = source.numStored;
+    }
+
+    @Override
+    int length() {
+        return longValues != null ? longValues.length : intValues.length;
+    }
+
+    boolean isStored(int offset) {
+        return (stored[offset >>> 6] & (1L << offset)) != 0;
+    }
+
+    /**
+     * Get the raw bits of the value stored at the given position. The result is
+     * meaningful only if {@link #isStored(int)} returns 'true'.
+     */
+    long getBits(int offset) {
+        return longValues != null ? longValues[offset] : intValues[offset];
+    }
+
+    private void putBits(int offset, long bits) {
+        if (longValues != null)
+            longValues[offset] = bits;
+        else
+            intValues[offset] = (int) bits;
+    }
+
+    void setBits(int offset, long bits) {
+        if (!isStored(offset)) {
+            stored[offset >>> 6] |= 1L << offset;
+            numStored++;
+        }
+        putBits(offset, bits);
+    }
+
+    void unset(int offset) {
+        if (isStored(offset)) {
+            stored[offset >>> 6] &= ~(1L << offset);
+            numStored--;
+        }
+        putBits(offset, 0);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    T get(int offset) {
+        if (!isStored(offset))
+            return null;
+        return (T) type.fromBits(getBits(offset));
+    }
+
+    @Override
+    void set(int offset, T value) {
+        if (value == null)
+            unset(offset);
+        else
+            setBits(offset, type.toBits(value));
+    }
+
+    @Override
+    int numStored() {
+        return numStored;
+    }
+
+    @Override
+    ArrayChunk<T> copy() {
+        return new PrimitiveArrayChunk<>(this);
+    }
+
+
+    /**
+     * The MapDB serializer for primitive chunks. Stored values are written with a fixed
+     * width after a bitmap of the positions having a value.
+     */
+    static class ChunkSerializer<T extends Number & Serializable> extends ArrayChunk.Codec<T> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Type type;
+
+        ChunkSerializer(Type type) {
+            if (type == null)
+                throw new NullPointerException("The chunk type is 'null'");
+            this.type = type;
+        }
+
+        @Override
+        ArrayChunk<T> newChunk(int length) {
+            return new PrimitiveArrayChunk<>(type, length);
+        }
+
+        @Override
+        public void serialize(DataOutput out, ArrayChunk<T> value) throws IOException {
+            PrimitiveArrayChunk<T> chunk = (PrimitiveArrayChunk<T>) value;
+            int length = chunk.length();
+            DataOutput2.packInt(out, length);
+            DataOutput2.packInt(out, chunk.numStored);
+            for (long bits : chunk.stored)
+                out.writeLong(bits);
+            for (int i = 0; i < length; i++) {
+                if (chunk.isStored(i))
+                    type.write(out, chunk.getBits(i));
+            }
+        }
+
+        @Override
+        public ArrayChunk<T> deserialize(DataInput in, int available) throws IOException {
+            PrimitiveArrayChunk<T> chunk = new PrimitiveArrayChunk<>(type, DataInput2.unpackInt(in));
+            chunk.numStored = DataInput2.unpackInt(in);
+            for (int i = 0; i < chunk.stored.length; i++)
+                chunk.stored[i] = in.readLong();
+            for (int i = 0; i < chunk.length(); i++) {
+                if (chunk.isStored(i))
+                    chunk.putBits(i, type.read(in));
+            }
+            return chunk;
+        }
+    }
+}
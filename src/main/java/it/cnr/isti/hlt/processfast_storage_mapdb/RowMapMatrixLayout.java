@@ -0,0 +1,304 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import it.cnr.isti.hlt.processfast.utils.Pair;
+import org.mapdb.Atomic;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.Fun;
+import org.mapdb.Serializer;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A matrix layout storing every row with values in its own MapDB collection, keyed
+ * by the column index. A map from the row index to a row ID gives the name of the
+ * collection of each row, which is created when the first value of the row is stored.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+class RowMapMatrixLayout<T extends Serializable> extends MatrixLayout<T> {
+
+    private final String rowMapName;
+    private final String colMapNamePrefix;
+    private final String nextRowIDName;
+    private final Serializer<T> valueSerializer;
+
+    RowMapMatrixLayout(String rowMapName, String colMapNamePrefix, String nextRowIDName, Serializer<T> valueSerializer) {
+        if (rowMapName == null || colMapNamePrefix == null || nextRowIDName == null)
+            throw new NullPointerException("The names of the matrix collections are 'null'");
+        if (valueSerializer == null)
+            throw new NullPointerException("The value serializer is 'null'");
+        this.rowMapName = rowMapName;
+        this.colMapNamePrefix = colMapNamePrefix;
+        this.nextRowIDName = nextRowIDName;
+        this.valueSerializer = valueSerializer;
+    }
+
+    @Override
+    void createMaps(DB db) {
+        db.createTreeMap(rowMapName).counterEnable().makeOrGet();
+        db.createAtomicLong(nextRowIDName, 0);
+    }
+
+    /**
+     * Get the map containing the values stored in the given row.
+     *
+     * @param db     The transaction to use.
+     * @param row    The row index.
+     * @param create True to create the map if the row has no values stored yet.
+     * @return The map of the row or 'null' if the row has no map and "create" is false.
+     */
+    BTreeMap<Long, T> getRowMap(DB db, long row, boolean create) {
+        BTreeMap<Long, Long> map = db.getTreeMap(rowMapName);
+        Long rowID = map.get(row);
+        if (rowID == null) {
+            if (!create)
+                return null;
+            Atomic.Long nextID = db.getAtomicLong(nextRowIDName);
+            rowID = nextID.getAndIncrement();
+            map.put(row, rowID);
+            return db.createTreeMap(colMapNamePrefix + rowID).counterEnable().valueSerializer(valueSerializer).makeOrGet();
+        }
+        return db.getTreeMap(colMapNamePrefix + rowID);
+    }
+
+    @Override
+    T get(DB db, long row, long col) {
+        BTreeMap<Long, T> mapRow = getRowMap(db, row, false);
+        return mapRow != null ? mapRow.get(col) : null;
+    }
+
+    @Override
+    void set(DB db, long row, long col, T value) {
+        if (value != null) {
+            getRowMap(db, row, true).put(col, value);
+        } else {
+            // Removing a value from a row without values does not need the row map.
+            BTreeMap<Long, T> mapRow = getRowMap(db, row, false);
+            if (mapRow != null)
+                mapRow.remove(col);
+        }
+    }
+
+    @Override
+    void setRowValues(DB db, long row, long fromCol, List<T> values) {
+        boolean hasValues = false;
+        for (T value : values)
+            hasValues |= value != null;
+        BTreeMap<Long, T> mapRow = getRowMap(db, row, hasValues);
+        if (mapRow == null)
+            return;
+        long col = fromCol;
+        for (T value : values) {
+            if (value != null)
+                mapRow.put(col, value);
+            else
+                mapRow.remove(col);
+            col++;
+        }
+    }
+
+    /**
+     * Build the map of every row with the data pump, as the entries of a row are
+     * contiguous in the given order.
+     */
+    @Override
+    void bulkLoad(DB db, Iterator<MatrixEntry<T>> entries) {
+        clear(db);
+        BTreeMap<Long, Long> map = db.getTreeMap(rowMapName);
+        Atomic.Long nextID = db.getAtomicLong(nextRowIDName);
+        RowEntriesIterator rowEntries = new RowEntriesIterator(entries);
+        while (rowEntries.nextRow()) {
+            long rowID = nextID.getAndIncrement();
+            map.put(rowEntries.row, rowID);
+            db.createTreeMap(colMapNamePrefix + rowID).counterEnable().valueSerializer(valueSerializer)
+                    .pumpSource(rowEntries).make();
+        }
+    }
+
+    /**
+     * Splits a sequence of entries sorted by row into the (column, value) pairs of
+     * every row.
+     */
+    private class RowEntriesIterator implements Iterator<Fun.Tuple2<Long, T>> {
+
+        private final Iterator<MatrixEntry<T>> entries;
+        private MatrixEntry<T> pending;
+        private long row;
+
+        RowEntriesIterator(Iterator<MatrixEntry<T>> entries) {
+            this.entries = entries;
+            this.pending = entries.hasNext() ? entries.next() : null;
+        }
+
+        /**
+         * Move to the next row with entries, skipping the entries left in the current row.
+         *
+         * @return True if a row is available, false otherwise.
+         */
+        boolean nextRow() {
+            while (hasNext())
+                next();
+            if (pending == null)
+                return false;
+            row = pending.getRow();
+            return true;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return pending != null && pending.getRow() == row;
+        }
+
+        @Override
+        public Fun.Tuple2<Long, T> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Fun.Tuple2<Long, T> ret = Fun.t2(pending.getCol(), pending.getValue());
+            pending = entries.hasNext() ? entries.next() : null;
+            return ret;
+        }
+    }
+
+    @Override
+    void getRowValues(DB db, long row, long fromCol, long toCol, T defaultValue, List<T> dest) {
+        BTreeMap<Long, T> mapRow = getRowMap(db, row, false);
+        long next = fromCol;
+        if (mapRow != null) {
+            for (Map.Entry<Long, T> entry : mapRow.subMap(fromCol, true, toCol, false).entrySet()) {
+                long col = entry.getKey();
+                for (; next < col; next++)
+                    dest.add(defaultValue);
+                dest.add(entry.getValue());
+                next = col + 1;
+            }
+        }
+        for (; next < toCol; next++)
+            dest.add(defaultValue);
+    }
+
+    @Override
+    void getStoredRowValues(DB db, long row, long fromCol, long toCol, List<Pair<Long, T>> dest) {
+        BTreeMap<Long, T> mapRow = getRowMap(db, row, false);
+        if (mapRow == null)
+            return;
+        for (Map.Entry<Long, T> entry : mapRow.subMap(fromCol, true, toCol, false).entrySet())
+            dest.add(new Pair<>(entry.getKey(), entry.getValue()));
+    }
+
+    /**
+     * Get a cursor over the stored values, walking the rows with values in row order
+     * and the map of every row in column order.
+     */
+    @Override
+    Iterator<MatrixEntry<T>> storedValuesIterator(DB db) {
+        BTreeMap<Long, Long> map = db.getTreeMap(rowMapName);
+        Iterator<Map.Entry<Long, Long>> rows = map.entrySet().iterator();
+        return new Iterator<MatrixEntry<T>>() {
+            private long row;
+            private Iterator<Map.Entry<Long, T>> cols = Collections.emptyIterator();
+            private MatrixEntry<T> next = advance();
+
+            private MatrixEntry<T> advance() {
+                while (!cols.hasNext()) {
+                    if (!rows.hasNext())
+                        return null;
+                    Map.Entry<Long, Long> entry = rows.next();
+                    row = entry.getKey();
+                    BTreeMap<Long, T> mapRow = db.getTreeMap(colMapNamePrefix + entry.getValue());
+                    cols = mapRow.entrySet().iterator();
+                }
+                Map.Entry<Long, T> entry = cols.next();
+                return new MatrixEntry<>(row, entry.getKey(), entry.getValue());
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public MatrixEntry<T> next() {
+                if (next == null)
+                    throw new NoSuchElementException();
+                MatrixEntry<T> ret = next;
+                next = advance();
+                return ret;
+            }
+        };
+    }
+
+    /**
+     * Remove the values outside the new bounds. Rows outside the bounds are removed with
+     * their maps; the columns outside the bounds are removed from every row with values.
+     */
+    @Override
+    void removeOutside(DB db, long numRows, long numCols, long oldNumRows, long oldNumCols) {
+        BTreeMap<Long, Long> map = db.getTreeMap(rowMapName);
+        if (numRows < oldNumRows) {
+            List<Long> rows = new ArrayList<>(map.tailMap(numRows, true).keySet());
+            for (Long row : rows)
+                db.delete(colMapNamePrefix + map.remove(row));
+        }
+        if (numCols < oldNumCols) {
+            // Every stored row must be visited; only the rows left empty are collected,
+            // and removed after the iteration over the row map.
+            List<Long> emptyRows = new ArrayList<>();
+            for (Map.Entry<Long, Long> entry : map.entrySet()) {
+                BTreeMap<Long, T> mapRow = db.getTreeMap(colMapNamePrefix + entry.getValue());
+                mapRow.tailMap(numCols, true).clear();
+                if (mapRow.isEmpty())
+                    emptyRows.add(entry.getKey());
+            }
+            for (Long row : emptyRows)
+                db.delete(colMapNamePrefix + map.remove(row));
+        }
+    }
+
+    /**
+     * Remove all the stored values.
+     *
+     * @param db The transaction to use.
+     */
+    void clear(DB db) {
+        BTreeMap<Long, Long> map = db.getTreeMap(rowMapName);
+        Iterator<Long> rowIDs = map.values().iterator();
+        // Delete all rows associated with this matrix.
+        while (rowIDs.hasNext())
+            db.delete(colMapNamePrefix + rowIDs.next());
+        map.clear();
+    }
+
+    @Override
+    void removeMaps(DB db) {
+        clear(db);
+        db.delete(rowMapName);
+        db.delete(nextRowIDName);
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import it.cnr.isti.hlt.processfast.utils.Pair;
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.Fun;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * A matrix layout storing square tiles of "tileSize" x "tileSize" values as single
+ * MapDB records, keyed by the (tile row, tile column) coordinates packed in a long as
+ * in {@link CompositeKeyMatrixLayout}. Every tile is an {@link ArrayChunk} holding the
+ * tile values in row-major order, so numeric values are stored in primitive tiles.
+ * Row, column and block reads decode every tile involved once.
+ * <p>
+ * Tiles read from the map must never be modified in place, see {@link ArrayChunk}.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+class TiledMatrixLayout<T extends Serializable> extends MatrixLayout<T> {
+
+    private final String mapName;
+    private final String tileSizeName;
+    private final int tileSize;
+    private final ArrayChunk.Codec<T> codec;
+
+    TiledMatrixLayout(String mapName, String tileSizeName, int tileSize, ArrayChunk.Codec<T> codec) {
+        if (mapName == null || mapName.isEmpty())
+            throw new IllegalArgumentException("The map name is 'null' or empty");
+        if (tileSizeName == null)
+            throw new NullPointerException("The name of the tile size record is 'null'");
+        if (tileSize < 1)
+            throw new IllegalArgumentException("The tile size is less than 1: " + tileSize);
+        if (codec == null)
+            throw new NullPointerException("The tile codec is 'null'");
+        this.mapName = mapName;
+        this.tileSizeName = tileSizeName;
+        this.tileSize = tileSize;
+        this.codec = codec;
+    }
+
+    /**
+     * Open the layout of an existing tiled matrix, reading back the tile size and the
+     * tile codec stored with the map of tiles.
+     *
+     * @param db           The transaction to use.
+     * @param mapName      The name of the map of tiles.
+     * @param tileSizeName The name of the record holding the tile size.
+     * @return The layout of the matrix.
+     */
+    static <T extends Serializable> TiledMatrixLayout<T> open(DB db, String mapName, String tileSizeName) {
+        int tileSize = db.getAtomicInteger(tileSizeName).get();
+        ArrayChunk.Codec<T> codec = db.catGet(mapName + ".valueSerializer");
+        return new TiledMatrixLayout<>(mapName, tileSizeName, tileSize, codec);
+    }
+
+    int getTileSize() {
+        return tileSize;
+    }
+
+    private static long key(long tileRow, long tileCol) {
+        return CompositeKeyMatrixLayout.key(tileRow, tileCol);
+    }
+
+    private int offset(long row, long col) {
+        return (int) (row % tileSize) * tileSize + (int) (col % tileSize);
+    }
+
+    @Override
+    void createMaps(DB db) {
+        newMapMaker(db).makeOrGet();
+        db.createAtomicInteger(tileSizeName, tileSize);
+    }
+
+    private DB.BTreeMapMaker newMapMaker(DB db) {
+        return db.createTreeMap(mapName).counterEnable()
+                .keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG)
+                .valueSerializer(codec)
+                .valuesOutsideNodesEnable();
+    }
+
+    BTreeMap<Long, ArrayChunk<T>> getMap(DB db) {
+        return db.getTreeMap(mapName);
+    }
+
+    @Override
+    T get(DB db, long row, long col) {
+        ArrayChunk<T> tile = getMap(db).get(key(row / tileSize, col / tileSize));
+        return tile != null ? tile.get(offset(row, col)) : null;
+    }
+
+    @Override
+    void set(DB db, long row, long col, T value) {
+        BTreeMap<Long, ArrayChunk<T>> map = getMap(db);
+        long key = key(row / tileSize, col / tileSize);
+        ArrayChunk<T> tile = map.get(key);
+        if (tile == null) {
+            if (value == null)
+                return;
+            tile = codec.newChunk(tileSize * tileSize);
+        } else {
+            tile = tile.copy();
+        }
+        tile.set(offset(row, col), value);
+        if (tile.isEmpty())
+            map.remove(key);
+        else
+            map.put(key, tile);
+    }
+
+    @Override
+    void setRowValues(DB db, long row, long fromCol, List<T> values) {
+        List<List<T>> rows = new ArrayList<>(1);
+        rows.add(values);
+        setBlockValues(db, row, fromCol, rows);
+    }
+
+    /**
+     * Store the values of a block, reading and writing every tile overlapping the
+     * block once.
+     */
+    @Override
+    void setBlockValues(DB db, long fromRow, long fromCol, List<List<T>> values) {
+        if (values.isEmpty() || values.get(0).isEmpty())
+            return;
+        BTreeMap<Long, ArrayChunk<T>> map = getMap(db);
+        long toRow = fromRow + values.size();
+        long toCol = fromCol + values.get(0).size();
+        for (long tileRow = fromRow / tileSize; tileRow <= (toRow - 1) / tileSize; tileRow++) {
+            long firstRow = Math.max(fromRow, tileRow * tileSize);
+            long lastRow = Math.min(toRow, (tileRow + 1) * tileSize);
+            for (long tileCol = fromCol / tileSize; tileCol <= (toCol - 1) / tileSize; tileCol++) {
+                long firstCol = Math.max(fromCol, tileCol * tileSize);
+                long lastCol = Math.min(toCol, (tileCol + 1) * tileSize);
+                long key = key(tileRow, tileCol);
+                ArrayChunk<T> tile = map.get(key);
+                tile = tile != null ? tile.copy() : codec.newChunk(tileSize * tileSize);
+                for (long row = firstRow; row < lastRow; row++) {
+                    List<T> rowValues = values.get((int) (row - fromRow));
+                    for (long col = firstCol; col < lastCol; col++)
+                        tile.set(offset(row, col), rowValues.get((int) (col - fromCol)));
+                }
+                if (!tile.isEmpty())
+                    map.put(key, tile);
+                else if (map.containsKey(key))
+                    map.remove(key);
+            }
+        }
+    }
+
+    @Override
+    void bulkLoad(DB db, Iterator<MatrixEntry<T>> entries) {
+        db.delete(mapName);
+        DB.BTreeMapMaker maker = newMapMaker(db);
+        if (!entries.hasNext()) {
+            // The MapDB data pump can not build an empty tree.
+            maker.makeOrGet();
+            return;
+        }
+        maker.pumpSource(new TileGroupingIterator(entries));
+        maker.make();
+    }
+
+    /**
+     * Groups a sequence of entries in descending row-major order into the sequence of
+     * (key, tile) pairs containing them, in descending key order. The tiles of a tile
+     * row are built in memory before being returned.
+     */
+    private class TileGroupingIterator implements Iterator<Fun.Tuple2<Long, ArrayChunk<T>>> {
+
+        private final Iterator<MatrixEntry<T>> entries;
+        private MatrixEntry<T> pending;
+        private long tileRow;
+        private Iterator<Map.Entry<Long, ArrayChunk<T>>> tiles = Collections.emptyIterator();
+
+        TileGroupingIterator(Iterator<MatrixEntry<T>> entries) {
+            this.entries = entries;
+            this.pending = entries.hasNext() ? entries.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return tiles.hasNext() || pending != null;
+        }
+
+        @Override
+        public Fun.Tuple2<Long, ArrayChunk<T>> next() {
+            if (!tiles.hasNext()) {
+                if (pending == null)
+                    throw new NoSuchElementException();
+                tileRow = pending.getRow() / tileSize;
+                TreeMap<Long, ArrayChunk<T>> rowTiles = new TreeMap<>(Collections.reverseOrder());
+                while (pending != null && pending.getRow() / tileSize == tileRow) {
+                    long tileCol = pending.getCol() / tileSize;
+                    ArrayChunk<T> tile = rowTiles.get(tileCol);
+                    if (tile == null) {
+                        tile = codec.newChunk(tileSize * tileSize);
+                        rowTiles.put(tileCol, tile);
+                    }
+                    tile.set(offset(pending.getRow(), pending.getCol()), pending.getValue());
+                    pending = entries.hasNext() ? entries.next() : null;
+                }
+                tiles = rowTiles.entrySet().iterator();
+            }
+            Map.Entry<Long, ArrayChunk<T>> entry = tiles.next();
+            return Fun.t2(key(tileRow, entry.getKey()), entry.getValue());
+        }
+    }
+
+    @Override
+    void getRowValues(DB db, long row, long fromCol, long toCol, T defaultValue, List<T> dest) {
+        List<List<T>> rows = new ArrayList<>(1);
+        rows.add(dest);
+        getBlockValues(db, row, row + 1, fromCol, toCol, defaultValue, rows);
+    }
+
+    @Override
+    void getColValues(DB db, long col, long fromRow, long toRow, T defaultValue, List<T> dest) {
+        if (fromRow >= toRow)
+            return;
+        BTreeMap<Long, ArrayChunk<T>> map = getMap(db);
+        long tileCol = col / tileSize;
+        for (long tileRow = fromRow / tileSize; tileRow <= (toRow - 1) / tileSize; tileRow++) {
+            ArrayChunk<T> tile = map.get(key(tileRow, tileCol));
+            long from = Math.max(fromRow, tileRow * tileSize);
+            long to = Math.min(toRow, (tileRow + 1) * tileSize);
+            for (long row = from; row < to; row++) {
+                T v = tile != null ? tile.get(offset(row, col)) : null;
+                dest.add(v != null ? v : defaultValue);
+            }
+        }
+    }
+
+    /**
+     * Read the values in the block [fromRow, toRow) x [fromCol, toCol). The tiles of every
+     * tile row are read with a single range scan and decoded once.
+     */
+    @Override
+    void getBlockValues(DB db, long fromRow, long toRow, long fromCol, long toCol, T defaultValue, List<List<T>> dest) {
+        if (fromRow >= toRow || fromCol >= toCol)
+            return;
+        BTreeMap<Long, ArrayChunk<T>> map = getMap(db);
+        long fromTileCol = fromCol / tileSize;
+        long toTileCol = (toCol - 1) / tileSize;
+        for (long tileRow = fromRow / tileSize; tileRow <= (toRow - 1) / tileSize; tileRow++) {
+            long firstRow = Math.max(fromRow, tileRow * tileSize);
+            long lastRow = Math.min(toRow, (tileRow + 1) * tileSize);
+            long[] next = new long[(int) (lastRow - firstRow)];
+            Arrays.fill(next, fromCol);
+            for (Map.Entry<Long, ArrayChunk<T>> entry : map.subMap(key(tileRow, fromTileCol), true, key(tileRow, toTileCol + 1), false).entrySet()) {
+                ArrayChunk<T> tile = entry.getValue();
+                long tileStart = CompositeKeyMatrixLayout.col(entry.getKey()) * tileSize;
+                long from = Math.max(fromCol, tileStart);
+                long to = Math.min(toCol, tileStart + tileSize);
+                for (long row = firstRow; row < lastRow; row++) {
+                    List<T> values = dest.get((int) (row - fromRow));
+                    int r = (int) (row - firstRow);
+                    for (; next[r] < from; next[r]++)
+                        values.add(defaultValue);
+                    for (long col = from; col < to; col++) {
+                        T v = tile.get(offset(row, col));
+                        values.add(v != null ? v : defaultValue);
+                    }
+                    next[r] = to;
+                }
+            }
+            for (long row = firstRow; row < lastRow; row++) {
+                List<T> values = dest.get((int) (row - fromRow));
+                for (long col = next[(int) (row - firstRow)]; col < toCol; col++)
+                    values.add(defaultValue);
+            }
+        }
+    }
+
+    @Override
+    void getStoredRowValues(DB db, long row, long fromCol, long toCol, List<Pair<Long, T>> dest) {
+        if (fromCol >= toCol)
+            return;
+        long tileRow = row / tileSize;
+        for (Map.Entry<Long, ArrayChunk<T>> entry : getMap(db).subMap(key(tileRow, fromCol / tileSize), true, key(tileRow, (toCol - 1) / tileSize + 1), false).entrySet()) {
+            ArrayChunk<T> tile = entry.getValue();
+            long tileStart = CompositeKeyMatrixLayout.col(entry.getKey()) * tileSize;
+            long to = Math.min(toCol, tileStart + tileSize);
+            for (long col = Math.max(fromCol, tileStart); col < to; col++) {
+                T v = tile.get(offset(row, col));
+                if (v != null)
+                    dest.add(new Pair<>(col, v));
+            }
+        }
+    }
+
+    @Override
+    void getStoredColValues(DB db, long col, long fromRow, long toRow, List<Pair<Long, T>> dest) {
+        if (fromRow >= toRow)
+            return;
+        BTreeMap<Long, ArrayChunk<T>> map = getMap(db);
+        long tileCol = col / tileSize;
+        for (long tileRow = fromRow / tileSize; tileRow <= (toRow - 1) / tileSize; tileRow++) {
+            ArrayChunk<T> tile = map.get(key(tileRow, tileCol));
+            if (tile == null)
+                continue;
+            long to = Math.min(toRow, (tileRow + 1) * tileSize);
+            for (long row = Math.max(fromRow, tileRow * tileSize); row < to; row++) {
+                T v = tile.get(offset(row, col));
+                if (v != null)
+                    dest.add(new Pair<>(row, v));
+            }
+        }
+    }
+
+    /**
+     * Get a cursor over the stored values in row-major order. The map is walked once:
+     * the tiles of a tile row are kept in memory while the rows they cover are reported.
+     */
+    @Override
+    Iterator<MatrixEntry<T>> storedValuesIterator(DB db) {
+        Iterator<Map.Entry<Long, ArrayChunk<T>>> tiles = getMap(db).entrySet().iterator();
+        return new Iterator<MatrixEntry<T>>() {
+            private Map.Entry<Long, ArrayChunk<T>> pending = tiles.hasNext() ? tiles.next() : null;
+            private final List<Map.Entry<Long, ArrayChunk<T>>> rowTiles = new ArrayList<>();
+            private long row;
+            private long lastRow;
+            private int tileIndex;
+            private int colOffset;
+            private MatrixEntry<T> next = advance();
+
+            private MatrixEntry<T> advance() {
+                while (true) {
+                    for (; row < lastRow; row++, tileIndex = 0) {
+                        int rowOffset = (int) (row % tileSize) * tileSize;
+                        for (; tileIndex < rowTiles.size(); tileIndex++, colOffset = 0) {
+                            Map.Entry<Long, ArrayChunk<T>> entry = rowTiles.get(tileIndex);
+                            while (colOffset < tileSize) {
+                                int c = colOffset++;
+                                T v = entry.getValue().get(rowOffset + c);
+                                if (v != null)
+                                    return new MatrixEntry<>(row, CompositeKeyMatrixLayout.col(entry.getKey()) * tileSize + c, v);
+                            }
+                        }
+                    }
+                    if (pending == null)
+                        return null;
+                    long tileRow = CompositeKeyMatrixLayout.row(pending.getKey());
+                    rowTiles.clear();
+                    while (pending != null && CompositeKeyMatrixLayout.row(pending.getKey()) == tileRow) {
+                        rowTiles.add(pending);
+                        pending = tiles.hasNext() ? tiles.next() : null;
+                    }
+                    row = tileRow * tileSize;
+                    lastRow = row + tileSize;
+                    tileIndex = 0;
+                    colOffset = 0;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public MatrixEntry<T> next() {
+                if (next == null)
+                    throw new NoSuchElementException();
+                MatrixEntry<T> ret = next;
+                next = advance();
+                return ret;
+            }
+        };
+    }
+
+    /**
+     * Remove the values outside the new bounds. The tiles entirely outside the bounds are
+     * removed with ranges of keys, found by seeking the tree from tile row to tile row,
+     * while the tiles crossing the bounds are rewritten without the values outside.
+     */
+    @Override
+    void removeOutside(DB db, long numRows, long numCols, long oldNumRows, long oldNumCols) {
+        BTreeMap<Long, ArrayChunk<T>> map = getMap(db);
+        long numTileRows = (numRows + tileSize - 1) / tileSize;
+        long numTileCols = (numCols + tileSize - 1) / tileSize;
+        if (numRows < oldNumRows)
+            map.tailMap(key(numTileRows, 0), true).clear();
+        if (numCols < oldNumCols) {
+            // The first tile column having values outside the bounds.
+            long borderCol = numCols / tileSize;
+            Long k = map.ceilingKey(key(0, borderCol));
+            while (k != null) {
+                long tileRow = CompositeKeyMatrixLayout.row(k);
+                long tileCol = CompositeKeyMatrixLayout.col(k);
+                if (tileCol < borderCol) {
+                    k = map.ceilingKey(key(tileRow, borderCol));
+                } else if (tileCol < numTileCols) {
+                    trimTile(map, k, numRows, numCols);
+                    k = map.higherKey(k);
+                } else {
+                    map.subMap(k, true, key(tileRow + 1, 0), false).clear();
+                    k = map.ceilingKey(key(tileRow + 1, borderCol));
+                }
+            }
+        }
+        if (numRows < oldNumRows && numRows % tileSize != 0) {
+            List<Long> keys = new ArrayList<>(map.subMap(key(numTileRows - 1, 0), true, key(numTileRows, 0), false).keySet());
+            for (Long k : keys)
+                trimTile(map, k, numRows, numCols);
+        }
+    }
+
+    /**
+     * Remove from a tile the values outside the rows [0, numRows) and the columns
+     * [0, numCols).
+     */
+    private void trimTile(BTreeMap<Long, ArrayChunk<T>> map, long key, long numRows, long numCols) {
+        long tileStartRow = CompositeKeyMatrixLayout.row(key) * tileSize;
+        long tileStartCol = CompositeKeyMatrixLayout.col(key) * tileSize;
+        ArrayChunk<T> tile = map.get(key).copy();
+        for (long row = tileStartRow; row < tileStartRow + tileSize; row++) {
+            for (long col = tileStartCol; col < tileStartCol + tileSize; col++) {
+                if (row >= numRows || col >= numCols)
+                    tile.set(offset(row, col), null);
+            }
+        }
+        if (tile.isEmpty())
+            map.remove(key);
+        else
+            map.put(key, tile);
+    }
+
+    @Override
+    void removeMaps(DB db) {
+        db.delete(mapName);
+        db.delete(tileSizeName);
+    }
+
+    @Override
+    void checkSize(long numRows, long numCols) {
+        long maxNumRows = CompositeKeyMatrixLayout.MAX_NUM_ROWS * tileSize;
+        long maxNumCols = CompositeKeyMatrixLayout.MAX_NUM_COLS * tileSize;
+        if (numRows > maxNumRows || numCols > maxNumCols)
+            throw new IllegalArgumentException("The matrix size " + numRows + "x" + numCols + " is not supported. Maximum size: " + maxNumRows + "x" + maxNumCols);
+    }
+}
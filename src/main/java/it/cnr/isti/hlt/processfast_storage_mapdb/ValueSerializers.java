@@ -0,0 +1,162 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import org.mapdb.Serializer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Compact MapDB serializers for common value types not covered by the serializers
+ * available in {@link Serializer}. The serializers are stored by MapDB together with
+ * the collections using them, so they are stateless and serializable.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+public final class ValueSerializers {
+
+    /**
+     * Serializer for Double values, written as 8 bytes.
+     */
+    public static final Serializer<Double> DOUBLE = new DoubleSerializer();
+
+    /**
+     * Serializer for Float values, written as 4 bytes.
+     */
+    public static final Serializer<Float> FLOAT = new FloatSerializer();
+
+    /**
+     * Serializer for Short values, written as 2 bytes.
+     */
+    public static final Serializer<Short> SHORT = new ShortSerializer();
+
+    /**
+     * Serializer for Byte values, written as 1 byte.
+     */
+    public static final Serializer<Byte> BYTE = new ByteSerializer();
+
+    /**
+     * Serializer for Character values, written as 2 bytes.
+     */
+    public static final Serializer<Character> CHAR = new CharSerializer();
+
+    private ValueSerializers() {
+    }
+
+
+    static class DoubleSerializer implements Serializer<Double>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void serialize(DataOutput out, Double value) throws IOException {
+            out.writeDouble(value);
+        }
+
+        @Override
+        public Double deserialize(DataInput in, int available) throws IOException {
+            return in.readDouble();
+        }
+
+        @Override
+        public int fixedSize() {
+            return 8;
+        }
+    }
+
+    static class FloatSerializer implements Serializer<Float>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void serialize(DataOutput out, Float value) throws IOException {
+            out.writeFloat(value);
+        }
+
+        @Override
+        public Float deserialize(DataInput in, int available) throws IOException {
+            return in.readFloat();
+        }
+
+        @Override
+        public int fixedSize() {
+            return 4;
+        }
+    }
+
+    static class ShortSerializer implements Serializer<Short>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void serialize(DataOutput out, Short value) throws IOException {
+            out.writeShort(value);
+        }
+
+        @Override
+        public Short deserialize(DataInput in, int available) throws IOException {
+            return in.readShort();
+        }
+
+        @Override
+        public int fixedSize() {
+            return 2;
+        }
+    }
+
+    static class ByteSerializer implements Serializer<Byte>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void serialize(DataOutput out, Byte value) throws IOException {
+            out.writeByte(value);
+        }
+
+        @Override
+        public Byte deserialize(DataInput in, int available) throws IOException {
+            return in.readByte();
+        }
+
+        @Override
+        public int fixedSize() {
+            return 1;
+        }
+    }
+
+    static class CharSerializer implements Serializer<Character>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void serialize(DataOutput out, Character value) throws IOException {
+            out.writeChar(value);
+        }
+
+        @Override
+        public Character deserialize(DataInput in, int available) throws IOException {
+            return in.readChar();
+        }
+
+        @Override
+        public int fixedSize() {
+            return 2;
+        }
+    }
+}
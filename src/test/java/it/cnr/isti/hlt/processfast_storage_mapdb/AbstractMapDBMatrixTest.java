@@ -0,0 +1,713 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import it.cnr.isti.hlt.processfast.data.Storage;
+import it.cnr.isti.hlt.processfast.data.StorageManager;
+import it.cnr.isti.hlt.processfast.utils.Pair;
+import org.junit.Test;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The matrix tests shared by all the storage modes. Subclasses open the storage
+ * manager provider configured with the storage mode to test.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+public abstract class AbstractMapDBMatrixTest {
+
+    /**
+     * Get the storage manager provider used by the tests.
+     */
+    protected abstract MapDBRamStorageManagerProvider getProvider();
+
+    @SuppressWarnings("unchecked")
+    protected <T extends Serializable> MapDBMatrix<T> initMatrix(String name, Class<T> cl, long numRows, long numCols) {
+        StorageManager sm = getProvider().getStorageManager("clientID");
+        sm.clear();
+        Storage storage = sm.createStorage("test");
+        MapDBMatrix<T> matrix = (MapDBMatrix<T>) storage.createMatrix(name, cl, numRows, numCols);
+        matrix.resize(numRows, numCols);
+        return matrix;
+    }
+
+    /**
+     * Check the matrix values against the expected stored values, keyed by
+     * {@link #pos(long, long)}, through the iterator over the stored values and through
+     * the row and column reads.
+     */
+    protected static <T extends Serializable> void checkValues(MapDBMatrix<T> matrix, Map<Long, T> expected) {
+        int numStored = 0;
+        for (Iterator<MatrixEntry<T>> it = matrix.nonZeroIterator(); it.hasNext(); numStored++) {
+            MatrixEntry<T> entry = it.next();
+            assertEquals("Value at " + entry.getRow() + "," + entry.getCol(), expected.get(pos(entry.getRow(), entry.getCol())), entry.getValue());
+        }
+        assertEquals(expected.size(), numStored);
+
+        long numRows = matrix.getNumRows();
+        long numCols = matrix.getNumCols();
+        T defaultValue = matrix.getDefaultValue();
+        for (long row = 0; row < numRows; row++) {
+            List<T> values = matrix.getRowValues(row, 0, numCols);
+            for (long col = 0; col < numCols; col++)
+                assertEquals("Value at " + row + "," + col, expected.getOrDefault(pos(row, col), defaultValue), values.get((int) col));
+        }
+        for (long col = 0; col < numCols; col++) {
+            List<T> values = matrix.getColValues(col, 0, numRows);
+            List<Pair<Long, T>> stored = matrix.getStoredColValues(col, 0, numRows);
+            int numStoredInCol = 0;
+            for (long row = 0; row < numRows; row++) {
+                assertEquals("Value at " + row + "," + col, expected.getOrDefault(pos(row, col), defaultValue), values.get((int) row));
+                if (expected.containsKey(pos(row, col)))
+                    numStoredInCol++;
+            }
+            assertEquals("Stored values in column " + col, numStoredInCol, stored.size());
+        }
+    }
+
+    protected static long pos(long row, long col) {
+        return row * 1000 + col;
+    }
+
+    @Test
+    public void readsOfEmptyPositions() {
+        MapDBMatrix<Double> matrix = initMatrix("reads", Double.class, 10, 10);
+        assertNull(matrix.getValue(3, 3));
+        matrix.setDefaultValue(-1.0);
+        assertEquals(-1.0, matrix.getValue(3, 3), 0);
+        assertEquals(Collections.nCopies(10, -1.0), matrix.getRowValues(3, 0, 10));
+        assertEquals(Collections.nCopies(10, -1.0), matrix.getColValues(3, 0, 10));
+        checkValues(matrix, new HashMap<>());
+
+        matrix.setValue(3, 3, 3.5);
+        matrix.setValue(3, 3, null);
+        assertEquals(-1.0, matrix.getValue(3, 3), 0);
+        checkValues(matrix, new HashMap<>());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void readOutsideMatrix() {
+        MapDBMatrix<Double> matrix = initMatrix("reads", Double.class, 10, 10);
+        matrix.getValue(3, 10);
+    }
+
+    @Test
+    public void storedRowAndColumnValues() {
+        MapDBMatrix<Double> matrix = initMatrix("sparse", Double.class, 20, 30);
+        matrix.setDefaultValue(-1.0);
+        for (long col : new long[]{2, 6, 7, 15, 29})
+            matrix.setValue(4, col, (double) col);
+        for (long row : new long[]{0, 8, 19})
+            matrix.setValue(row, 15, row + 0.5);
+
+        assertStored(matrix.getStoredRowValues(4, 0, 30), 2, 2.0, 6, 6.0, 7, 7.0, 15, 15.0, 29, 29.0);
+        assertStored(matrix.getStoredRowValues(4, 6, 15), 6, 6.0, 7, 7.0);
+        assertStored(matrix.getStoredRowValues(5, 0, 30));
+        assertStored(matrix.getStoredColValues(15, 0, 20), 0, 0.5, 4, 15.0, 8, 8.5, 19, 19.5);
+        assertStored(matrix.getStoredColValues(15, 1, 19), 4, 15.0, 8, 8.5);
+        assertStored(matrix.getStoredColValues(3, 0, 20));
+
+        // Values reset to the default are not stored anymore.
+        matrix.setValue(4, 7, null);
+        assertStored(matrix.getStoredRowValues(4, 6, 15), 6, 6.0);
+    }
+
+    @Test
+    public void nonZeroIteratorInRowMajorOrder() {
+        MapDBMatrix<Double> matrix = initMatrix("sparse", Double.class, 40, 30);
+        Map<Long, Double> expected = new HashMap<>();
+        Random random = new Random(3);
+        for (int i = 0; i < 200; i++) {
+            int row = random.nextInt(40), col = random.nextInt(30);
+            matrix.setValue(row, col, (double) i);
+            expected.put(pos(row, col), (double) i);
+        }
+
+        List<Long> positions = new ArrayList<>();
+        for (Iterator<MatrixEntry<Double>> it = matrix.nonZeroIterator(); it.hasNext(); ) {
+            MatrixEntry<Double> entry = it.next();
+            assertEquals(expected.get(pos(entry.getRow(), entry.getCol())), entry.getValue());
+            positions.add(pos(entry.getRow(), entry.getCol()));
+        }
+        List<Long> sorted = new ArrayList<>(expected.keySet());
+        Collections.sort(sorted);
+        assertEquals(sorted, positions);
+
+        List<Long> provided = new ArrayList<>();
+        for (Iterator<MatrixEntry<Double>> it = matrix.asRowIteratorProvider().iterator(); it.hasNext(); ) {
+            MatrixEntry<Double> entry = it.next();
+            provided.add(pos(entry.getRow(), entry.getCol()));
+        }
+        assertEquals(sorted, provided);
+        assertFalse(initMatrix("empty", Double.class, 10, 10).nonZeroIterator().hasNext());
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends Serializable> MapDBMatrix<T> openMatrix(String name, Class<T> cl) {
+        Storage storage = getProvider().getStorageManager("clientID").getStorage("test");
+        return (MapDBMatrix<T>) storage.getMatrix(name, cl);
+    }
+
+    @Test
+    public void columnIndexFollowsChanges() {
+        MapDBMatrix<Double> matrix = initMatrix("index", Double.class, 20, 20);
+        Map<Long, Double> expected = new HashMap<>();
+        for (int row = 0; row < 20; row += 3) {
+            matrix.setValue(row, 5, row + 0.5);
+            expected.put(pos(row, 5), row + 0.5);
+        }
+        assertFalse(matrix.hasColumnIndex());
+        matrix.createColumnIndex();
+        assertTrue(matrix.hasColumnIndex());
+        checkValues(matrix, expected);
+
+        // The values written by other handles are indexed too.
+        MapDBMatrix<Double> other = openMatrix("index", Double.class);
+        assertTrue(other.hasColumnIndex());
+        other.setValue(1, 5, 1.5);
+        other.setValue(3, 5, null);
+        other.setRowValues(7, 4, Arrays.asList(7.0, 7.5, null));
+        other.setColValues(8, 10, Arrays.asList(10.0, 11.0));
+        expected.put(pos(1, 5), 1.5);
+        expected.remove(pos(3, 5));
+        expected.put(pos(7, 4), 7.0);
+        expected.put(pos(7, 5), 7.5);
+        expected.put(pos(10, 8), 10.0);
+        expected.put(pos(11, 8), 11.0);
+        assertStored(matrix.getStoredColValues(5, 0, 20), 0, 0.5, 1, 1.5, 6, 6.5, 7, 7.5, 9, 9.5, 12, 12.5, 15, 15.5, 18, 18.5);
+        checkValues(matrix, expected);
+
+        matrix.removeColumnIndex();
+        assertFalse(other.hasColumnIndex());
+        checkValues(other, expected);
+    }
+
+    @Test
+    public void columnIndexAfterResize() {
+        MapDBMatrix<Double> matrix = initMatrix("index", Double.class, 20, 20);
+        matrix.setDefaultValue(-1.0);
+        matrix.createColumnIndex();
+        for (int i = 0; i < 20; i++) {
+            matrix.setValue(i, 3, i + 0.5);
+            matrix.setValue(3, i, i + 0.25);
+        }
+
+        // The indexed values outside the new bounds are removed with the matrix values.
+        matrix.resize(10, 5);
+        assertStored(matrix.getStoredColValues(3, 0, 10), 0, 0.5, 1, 1.5, 2, 2.5, 3, 3.25, 4, 4.5, 5, 5.5, 6, 6.5, 7, 7.5, 8, 8.5, 9, 9.5);
+        matrix.resize(20, 20);
+        assertStored(matrix.getStoredColValues(3, 10, 20));
+        assertStored(matrix.getStoredColValues(15, 0, 20));
+        assertEquals(Collections.nCopies(10, -1.0), matrix.getColValues(3, 10, 20));
+        assertEquals(-1.0, matrix.getColValues(15, 0, 20).get(3), 0);
+
+        matrix.setValue(15, 15, 1.0);
+        assertStored(matrix.getStoredColValues(15, 0, 20), 15, 1.0);
+        assertEquals(1.0, matrix.getColValues(15, 0, 20).get(15), 0);
+    }
+
+    @Test
+    public void removedMatrixDropsColumnIndex() {
+        MapDBMatrix<Double> matrix = initMatrix("index", Double.class, 10, 10);
+        matrix.createColumnIndex();
+        matrix.setValue(2, 2, 2.5);
+        Storage storage = getProvider().getStorageManager("clientID").getStorage("test");
+        storage.removeMatrix("index");
+
+        MapDBMatrix<Double> created = (MapDBMatrix<Double>) storage.createMatrix("index", Double.class, 10, 10);
+        created.resize(10, 10);
+        assertFalse(created.hasColumnIndex());
+        assertStored(created.getStoredColValues(2, 0, 10));
+    }
+
+    @Test
+    public void cachedWritesAreStoredOnFlush() {
+        MapDBMatrix<Double> matrix = initMatrix("cached", Double.class, 10, 10);
+        matrix.setDefaultValue(-1.0);
+        matrix.createColumnIndex();
+        matrix.setValue(3, 4, 4.5);
+        MapDBMatrix<Double> other = openMatrix("cached", Double.class);
+        matrix.enableLocalCache(true, 2, 5, 2, 6);
+        assertTrue(matrix.isLocalCacheEnabled(2, 2));
+        assertTrue(matrix.isLocalCacheEnabled(4, 5));
+        assertFalse(matrix.isLocalCacheEnabled(5, 5));
+        assertFalse(matrix.isLocalCacheEnabled(4, 6));
+
+        matrix.setValue(3, 3, 3.5);
+        matrix.setValue(3, 4, null);
+        assertEquals(3.5, matrix.getValue(3, 3), 0);
+        assertEquals(-1.0, matrix.getValue(3, 4), 0);
+        assertEquals(-1.0, other.getValue(3, 3), 0);
+        assertEquals(4.5, other.getValue(3, 4), 0);
+
+        // Writes outside the rectangle are stored immediately.
+        matrix.setValue(7, 7, 7.5);
+        assertEquals(7.5, other.getValue(7, 7), 0);
+
+        matrix.flush();
+        assertEquals(3.5, other.getValue(3, 3), 0);
+        assertEquals(-1.0, other.getValue(3, 4), 0);
+        assertStored(other.getStoredColValues(3, 0, 10), 3, 3.5);
+        assertStored(other.getStoredColValues(4, 0, 10));
+    }
+
+    @Test
+    public void cachedReadsAreASnapshot() {
+        MapDBMatrix<Double> matrix = initMatrix("cached", Double.class, 10, 10);
+        MapDBMatrix<Double> other = openMatrix("cached", Double.class);
+        matrix.setValue(3, 3, 3.0);
+        matrix.enableLocalCache(true, 2, 5, 2, 6);
+
+        assertEquals(3.0, matrix.getValue(3, 3), 0);
+        other.setValue(3, 3, 3.5);
+        assertEquals(3.0, matrix.getValue(3, 3), 0);
+        assertEquals(Arrays.asList(3.0, null), matrix.getRowValues(3, 3, 5));
+        matrix.flush();
+        assertEquals(3.5, matrix.getValue(3, 3), 0);
+    }
+
+    @Test
+    public void overlappingReadsSeeCachedWrites() {
+        MapDBMatrix<Double> matrix = initMatrix("cached", Double.class, 10, 10);
+        MapDBMatrix<Double> other = openMatrix("cached", Double.class);
+        matrix.enableLocalCache(true, 2, 5, 2, 6);
+
+        matrix.setValue(3, 3, 3.5);
+        // The row is not fully cached: the rectangle is flushed before reading it.
+        assertEquals(3.5, matrix.getRowValues(3, 0, 10).get(3), 0);
+        assertEquals(3.5, other.getValue(3, 3), 0);
+
+        matrix.setValue(4, 2, 4.5);
+        assertEquals(4.5, matrix.getColValues(2, 0, 10).get(4), 0);
+        assertEquals(4.5, other.getValue(4, 2), 0);
+
+        matrix.setValue(2, 5, 2.5);
+        matrix.resize(20, 20);
+        assertEquals(2.5, other.getValue(2, 5), 0);
+    }
+
+    @Test
+    public void overlappingRectanglesAreFlushed() {
+        MapDBMatrix<Double> matrix = initMatrix("cached", Double.class, 10, 10);
+        MapDBMatrix<Double> other = openMatrix("cached", Double.class);
+        matrix.enableLocalCache(true, 0, 4, 0, 4);
+        matrix.enableLocalCache(true, 6, 8, 6, 8);
+        matrix.setValue(1, 1, 1.5);
+        matrix.setValue(7, 7, 7.5);
+
+        matrix.enableLocalCache(true, 3, 5, 3, 5);
+        assertEquals(1.5, other.getValue(1, 1), 0);
+        assertFalse(matrix.isLocalCacheEnabled(1, 1));
+        assertTrue(matrix.isLocalCacheEnabled(7, 7));
+        assertNull(other.getValue(7, 7));
+
+        matrix.enableLocalCache(false, 7, 8, 7, 8);
+        assertEquals(7.5, other.getValue(7, 7), 0);
+        assertFalse(matrix.isLocalCacheEnabled(6, 6));
+        assertTrue(matrix.isLocalCacheEnabled(4, 4));
+    }
+
+    @Test
+    public void leastRecentlyUsedRectanglesAreEvicted() {
+        MapDBMatrix<Double> matrix = initMatrix("cached", Double.class, 10, 10);
+        MapDBMatrix<Double> other = openMatrix("cached", Double.class);
+        int previousSize = getProvider().getMatrixLocalCacheSize();
+        getProvider().setMatrixLocalCacheSize(20);
+        try {
+            matrix.enableLocalCache(true, 0, 2, 0, 4);
+            matrix.enableLocalCache(true, 2, 4, 0, 4);
+            matrix.setValue(2, 0, 2.5);
+            // The first rectangle becomes the most recently used one.
+            matrix.setValue(0, 0, 0.5);
+
+            // The three rectangles do not fit: the second one is flushed and evicted.
+            matrix.enableLocalCache(true, 4, 6, 0, 4);
+            assertFalse(matrix.isLocalCacheEnabled(2, 0));
+            assertEquals(2.5, other.getValue(2, 0), 0);
+            assertTrue(matrix.isLocalCacheEnabled(0, 0));
+            assertTrue(matrix.isLocalCacheEnabled(4, 0));
+            assertNull(other.getValue(0, 0));
+
+            // The first rectangle is now the least recently used one.
+            matrix.setValue(4, 0, 4.5);
+            matrix.enableLocalCache(true, 6, 9, 0, 4);
+            assertFalse(matrix.isLocalCacheEnabled(0, 0));
+            assertEquals(0.5, other.getValue(0, 0), 0);
+            assertTrue(matrix.isLocalCacheEnabled(4, 0));
+            assertNull(other.getValue(4, 0));
+            matrix.flush();
+            assertEquals(4.5, other.getValue(4, 0), 0);
+        } finally {
+            getProvider().setMatrixLocalCacheSize(previousSize);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rectangleLargerThanTheCacheSize() {
+        MapDBMatrix<Double> matrix = initMatrix("cached", Double.class, 10, 10);
+        int previousSize = getProvider().getMatrixLocalCacheSize();
+        getProvider().setMatrixLocalCacheSize(20);
+        try {
+            matrix.enableLocalCache(true, 0, 3, 0, 7);
+        } finally {
+            getProvider().setMatrixLocalCacheSize(previousSize);
+        }
+    }
+
+    private static void assertStored(List<Pair<Long, Double>> stored, double... indexesAndValues) {
+        assertEquals(indexesAndValues.length / 2, stored.size());
+        for (int i = 0; i < stored.size(); i++) {
+            assertEquals((long) indexesAndValues[i * 2], (long) stored.get(i).getV1());
+            assertEquals(indexesAndValues[i * 2 + 1], stored.get(i).getV2(), 0);
+        }
+    }
+
+    private void resizeKeepsValues(boolean columnIndex) {
+        MapDBMatrix<Double> matrix = initMatrix("resize", Double.class, 20, 20);
+        matrix.setDefaultValue(-1.0);
+        if (columnIndex)
+            matrix.createColumnIndex();
+        Map<Long, Double> expected = new HashMap<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 150; i++) {
+            int row = random.nextInt(20), col = random.nextInt(20);
+            matrix.setValue(row, col, (double) i);
+            expected.put(pos(row, col), (double) i);
+        }
+
+        // Growing keeps all the values.
+        matrix.resize(30, 25);
+        checkValues(matrix, expected);
+
+        // Shrinking drops the values outside the new bounds only.
+        matrix.resize(13, 9);
+        expected.keySet().removeIf(p -> p / 1000 >= 13 || p % 1000 >= 9);
+        checkValues(matrix, expected);
+
+        // The removed positions read as the default value when the matrix grows again,
+        // also through the column index.
+        matrix.resize(30, 25);
+        checkValues(matrix, expected);
+
+        matrix.setValue(29, 24, 1.5);
+        expected.put(pos(29, 24), 1.5);
+        matrix.resize(30, 24);
+        expected.remove(pos(29, 24));
+        matrix.resize(29, 25);
+        checkValues(matrix, expected);
+    }
+
+    @Test
+    public void resizeKeepsValues() {
+        resizeKeepsValues(false);
+    }
+
+    @Test
+    public void resizeKeepsValuesWithColumnIndex() {
+        resizeKeepsValues(true);
+    }
+
+    @Test
+    public void resizeToSinglePosition() {
+        MapDBMatrix<String> matrix = initMatrix("resize", String.class, 10, 10);
+        matrix.createColumnIndex();
+        for (int row = 0; row < 10; row++) {
+            for (int col = 0; col < 10; col++)
+                matrix.setValue(row, col, row + "," + col);
+        }
+        matrix.resize(1, 1);
+        Map<Long, String> expected = new HashMap<>();
+        expected.put(pos(0, 0), "0,0");
+        checkValues(matrix, expected);
+
+        matrix.resize(10, 10);
+        checkValues(matrix, expected);
+        assertEquals(1, matrix.getStoredColValues(0, 0, 10).size());
+        assertEquals(new ArrayList<Pair<Long, String>>(), matrix.getStoredColValues(5, 0, 10));
+    }
+
+    private static List<MatrixEntry<Double>> randomEntries(long numRows, long numCols, int numEntries, Map<Long, Double> expected) {
+        List<MatrixEntry<Double>> entries = new ArrayList<>();
+        Random random = new Random(2);
+        for (int i = 0; i < numEntries; i++) {
+            long row = random.nextInt((int) numRows), col = random.nextInt((int) numCols);
+            if (expected.containsKey(pos(row, col)))
+                continue;
+            entries.add(new MatrixEntry<>(row, col, (double) i));
+            expected.put(pos(row, col), (double) i);
+        }
+        return entries;
+    }
+
+    private void loadValuesIntoEmptyMatrix(boolean columnIndex) {
+        MapDBMatrix<Double> matrix = initMatrix("load", Double.class, 40, 30);
+        matrix.setDefaultValue(-1.0);
+        if (columnIndex)
+            matrix.createColumnIndex();
+        Map<Long, Double> expected = new HashMap<>();
+        List<MatrixEntry<Double>> entries = randomEntries(40, 30, 500, expected);
+        // Entries resetting positions of an empty matrix are dropped.
+        entries.removeIf(e -> pos(e.getRow(), e.getCol()) == pos(0, 0) || pos(e.getRow(), e.getCol()) == pos(39, 29));
+        expected.remove(pos(0, 0));
+        expected.remove(pos(39, 29));
+        entries.add(0, new MatrixEntry<>(0, 0, null));
+        entries.add(new MatrixEntry<>(39, 29, null));
+
+        matrix.loadValues(entries.iterator(), 10);
+        checkValues(matrix, expected);
+    }
+
+    @Test
+    public void loadValuesIntoEmptyMatrix() {
+        loadValuesIntoEmptyMatrix(false);
+    }
+
+    @Test
+    public void loadValuesIntoEmptyMatrixWithColumnIndex() {
+        loadValuesIntoEmptyMatrix(true);
+    }
+
+    @Test
+    public void loadValuesInDescendingOrder() {
+        MapDBMatrix<Double> matrix = initMatrix("load", Double.class, 20, 20);
+        Map<Long, Double> expected = new HashMap<>();
+        List<MatrixEntry<Double>> entries = new ArrayList<>();
+        for (long row = 19; row >= 0; row--) {
+            for (long col = 19; col >= 0; col -= 3) {
+                entries.add(new MatrixEntry<>(row, col, row + col / 100.0));
+                expected.put(pos(row, col), row + col / 100.0);
+            }
+        }
+        matrix.loadValues(entries.iterator(), 100);
+        checkValues(matrix, expected);
+    }
+
+    private void loadValuesWithDuplicatedPositions(boolean emptyMatrix) {
+        MapDBMatrix<String> matrix = initMatrix("load", String.class, 10, 10);
+        Map<Long, String> expected = new HashMap<>();
+        if (!emptyMatrix) {
+            matrix.setValue(9, 0, "x");
+            expected.put(pos(9, 0), "x");
+        }
+        List<MatrixEntry<String>> entries = new ArrayList<>();
+        for (long row = 0; row < 9; row++) {
+            entries.add(new MatrixEntry<>(row, row, "a" + row));
+            entries.add(new MatrixEntry<>(row, 9 - row, "b" + row));
+            expected.put(pos(row, row), "a" + row);
+            expected.put(pos(row, 9 - row), "b" + row);
+        }
+        // The last entry of a repeated position wins, and a 'null' value resets it.
+        entries.add(new MatrixEntry<>(3, 3, "c3"));
+        entries.add(new MatrixEntry<>(7, 7, "c7"));
+        entries.add(new MatrixEntry<>(2, 2, null));
+        entries.add(new MatrixEntry<>(5, 5, null));
+        entries.add(new MatrixEntry<>(5, 5, "d5"));
+        entries.add(new MatrixEntry<>(6, 6, null));
+        entries.add(new MatrixEntry<>(6, 6, null));
+        expected.put(pos(3, 3), "c3");
+        expected.put(pos(7, 7), "c7");
+        expected.remove(pos(2, 2));
+        expected.put(pos(5, 5), "d5");
+        expected.remove(pos(6, 6));
+
+        matrix.loadValues(entries.iterator(), 4);
+        checkValues(matrix, expected);
+    }
+
+    @Test
+    public void loadValuesWithDuplicatedPositions() {
+        loadValuesWithDuplicatedPositions(true);
+    }
+
+    @Test
+    public void loadValuesWithDuplicatedPositionsIntoNonEmptyMatrix() {
+        loadValuesWithDuplicatedPositions(false);
+    }
+
+    @Test
+    public void loadDuplicatedValuesLargerThanPresortBatch() {
+        MapDBMatrix<Double> matrix = initMatrix("load", Double.class, 400, 200);
+        List<MatrixEntry<Double>> entries = new ArrayList<>();
+        for (int copy = 0; copy < 2; copy++) {
+            for (long row = 0; row < 400; row++) {
+                for (long col = 0; col < 200; col++)
+                    entries.add(new MatrixEntry<>(row, col, (double) (pos(row, col) + copy)));
+            }
+        }
+        assertTrue(entries.size() > 2 * ArrayLayout.PUMP_PRESORT_BATCH_SIZE);
+        matrix.loadValues(entries.iterator(), 1000);
+
+        long numStored = 0;
+        for (Iterator<MatrixEntry<Double>> it = matrix.nonZeroIterator(); it.hasNext(); numStored++) {
+            MatrixEntry<Double> entry = it.next();
+            assertEquals((double) (pos(entry.getRow(), entry.getCol()) + 1), entry.getValue(), 0);
+        }
+        assertEquals(400 * 200, numStored);
+    }
+
+    @Test
+    public void loadValuesLargerThanPresortBatch() {
+        MapDBMatrix<Double> matrix = initMatrix("load", Double.class, 300, 250);
+        List<MatrixEntry<Double>> entries = new ArrayList<>();
+        for (long row = 0; row < 300; row++) {
+            for (long col = 0; col < 250; col++)
+                entries.add(new MatrixEntry<>(row, col, (double) pos(row, col)));
+        }
+        assertTrue(entries.size() > ArrayLayout.PUMP_PRESORT_BATCH_SIZE);
+        Collections.shuffle(entries, new Random(3));
+        matrix.loadValues(entries.iterator(), 1000);
+
+        long numStored = 0;
+        for (Iterator<MatrixEntry<Double>> it = matrix.nonZeroIterator(); it.hasNext(); numStored++) {
+            MatrixEntry<Double> entry = it.next();
+            assertEquals((double) pos(entry.getRow(), entry.getCol()), entry.getValue(), 0);
+        }
+        assertEquals(300 * 250, numStored);
+        assertEquals((double) pos(299, 249), matrix.getValue(299, 249), 0);
+    }
+
+    @Test
+    public void loadValuesIntoNonEmptyMatrix() {
+        MapDBMatrix<Double> matrix = initMatrix("load", Double.class, 40, 30);
+        matrix.createColumnIndex();
+        matrix.setValue(0, 0, 100.0);
+        matrix.setValue(5, 5, 200.0);
+        Map<Long, Double> expected = new HashMap<>();
+        expected.put(pos(0, 0), 100.0);
+        List<MatrixEntry<Double>> entries = randomEntries(40, 30, 300, expected);
+        // A 'null' value resets a stored value.
+        expected.remove(pos(5, 5));
+        entries.removeIf(e -> pos(e.getRow(), e.getCol()) == pos(5, 5));
+        entries.add(new MatrixEntry<>(5, 5, null));
+
+        matrix.loadValues(entries.iterator(), 7);
+        checkValues(matrix, expected);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void loadValuesOutsideMatrix() {
+        MapDBMatrix<Double> matrix = initMatrix("load", Double.class, 10, 10);
+        matrix.loadValues(Arrays.asList(new MatrixEntry<>(1, 1, 1.0), new MatrixEntry<>(10, 1, 1.0)).iterator(), 10);
+    }
+
+    private void setBlocks(boolean columnIndex) {
+        MapDBMatrix<Double> matrix = initMatrix("blocks", Double.class, 30, 30);
+        matrix.setDefaultValue(-1.0);
+        if (columnIndex)
+            matrix.createColumnIndex();
+        Map<Long, Double> expected = new HashMap<>();
+        matrix.setValue(6, 6, 5.0);
+        matrix.setValue(20, 20, 6.0);
+        expected.put(pos(20, 20), 6.0);
+
+        // A block starting and ending inside tiles and covering full tiles in between.
+        List<List<Double>> block = new ArrayList<>();
+        for (long row = 5; row < 22; row++) {
+            List<Double> values = new ArrayList<>();
+            for (long col = 4; col < 19; col++) {
+                Double value = (row + col) % 4 == 0 ? null : (double) pos(row, col);
+                values.add(value);
+                if (value != null)
+                    expected.put(pos(row, col), value);
+            }
+            block.add(values);
+        }
+        matrix.setBlockValues(5, 4, block);
+        checkValues(matrix, expected);
+
+        List<Double> rowValues = new ArrayList<>();
+        for (long col = 3; col < 30; col++) {
+            Double value = col == 10 ? null : col + 0.5;
+            rowValues.add(value);
+            if (value != null)
+                expected.put(pos(8, col), value);
+            else
+                expected.remove(pos(8, col));
+        }
+        matrix.setRowValues(8, 3, rowValues);
+        checkValues(matrix, expected);
+
+        List<Double> colValues = new ArrayList<>();
+        for (long row = 0; row < 30; row++) {
+            Double value = row == 20 ? null : row + 0.25;
+            colValues.add(value);
+            if (value != null)
+                expected.put(pos(row, 13), value);
+            else
+                expected.remove(pos(row, 13));
+        }
+        matrix.setColValues(13, 0, colValues);
+        checkValues(matrix, expected);
+    }
+
+    @Test
+    public void setBlockRowAndColumnValues() {
+        setBlocks(false);
+    }
+
+    @Test
+    public void setBlockRowAndColumnValuesWithColumnIndex() {
+        setBlocks(true);
+    }
+
+    @Test
+    public void setBlockValuesOfStrings() {
+        MapDBMatrix<String> matrix = initMatrix("blocks", String.class, 20, 20);
+        Map<Long, String> expected = new HashMap<>();
+        List<List<String>> block = new ArrayList<>();
+        for (long row = 2; row < 17; row++) {
+            List<String> values = new ArrayList<>();
+            for (long col = 6; col < 15; col++) {
+                values.add(row + "," + col);
+                expected.put(pos(row, col), row + "," + col);
+            }
+            block.add(values);
+        }
+        matrix.setBlockValues(2, 6, block);
+        checkValues(matrix, expected);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setBlockValuesOutsideMatrix() {
+        MapDBMatrix<Double> matrix = initMatrix("blocks", Double.class, 10, 10);
+        matrix.setBlockValues(8, 8, Arrays.asList(Arrays.asList(1.0, 2.0, 3.0), Arrays.asList(1.0, 2.0, 3.0)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setBlockValuesWithRowsOfDifferentSizes() {
+        MapDBMatrix<Double> matrix = initMatrix("blocks", Double.class, 10, 10);
+        matrix.setBlockValues(0, 0, Arrays.asList(Arrays.asList(1.0, 2.0), Collections.singletonList(1.0)));
+    }
+}
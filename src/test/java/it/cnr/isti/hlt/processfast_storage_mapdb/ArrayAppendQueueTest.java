@@ -0,0 +1,204 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import it.cnr.isti.hlt.processfast.data.Storage;
+import it.cnr.isti.hlt.processfast.data.StorageManager;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the group commit of the values appended concurrently to an array.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+public class ArrayAppendQueueTest {
+
+    private static final int NUM_THREADS = 8;
+    private static final int NUM_VALUES_PER_THREAD = 500;
+
+    private static MapDBRamStorageManagerProvider provider;
+
+    @BeforeClass
+    public static void openStorageManagerProvider() {
+        provider = new MapDBRamStorageManagerProvider();
+        provider.setArrayGroupCommitEnabled(true);
+        provider.open();
+    }
+
+    @AfterClass
+    public static void closeStorageManagerProvider() {
+        provider.close();
+    }
+
+    private Storage initStorage() {
+        StorageManager sm = provider.getStorageManager("clientID");
+        sm.clear();
+        return sm.createStorage("test");
+    }
+
+    private MapDBArray<String> initArray(String name) {
+        return (MapDBArray<String>) initStorage().createArray(name, String.class);
+    }
+
+    @Test
+    public void concurrentAppendsGetUniqueIndexes() throws Exception {
+        MapDBArray<String> array = initArray("appends");
+        ArrayAppendQueue<String> queue = provider.getArrayAppendQueue(array.getInternalMapName());
+        ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+        try {
+            List<Future<long[]>> results = new ArrayList<>();
+            for (int t = 0; t < NUM_THREADS; t++) {
+                int thread = t;
+                results.add(executor.submit(() -> {
+                    long[] indexes = new long[NUM_VALUES_PER_THREAD];
+                    for (int i = 0; i < NUM_VALUES_PER_THREAD; i++)
+                        indexes[i] = queue.append(array, thread + ":" + i);
+                    return indexes;
+                }));
+            }
+
+            int numValues = NUM_THREADS * NUM_VALUES_PER_THREAD;
+            boolean[] assigned = new boolean[numValues];
+            for (int t = 0; t < NUM_THREADS; t++) {
+                long[] indexes = results.get(t).get();
+                for (int i = 0; i < NUM_VALUES_PER_THREAD; i++) {
+                    long index = indexes[i];
+                    assertFalse("Index " + index + " assigned twice", assigned[(int) index]);
+                    assigned[(int) index] = true;
+                    assertEquals(t + ":" + i, array.getValue(index));
+                }
+            }
+            assertEquals(numValues, array.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void concurrentAppendValues() throws Exception {
+        MapDBArray<String> array = initArray("appendValue");
+        ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < NUM_THREADS; t++) {
+                int thread = t;
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < NUM_VALUES_PER_THREAD; i++)
+                        array.appendValue(thread + ":" + i);
+                }));
+            }
+            for (Future<?> result : results)
+                result.get();
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(NUM_THREADS * NUM_VALUES_PER_THREAD, array.size());
+        // The values of every thread are stored in the order the thread appended them.
+        int[] next = new int[NUM_THREADS];
+        for (long index = 0; index < array.size(); index++) {
+            String[] value = array.getValue(index).split(":");
+            int thread = Integer.parseInt(value[0]);
+            assertEquals(next[thread]++, Integer.parseInt(value[1]));
+        }
+        for (int t = 0; t < NUM_THREADS; t++)
+            assertEquals(NUM_VALUES_PER_THREAD, next[t]);
+    }
+
+    @Test
+    public void errorsReleaseWaitingAppenders() throws Exception {
+        MapDBStorage storage = (MapDBStorage) initStorage();
+        MapDBArray<String> array = new MapDBArray<String>(storage, "failing", 1000, String.class) {
+            @Override
+            protected long appendBatch(List<String> values) {
+                throw new AssertionError("Unable to write the batch");
+            }
+        };
+        ArrayAppendQueue<String> queue = new ArrayAppendQueue<>();
+        ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < NUM_THREADS; t++)
+                results.add(executor.submit(() -> queue.append(array, "value")));
+            for (Future<?> result : results) {
+                try {
+                    result.get(30, TimeUnit.SECONDS);
+                    fail("The append did not fail");
+                } catch (ExecutionException e) {
+                    // The committer gets the error, the other appenders a wrapping exception.
+                    Throwable cause = e.getCause() instanceof AssertionError ? e.getCause() : e.getCause().getCause();
+                    assertTrue(cause instanceof AssertionError);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void removedArraysDropTheirQueue() {
+        Storage storage = initStorage();
+        MapDBArray<String> array = (MapDBArray<String>) storage.createArray("removed", String.class);
+        String name = array.getInternalMapName();
+        array.appendValue("a");
+        ArrayAppendQueue<String> queue = provider.getArrayAppendQueue(name);
+        assertSame(queue, provider.getArrayAppendQueue(name));
+
+        storage.removeArray("removed");
+        assertFalse(storage.containsArrayName("removed"));
+        assertNotSame(queue, provider.getArrayAppendQueue(name));
+
+        queue = provider.getArrayAppendQueue(name);
+        provider.getStorageManager("clientID").clear();
+        assertNotSame(queue, provider.getArrayAppendQueue(name));
+    }
+
+    @Test
+    public void removedStoragesDropTheirQueues() {
+        Storage storage = initStorage();
+        MapDBArray<String> array = (MapDBArray<String>) storage.createArray("removed", String.class);
+        String name = array.getInternalMapName();
+        array.appendValue("a");
+        ArrayAppendQueue<String> queue = provider.getArrayAppendQueue(name);
+
+        StorageManager sm = provider.getStorageManager("clientID");
+        sm.removeStorage(storage.getName());
+        assertFalse(sm.containsStorageName(storage.getName()));
+        assertNotSame(queue, provider.getArrayAppendQueue(name));
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import it.cnr.isti.hlt.processfast.data.Array;
+import it.cnr.isti.hlt.processfast.data.Storage;
+import it.cnr.isti.hlt.processfast.data.StorageManager;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the local cache of the arrays. Every test uses two handles of the same array: the
+ * first one has the local cache enabled, the second one sees only the stored values.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+public class ArrayLocalCacheTest {
+
+    private static MapDBRamStorageManagerProvider provider;
+
+    @BeforeClass
+    public static void openStorageManagerProvider() {
+        provider = new MapDBRamStorageManagerProvider();
+        provider.open();
+    }
+
+    @AfterClass
+    public static void closeStorageManagerProvider() {
+        provider.close();
+    }
+
+    private Storage initStorage() {
+        StorageManager sm = provider.getStorageManager("clientID");
+        sm.clear();
+        return sm.createStorage("test");
+    }
+
+    private Array<Double> initArray(Storage storage) {
+        Array<Double> array = storage.createArray("cached", Double.class);
+        array.resize(100);
+        array.setDefaultValue(-1.0);
+        for (int i = 0; i < 100; i += 10)
+            array.setValue(i, (double) i);
+        return array;
+    }
+
+    @Test
+    public void cachedWritesAreStoredOnFlush() {
+        Storage storage = initStorage();
+        Array<Double> array = initArray(storage);
+        Array<Double> other = storage.getArray("cached", Double.class);
+        array.enableLocalCache(true, 10, 50);
+        assertTrue(array.isLocalCacheEnabled(10));
+        assertTrue(array.isLocalCacheEnabled(49));
+        assertFalse(array.isLocalCacheEnabled(50));
+
+        array.setValue(20, 1.5);
+        array.setValue(21, 2.5);
+        assertEquals(1.5, array.getValue(20), 0);
+        assertEquals(2.5, array.getValue(21), 0);
+        assertEquals(10.0, array.getValue(10), 0);
+        assertEquals(-1.0, array.getValue(11), 0);
+        assertEquals(20.0, other.getValue(20), 0);
+        assertEquals(-1.0, other.getValue(21), 0);
+
+        array.flush();
+        assertEquals(1.5, other.getValue(20), 0);
+        assertEquals(2.5, other.getValue(21), 0);
+        assertEquals(1.5, array.getValue(20), 0);
+    }
+
+    @Test
+    public void writesOutsideTheCacheAreStoredImmediately() {
+        Storage storage = initStorage();
+        Array<Double> array = initArray(storage);
+        Array<Double> other = storage.getArray("cached", Double.class);
+        array.enableLocalCache(true, 10, 50);
+
+        array.setValue(60, 6.5);
+        assertEquals(6.5, other.getValue(60), 0);
+        assertEquals(6.5, array.getValue(60), 0);
+    }
+
+    @Test
+    public void cachedReadsAreASnapshot() {
+        Storage storage = initStorage();
+        Array<Double> array = initArray(storage);
+        Array<Double> other = storage.getArray("cached", Double.class);
+        array.enableLocalCache(true, 10, 50);
+
+        assertEquals(30.0, array.getValue(30), 0);
+        other.setValue(30, 3.5);
+        assertEquals(30.0, array.getValue(30), 0);
+        assertEquals(Arrays.asList(30.0, -1.0), array.getValues(30, 32));
+
+        array.flush();
+        assertEquals(3.5, array.getValue(30), 0);
+    }
+
+    @Test
+    public void overlappingRangeReadsSeeCachedWrites() {
+        Storage storage = initStorage();
+        Array<Double> array = initArray(storage);
+        Array<Double> other = storage.getArray("cached", Double.class);
+        array.enableLocalCache(true, 10, 50);
+
+        array.setValue(45, 4.5);
+        // The range is not fully cached: the cache is flushed before reading it.
+        assertEquals(Arrays.asList(40.0, -1.0, -1.0, -1.0, -1.0, 4.5, -1.0, -1.0, -1.0, -1.0, 50.0),
+                array.getValues(40, 51));
+        assertEquals(4.5, other.getValue(45), 0);
+    }
+
+    @Test
+    public void sizeChangesFlushTheCache() {
+        Storage storage = initStorage();
+        Array<Double> array = initArray(storage);
+        Array<Double> other = storage.getArray("cached", Double.class);
+        array.enableLocalCache(true, 10, 50);
+
+        array.setValue(15, 1.5);
+        array.resize(200);
+        assertEquals(200, other.size());
+        assertEquals(1.5, other.getValue(15), 0);
+
+        array.setValue(16, 1.6);
+        array.setDefaultValue(-2.0);
+        assertEquals(1.6, other.getValue(16), 0);
+        assertEquals(-2.0, array.getValue(17), 0);
+
+        array.resize(30);
+        assertEquals(30, array.size());
+        assertFalse(array.isLocalCacheEnabled(5));
+        array.setValue(25, 2.5);
+        array.flush();
+        assertEquals(2.5, other.getValue(25), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cachedIndexOutsideTheSize() {
+        Storage storage = initStorage();
+        Array<Double> array = initArray(storage);
+        array.enableLocalCache(true, 90, 120);
+        array.setValue(100, 1.0);
+    }
+
+    @Test
+    public void disablingTheCacheFlushesIt() {
+        Storage storage = initStorage();
+        Array<Double> array = initArray(storage);
+        Array<Double> other = storage.getArray("cached", Double.class);
+        array.enableLocalCache(true, 10, 50);
+
+        array.setValue(12, 1.2);
+        array.enableLocalCache(false, 0, 0);
+        assertFalse(array.isLocalCacheEnabled(12));
+        assertEquals(1.2, other.getValue(12), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cacheLargerThanMaximumSize() {
+        Array<Double> array = initArray(initStorage());
+        array.enableLocalCache(true, 0, MapDBArray.MAX_LOCAL_CACHE_SIZE + 1L);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import it.cnr.isti.hlt.processfast.data.Array;
+import it.cnr.isti.hlt.processfast.data.Storage;
+import it.cnr.isti.hlt.processfast.data.StorageManager;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mapdb.Fun;
+import org.mapdb.Serializer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Tests the export and import of arrays through snapshot files, mapping regions of the
+ * files small enough to force several remaps while reading.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+public class ArraySnapshotFileTest {
+
+    private static MapDBRamStorageManagerProvider provider;
+
+    private Storage storage;
+    private Path path;
+
+    @BeforeClass
+    public static void openStorageManagerProvider() {
+        provider = new MapDBRamStorageManagerProvider();
+        provider.setArrayChunkSize(16);
+        provider.open();
+    }
+
+    @AfterClass
+    public static void closeStorageManagerProvider() {
+        provider.close();
+    }
+
+    @Before
+    public void init() throws IOException {
+        StorageManager sm = provider.getStorageManager("clientID");
+        sm.clear();
+        storage = sm.createStorage("test");
+        path = Files.createTempFile("snapshot", ".bin");
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    private static String valueAt(int index) {
+        if (index % 5 == 3)
+            return null;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < index % 11; i++)
+            sb.append((char) ('a' + i));
+        return sb.toString() + index;
+    }
+
+    @Test
+    public void objectValuesRoundTripWithSmallRegions() throws IOException {
+        MapDBArray<String> source = (MapDBArray<String>) storage.createArray("source", String.class);
+        source.resize(200);
+        for (int i = 0; i < 200; i++) {
+            if (valueAt(i) != null)
+                source.setValue(i, valueAt(i));
+        }
+        source.exportTo(path);
+
+        // Every region size from 1 byte up makes the length prefixes start and end at
+        // every possible offset of a region.
+        for (int regionSize = 1; regionSize <= 16; regionSize++) {
+            MapDBArray<String> dest = (MapDBArray<String>) storage.createArray("dest" + regionSize, String.class);
+            dest.appendValue("old");
+            dest.importFrom(path, regionSize);
+            assertEquals(200, dest.size());
+            for (int i = 0; i < 200; i++)
+                assertEquals("region size " + regionSize + ", index " + i, valueAt(i), dest.getValue(i));
+        }
+    }
+
+    @Test
+    public void objectValuesReadDirectlyWithSmallRegions() throws IOException {
+        MapDBArray<String> source = (MapDBArray<String>) storage.createArray("source", String.class);
+        source.resize(50);
+        for (int i = 0; i < 50; i++) {
+            if (valueAt(i) != null)
+                source.setValue(i, valueAt(i));
+        }
+        source.exportTo(path);
+
+        for (int regionSize = 1; regionSize <= 9; regionSize++) {
+            try (ArraySnapshotFile file = ArraySnapshotFile.open(path, regionSize)) {
+                assertEquals(50, file.getSize());
+                Iterator<Fun.Tuple2<Long, String>> values = file.objectValues(Serializer.STRING);
+                for (int i = 0; i < 50; i++) {
+                    Fun.Tuple2<Long, String> value = values.next();
+                    assertEquals(Long.valueOf(i), value.a);
+                    assertEquals(valueAt(i), value.b);
+                }
+                assertFalse(values.hasNext());
+            }
+        }
+    }
+
+    @Test
+    public void numericValuesRoundTripWithSmallRegions() throws IOException {
+        Array<Double> source = storage.createArray("source", Double.class);
+        for (int i = 0; i < 100; i++)
+            source.appendValue(i * 0.5);
+        ((MapDBArray<Double>) source).exportTo(path);
+
+        for (int regionSize = 1; regionSize <= 12; regionSize++) {
+            MapDBArray<Double> dest = (MapDBArray<Double>) storage.createArray("dest" + regionSize, Double.class);
+            dest.importFrom(path, regionSize);
+            assertEquals(100, dest.size());
+            for (int i = 0; i < 100; i++)
+                assertEquals(i * 0.5, dest.getValue(i), 0);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidRegionSize() throws IOException {
+        MapDBArray<String> source = (MapDBArray<String>) storage.createArray("source", String.class);
+        source.appendValue("a");
+        source.exportTo(path);
+        ArraySnapshotFile.open(path, 0);
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import it.cnr.isti.hlt.processfast.data.Storage;
+import it.cnr.isti.hlt.processfast.data.StorageManager;
+import it.cnr.isti.hlt.processfast.utils.Pair;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.DB;
+import org.mapdb.Fun;
+import org.mapdb.Serializer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+public class ArrayValueIndexTest {
+
+    private static MapDBRamStorageManagerProvider provider;
+
+    @BeforeClass
+    public static void openStorageManagerProvider() {
+        provider = new MapDBRamStorageManagerProvider();
+        provider.registerValueSerializer(Label.class, new LabelSerializer());
+        provider.open();
+    }
+
+    @AfterClass
+    public static void closeStorageManagerProvider() {
+        provider.close();
+    }
+
+    private Storage initStorage() {
+        StorageManager sm = provider.getStorageManager("clientID");
+        sm.clear();
+        return sm.createStorage("test");
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends Serializable> MapDBArray<T> initArray(String name, Class<T> cl, int size) {
+        MapDBArray<T> array = (MapDBArray<T>) initStorage().createArray(name, cl);
+        array.resize(size);
+        return array;
+    }
+
+    @Test
+    public void indexExistingValues() {
+        MapDBArray<String> array = initArray("values", String.class, 10);
+        array.setValue(1, "b");
+        array.setValue(3, "a");
+        array.setValue(5, "b");
+        assertFalse(array.hasValueIndex());
+
+        array.createValueIndex();
+        assertTrue(array.hasValueIndex());
+        assertEquals(Arrays.asList(1L, 5L), array.indicesOf("b"));
+        assertEquals(Collections.singletonList(3L), array.indicesOf("a"));
+        assertEquals(Collections.emptyList(), array.indicesOf("c"));
+    }
+
+    @Test
+    public void indexFollowsChanges() {
+        MapDBArray<String> array = initArray("changes", String.class, 10);
+        array.createValueIndex();
+        array.setValue(1, "b");
+        array.setValues(4, Arrays.asList("a", "b", "c"));
+        array.setValue(5, "d");
+        assertEquals(Collections.singletonList(1L), array.indicesOf("b"));
+        assertEquals(Collections.singletonList(5L), array.indicesOf("d"));
+        assertEquals(Collections.singletonList(6L), array.indicesOf("c"));
+
+        // Shrinking removes the values of the truncated tail.
+        array.resize(5);
+        assertEquals(Collections.emptyList(), array.indicesOf("c"));
+        assertEquals(Collections.emptyList(), array.indicesOf("d"));
+        assertEquals(Collections.singletonList(4L), array.indicesOf("a"));
+
+        array.clear();
+        assertTrue(array.hasValueIndex());
+        assertEquals(Collections.emptyList(), array.indicesOf("a"));
+    }
+
+    @Test
+    public void rangeOfValues() {
+        MapDBArray<String> array = initArray("range", String.class, 10);
+        array.setValues(0, Arrays.asList("d", "a", "c", "b", "c"));
+        array.createValueIndex();
+
+        List<Pair<Long, String>> found = array.range("b", "d");
+        assertEquals(3, found.size());
+        assertEquals(Long.valueOf(3), found.get(0).getV1());
+        assertEquals("b", found.get(0).getV2());
+        assertEquals(Long.valueOf(2), found.get(1).getV1());
+        assertEquals(Long.valueOf(4), found.get(2).getV1());
+        assertEquals(5, array.range(null, null).size());
+        assertEquals(3, array.range("c", null).size());
+    }
+
+    @Test
+    public void removedIndex() {
+        MapDBArray<String> array = initArray("removed", String.class, 10);
+        array.createValueIndex();
+        array.removeValueIndex();
+        assertFalse(array.hasValueIndex());
+        array.setValue(1, "a");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void queryWithoutIndex() {
+        MapDBArray<String> array = initArray("missing", String.class, 10);
+        array.indicesOf("a");
+    }
+
+    @Test
+    public void userDefinedValuesWithRegisteredSerializer() {
+        MapDBArray<Label> array = initArray("labels", Label.class, 10);
+        checkUserDefinedValues(array, new Label("a"), new Label("b"));
+    }
+
+    @Test
+    public void userDefinedValuesWithJavaSerialization() {
+        MapDBArray<Tag> array = initArray("tags", Tag.class, 10);
+        checkUserDefinedValues(array, new Tag("a"), new Tag("b"));
+    }
+
+    @Test
+    public void indexUsesTheValueSerializer() {
+        MapDBArray<Label> labels = initArray("labels", Label.class, 10);
+        labels.createValueIndex();
+        assertEquals(new BTreeKeySerializer.Tuple2KeySerializer<>(Fun.COMPARATOR, new LabelSerializer(), Serializer.LONG),
+                getKeySerializer(labels));
+
+        MapDBArray<Tag> tags = initArray("tags", Tag.class, 10);
+        tags.setValue(1, new Tag("a"));
+        tags.createValueIndex();
+        assertEquals(new BTreeKeySerializer.Tuple2KeySerializer<>(Fun.COMPARATOR, Serializer.JAVA, Serializer.LONG),
+                getKeySerializer(tags));
+    }
+
+    private BTreeKeySerializer<?> getKeySerializer(MapDBArray<?> array) {
+        DB tx = provider.tx();
+        try {
+            return tx.catGet(array.getValueIndexName() + ".keySerializer");
+        } finally {
+            tx.close();
+        }
+    }
+
+    private <T extends Serializable> void checkUserDefinedValues(MapDBArray<T> array, T a, T b) {
+        // Each call is a separate transaction.
+        array.setValue(2, a);
+        array.createValueIndex();
+        array.setValue(7, b);
+        array.setValue(4, a);
+        assertEquals(Arrays.asList(2L, 4L), array.indicesOf(a));
+        assertEquals(Collections.singletonList(7L), array.indicesOf(b));
+        assertEquals(3, array.range(null, null).size());
+    }
+
+    static class Label implements Serializable, Comparable<Label> {
+        private static final long serialVersionUID = 1L;
+
+        final String text;
+
+        Label(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public int compareTo(Label o) {
+            return text.compareTo(o.text);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Label && text.equals(((Label) o).text);
+        }
+
+        @Override
+        public int hashCode() {
+            return text.hashCode();
+        }
+    }
+
+    static class LabelSerializer implements Serializer<Label>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void serialize(DataOutput out, Label value) throws IOException {
+            out.writeUTF(value.text);
+        }
+
+        @Override
+        public Label deserialize(DataInput in, int available) throws IOException {
+            return new Label(in.readUTF());
+        }
+
+        @Override
+        public int fixedSize() {
+            return -1;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof LabelSerializer;
+        }
+
+        @Override
+        public int hashCode() {
+            return LabelSerializer.class.hashCode();
+        }
+    }
+
+    /**
+     * A value without a registered serializer.
+     */
+    static class Tag implements Serializable, Comparable<Tag> {
+        private static final long serialVersionUID = 1L;
+
+        final String text;
+
+        Tag(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public int compareTo(Tag o) {
+            return text.compareTo(o.text);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Tag && text.equals(((Tag) o).text);
+        }
+
+        @Override
+        public int hashCode() {
+            return text.hashCode();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mapdb.DB;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+public class DBUtilsTest {
+
+    private static final int NUM_RETRIES = 3;
+
+    private static MapDBRamStorageManagerProvider provider;
+
+    @BeforeClass
+    public static void openStorageManagerProvider() {
+        provider = new MapDBRamStorageManagerProvider();
+        provider.open();
+    }
+
+    @AfterClass
+    public static void closeStorageManagerProvider() {
+        provider.close();
+    }
+
+    private static boolean exists(String name) {
+        DB tx = provider.tx();
+        try {
+            return tx.exists(name);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void illegalArgumentIsNotRetried() {
+        IllegalArgumentException error = new IllegalArgumentException("invalid");
+        int[] numCalls = {0};
+        try {
+            DBUtils.atomic(provider.txMaker(), NUM_RETRIES, db -> {
+                numCalls[0]++;
+                db.createAtomicLong("dbutils_atomic", 1);
+                throw error;
+            });
+            fail("The exception has not been reported");
+        } catch (IllegalArgumentException e) {
+            assertSame(error, e);
+        }
+        assertEquals(1, numCalls[0]);
+        assertFalse(exists("dbutils_atomic"));
+    }
+
+    @Test
+    public void illegalArgumentIsNotRetriedByAtomicGet() {
+        IllegalArgumentException error = new IllegalArgumentException("invalid");
+        int[] numCalls = {0};
+        try {
+            DBUtils.atomicGet(provider.txMaker(), NUM_RETRIES, db -> {
+                numCalls[0]++;
+                db.createAtomicLong("dbutils_atomic_get", 1);
+                throw error;
+            });
+            fail("The exception has not been reported");
+        } catch (IllegalArgumentException e) {
+            assertSame(error, e);
+        }
+        assertEquals(1, numCalls[0]);
+        assertFalse(exists("dbutils_atomic_get"));
+    }
+
+    @Test
+    public void otherErrorsAreRetried() {
+        IllegalStateException error = new IllegalStateException("failed");
+        int[] numCalls = {0};
+        try {
+            DBUtils.atomic(provider.txMaker(), NUM_RETRIES, db -> {
+                numCalls[0]++;
+                throw error;
+            });
+            fail("The exception has not been reported");
+        } catch (RuntimeException e) {
+            assertSame(error, e.getCause());
+        }
+        assertEquals(NUM_RETRIES, numCalls[0]);
+
+        numCalls[0] = 0;
+        assertEquals("done", DBUtils.atomicGet(provider.txMaker(), NUM_RETRIES, db -> {
+            if (++numCalls[0] < NUM_RETRIES)
+                throw error;
+            return "done";
+        }));
+        assertEquals(NUM_RETRIES, numCalls[0]);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import it.cnr.isti.hlt.processfast.data.ImmutableDataSourceIteratorProvider;
+import it.cnr.isti.hlt.processfast.data.StorageManager;
+import it.cnr.isti.hlt.processfast.utils.Pair;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+public class MapDBArrayIteratorTest {
+
+    private static MapDBRamStorageManagerProvider provider;
+
+    @BeforeClass
+    public static void openStorageManagerProvider() {
+        provider = new MapDBRamStorageManagerProvider();
+        provider.open();
+    }
+
+    @AfterClass
+    public static void closeStorageManagerProvider() {
+        provider.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    private MapDBArray<String> initArray(String name, int size) {
+        StorageManager sm = provider.getStorageManager("clientID");
+        sm.clear();
+        MapDBArray<String> array = (MapDBArray<String>) sm.createStorage("test").createArray(name, String.class);
+        array.resize(size);
+        array.setDefaultValue("-");
+        for (int i = 0; i < size; i += 3)
+            array.setValue(i, "v" + i);
+        return array;
+    }
+
+    private static <T> List<T> toList(Iterator<T> iter) {
+        List<T> ret = new ArrayList<>();
+        while (iter.hasNext())
+            ret.add(iter.next());
+        return ret;
+    }
+
+    @Test
+    public void iterateInPages() {
+        MapDBArray<String> array = initArray("pages", 10);
+        List<String> expected = array.getValues(0, 10);
+        for (long numBufferedItems : new long[]{1, 3, 10, 11, Long.MAX_VALUE})
+            assertEquals(expected, toList(array.asIterator(numBufferedItems)));
+    }
+
+    @Test
+    public void iterateEmptyArray() {
+        MapDBArray<String> array = initArray("empty", 0);
+        assertFalse(array.asIterator(5).hasNext());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void iterateWithoutBuffer() {
+        MapDBArray<String> array = initArray("buffer", 10);
+        array.asIterator(0);
+    }
+
+    @Test
+    public void laterPagesSeeLaterChanges() {
+        MapDBArray<String> array = initArray("changes", 10);
+        MapDBArrayIterator<String> iter = array.asIterator(4);
+        assertEquals("v0", iter.next());
+        // No transaction is kept by the iterator, so the array can still be written.
+        array.setValue(2, "a");
+        array.setValue(5, "b");
+        assertEquals(Arrays.asList("-", "-", "v3", "-", "b", "v6", "-", "-", "v9"), toList(iter));
+    }
+
+    @Test
+    public void stopWhenTheArrayShrinks() {
+        MapDBArray<String> array = initArray("shrink", 10);
+        MapDBArrayIterator<String> iter = array.asIterator(4);
+        assertEquals(Arrays.asList("v0", "-", "-", "v3"), Arrays.asList(iter.next(), iter.next(), iter.next(), iter.next()));
+        array.resize(6);
+        assertEquals(Arrays.asList("-", "-"), toList(iter));
+        assertEquals(6, iter.nextIndex());
+    }
+
+    @Test
+    public void iteratorProviders() {
+        MapDBArray<String> array = initArray("providers", 10);
+        ImmutableDataSourceIteratorProvider<String> values = array.asIteratorProvider(3);
+        assertEquals(array.getValues(0, 10), toList(values.iterator()));
+        assertEquals(array.getValues(0, 10), toList(values.iterator()));
+
+        List<Pair<Long, String>> pairs = toList(array.asIteratorProviderWithIndex(3).iterator());
+        assertEquals(10, pairs.size());
+        for (int i = 0; i < pairs.size(); i++) {
+            assertEquals(Long.valueOf(i), pairs.get(i).getV1());
+            assertEquals(array.getValue(i), pairs.get(i).getV2());
+        }
+    }
+
+    @Test
+    public void streams() {
+        MapDBArray<String> array = initArray("streams", 10000);
+        List<String> expected = array.getValues(0, 10000);
+        assertEquals(expected, array.stream().collect(Collectors.toList()));
+        assertEquals(expected, array.parallelStream().collect(Collectors.toList()));
+        assertEquals(3334, array.parallelStream().filter(v -> !v.equals("-")).count());
+        assertEquals("v0", array.stream().findFirst().get());
+    }
+
+    @Test
+    public void spliteratorOfShrinkingArray() {
+        MapDBArray<String> array = initArray("spliterator", 10000);
+        Spliterator<String> spliterator = array.spliterator();
+        assertFalse(spliterator.hasCharacteristics(Spliterator.SIZED));
+        assertEquals(10000, spliterator.estimateSize());
+        array.resize(5000);
+        assertEquals(5000, StreamSupport.stream(spliterator, true).toArray().length);
+    }
+}
@@ -25,6 +25,16 @@ import it.cnr.isti.hlt.processfast.data.Storage;
 import it.cnr.isti.hlt.processfast.data.StorageManager;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mapdb.DB;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 /**
  * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
@@ -61,4 +71,208 @@ public class MapDBArrayTest extends AbstractArrayTest {
     public static void closeStorageManagerProvider() {
         provider.close();
     }
+
+    @Test
+    public void appendManyCopiesOfValue() {
+        Array<Double> array = initArray("copies", true);
+        array.appendValue(-1.0);
+        // More copies than the ones stored at once.
+        array.appendValues(150000, 2.5);
+        assertEquals(150001, array.size());
+        assertEquals(-1.0, array.getValue(0), 0);
+        for (long index : new long[]{1, 65536, 65537, 131072, 131073, 150000})
+            assertEquals(2.5, array.getValue(index), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void appendNegativeNumberOfCopies() {
+        Array<Double> array = initArray("copies", true);
+        array.appendValues(-1, 2.5);
+    }
+
+    private static List<Double> values(int numValues, double offset) {
+        List<Double> values = new ArrayList<>();
+        for (int i = 0; i < numValues; i++)
+            values.add(i + offset);
+        return values;
+    }
+
+    private void appendIterator(String name, int numExisting, int numValues, int numBufferedItems) {
+        Array<Double> array = initArray(name, true);
+        for (double v : values(numExisting, -100))
+            array.appendValue(v);
+        array.appendValues(values(numValues, 0.5).iterator(), numBufferedItems);
+        assertEquals(numExisting + numValues, array.size());
+        List<Double> expected = values(numExisting, -100);
+        expected.addAll(values(numValues, 0.5));
+        assertEquals(expected, array.getValues(0, array.size()));
+    }
+
+    @Test
+    public void appendIteratorToEmptyArray() {
+        // The iterator fits in the buffer: the values are bulk loaded.
+        appendIterator("bulk", 0, 3000, 3000);
+    }
+
+    @Test
+    public void appendIteratorLargerThanBufferToEmptyArray() {
+        appendIterator("batches", 0, 3000, 700);
+    }
+
+    @Test
+    public void appendIteratorToNonEmptyArray() {
+        appendIterator("append", 10, 3000, 5000);
+    }
+
+    /**
+     * A collection calling a check every time a value is read by its iterator, to observe
+     * the array while it is being filled.
+     */
+    private static class ObservedCollection extends AbstractCollection<Double> {
+        private final List<Double> values;
+        private final Runnable check;
+
+        ObservedCollection(List<Double> values, Runnable check) {
+            this.values = values;
+            this.check = check;
+        }
+
+        @Override
+        public Iterator<Double> iterator() {
+            Iterator<Double> iter = values.iterator();
+            return new Iterator<Double>() {
+                @Override
+                public boolean hasNext() {
+                    return iter.hasNext();
+                }
+
+                @Override
+                public Double next() {
+                    check.run();
+                    return iter.next();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return values.size();
+        }
+    }
+
+    private static boolean hasStagingMaps() {
+        DB db = provider.tx();
+        try {
+            for (String key : db.getCatalog().keySet()) {
+                if (key.contains("_staging_"))
+                    return true;
+            }
+            return false;
+        } finally {
+            db.close();
+        }
+    }
+
+    private void copyCollection(ArrayIngestMode mode, boolean clearArrayContent) {
+        MapDBArray<Double> array = (MapDBArray<Double>) initArray("copy", true);
+        array.copyFrom(values(10, -100), true, 1000, mode);
+        array.copyFrom(values(3000, 0.5), clearArrayContent, 700, mode);
+
+        List<Double> expected = clearArrayContent ? new ArrayList<>() : values(10, -100);
+        expected.addAll(values(3000, 0.5));
+        assertEquals(expected.size(), array.size());
+        assertEquals(expected, array.getValues(0, array.size()));
+        assertFalse(hasStagingMaps());
+    }
+
+    @Test
+    public void copyCollectionAtomically() {
+        copyCollection(ArrayIngestMode.ATOMIC, true);
+        copyCollection(ArrayIngestMode.ATOMIC, false);
+    }
+
+    @Test
+    public void copyCollectionInChunks() {
+        copyCollection(ArrayIngestMode.CHUNKED, true);
+        copyCollection(ArrayIngestMode.CHUNKED, false);
+    }
+
+    @Test
+    public void atomicCopyIsPublishedAtTheEnd() {
+        Array<Double> array = initArray("copy", true);
+        array.copyFrom(values(10, -100), true, 100);
+        Array<Double> other = initArray("copy", false);
+        // The values are read in batches: the array is unchanged while they are staged.
+        array.copyFrom(new ObservedCollection(values(500, 0.5), () -> {
+            assertEquals(10, other.size());
+            assertEquals(-100.0, other.getValue(0), 0);
+        }), true, 100);
+        assertEquals(values(500, 0.5), other.getValues(0, 1000));
+    }
+
+    @Test
+    public void chunkedCopyIsVisibleWhileCopying() {
+        Array<Double> array = initArray("copy", true);
+        MapDBArray<Double> other = (MapDBArray<Double>) initArray("copy", false);
+        List<Long> observed = new ArrayList<>();
+        ArrayIngestMode previous = provider.getArrayIngestMode();
+        provider.setArrayIngestMode(ArrayIngestMode.CHUNKED);
+        try {
+            array.copyFrom(new ObservedCollection(values(500, 0.5), () -> {
+                assertEquals(500, other.size());
+                observed.add((long) other.getStoredValues(0, 500).size());
+            }), false, 100);
+        } finally {
+            provider.setArrayIngestMode(previous);
+        }
+        // Every batch of 100 values is committed before the next one is read.
+        assertEquals(0, (long) observed.get(0));
+        assertEquals(100, (long) observed.get(101));
+        assertEquals(400, (long) observed.get(499));
+        assertEquals(values(500, 0.5), other.getValues(0, 500));
+    }
+
+    @Test
+    public void reservedRangesAreFilledIndependently() {
+        MapDBArray<Double> first = (MapDBArray<Double>) initArray("reserve", true);
+        MapDBArray<Double> second = (MapDBArray<Double>) initArray("reserve", false);
+        first.setDefaultValue(-1.0);
+        first.appendValue(0.0);
+
+        assertEquals(1, first.reserve(100));
+        assertEquals(101, second.reserve(50));
+        assertEquals(151, first.size());
+        assertEquals(-1.0, second.getValue(1), 0);
+        assertEquals(-1.0, first.getValue(150), 0);
+
+        // The producers fill their ranges in any order without changing the size.
+        second.setValues(101, values(50, 1000));
+        first.setValues(1, values(100, 0.5));
+        assertEquals(151, second.size());
+        first.appendValue(2000.0);
+
+        List<Double> expected = new ArrayList<>();
+        expected.add(0.0);
+        expected.addAll(values(100, 0.5));
+        expected.addAll(values(50, 1000));
+        expected.add(2000.0);
+        assertEquals(expected, second.getValues(0, 200));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setValuesOutsideTheSize() {
+        MapDBArray<Double> array = (MapDBArray<Double>) initArray("reserve", true);
+        long from = array.reserve(10);
+        array.setValues(from + 1, values(10, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void reserveNoValues() {
+        ((MapDBArray<Double>) initArray("reserve", true)).reserve(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void copyCollectionWithoutBuffer() {
+        initArray("copy", true).copyFrom(values(10, 0), true, 0);
+    }
 }
@@ -0,0 +1,238 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import it.cnr.isti.hlt.processfast.data.AbstractArrayTest;
+import it.cnr.isti.hlt.processfast.data.Array;
+import it.cnr.isti.hlt.processfast.data.Storage;
+import it.cnr.isti.hlt.processfast.data.StorageManager;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static it.cnr.isti.hlt.processfast_storage_mapdb.MapDBElementArrayTest.assertStoredValues;
+import static it.cnr.isti.hlt.processfast_storage_mapdb.MapDBElementArrayTest.hasDetachedMaps;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the array tests on arrays storing their values in chunks.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+public class MapDBChunkedArrayTest extends AbstractArrayTest {
+
+    private static MapDBRamStorageManagerProvider provider;
+
+    private Storage initStorage(boolean clearStorageData) {
+        StorageManager sm = provider.getStorageManager("clientID");
+        if (clearStorageData)
+            sm.clear();
+        return sm.createStorage("test");
+    }
+
+    @Override
+    protected Array<Double> initArray(String name, boolean clearStorageData) {
+        return initStorage(clearStorageData).createArray(name, Double.class);
+    }
+
+    @Test
+    public void doubleRangesAcrossChunks() {
+        MapDBNumericArray<Double> array = (MapDBNumericArray<Double>) initStorage(true).createArray("doubles", Double.class);
+        assertTrue(array.layout instanceof ChunkedArrayLayout);
+        array.resize(70);
+        array.setDefaultValue(-1.0);
+
+        // [10, 50) starts and ends inside chunks and fully covers the chunks in between.
+        double[] values = new double[40];
+        for (int i = 0; i < values.length; i++)
+            values[i] = i + 0.5;
+        array.setDoubles(10, values);
+
+        double[] dest = new double[80];
+        assertEquals(70, array.getDoubles(0, 80, dest));
+        for (int i = 0; i < 70; i++)
+            assertEquals(i >= 10 && i < 50 ? i - 10 + 0.5 : -1.0, dest[i], 0);
+
+        // A range read starting and ending inside chunks.
+        double[] part = new double[20];
+        assertEquals(20, array.getDoubles(15, 35, part));
+        for (int i = 0; i < 20; i++)
+            assertEquals(i + 5.5, part[i], 0);
+        assertEquals(20.5, array.getValue(30), 0);
+        assertEquals(-1.0, array.getDouble(60), 0);
+    }
+
+    @Test
+    public void intRangesAcrossChunks() {
+        MapDBNumericArray<Integer> array = (MapDBNumericArray<Integer>) initStorage(true).createArray("ints", Integer.class);
+        array.resize(40);
+        int[] values = new int[33];
+        for (int i = 0; i < values.length; i++)
+            values[i] = -i;
+        array.setInts(3, values);
+
+        int[] dest = new int[40];
+        assertEquals(40, array.getInts(0, 40, dest));
+        for (int i = 0; i < 40; i++)
+            assertEquals(i >= 3 && i < 36 ? 3 - i : 0, dest[i]);
+    }
+
+    @Test
+    public void longRangesAcrossChunks() {
+        MapDBNumericArray<Long> array = (MapDBNumericArray<Long>) initStorage(true).createArray("longs", Long.class);
+        array.resize(48);
+        long[] values = new long[32];
+        for (int i = 0; i < values.length; i++)
+            values[i] = Long.MAX_VALUE - i;
+        array.setLongs(16, values);
+
+        long[] dest = new long[32];
+        assertEquals(32, array.getLongs(16, 48, dest));
+        assertArrayEquals(values, dest);
+    }
+
+    @Test
+    public void floatRangesAcrossChunks() {
+        MapDBNumericArray<Float> array = (MapDBNumericArray<Float>) initStorage(true).createArray("floats", Float.class);
+        array.resize(40);
+        float[] values = new float[33];
+        for (int i = 0; i < values.length; i++)
+            values[i] = -i - 0.25f;
+        values[0] = Float.NaN;
+        values[1] = -Float.MAX_VALUE;
+        array.setFloats(3, values);
+
+        float[] dest = new float[33];
+        assertEquals(33, array.getFloats(3, 36, dest));
+        assertArrayEquals(values, dest, 0);
+        assertEquals(-Float.MAX_VALUE, array.getValue(4), 0);
+        assertEquals(-2.25f, array.getFloat(5), 0);
+        assertEquals(0, array.getFloat(36), 0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void accessorOfAnotherType() {
+        MapDBNumericArray<Integer> array = (MapDBNumericArray<Integer>) initStorage(true).createArray("ints", Integer.class);
+        array.resize(10);
+        array.getLong(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void doubleRangeOutsideSize() {
+        MapDBNumericArray<Double> array = (MapDBNumericArray<Double>) initStorage(true).createArray("doubles", Double.class);
+        array.resize(20);
+        array.setDoubles(10, new double[11]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void doubleRangeLargerThanDestination() {
+        MapDBNumericArray<Double> array = (MapDBNumericArray<Double>) initStorage(true).createArray("doubles", Double.class);
+        array.resize(40);
+        array.getDoubles(0, 40, new double[39]);
+    }
+
+    @Test
+    public void storedValuesAcrossChunks() {
+        MapDBArray<Double> array = (MapDBArray<Double>) initStorage(true).createArray("sparse", Double.class);
+        array.resize(70);
+        array.setDefaultValue(-1.0);
+        array.setValue(5, 5.5);
+        array.setValue(17, 17.5);
+        array.setValue(18, 18.5);
+        array.setValue(60, 60.5);
+
+        // The chunk [32, 48) is not stored at all.
+        assertEquals(Arrays.asList(-1.0, 17.5, 18.5, -1.0), array.getValues(16, 20));
+        assertEquals(Arrays.asList(-1.0, -1.0), array.getValues(40, 42));
+        assertEquals(Arrays.asList(60.5, -1.0), array.getValues(60, 62));
+        assertEquals(10, array.getValues(60, 100).size());
+
+        assertStoredValues(array.getStoredValues(0, 70), 5, 5.5, 17, 17.5, 18, 18.5, 60, 60.5);
+        assertStoredValues(array.getStoredValues(6, 18), 17, 17.5);
+        assertStoredValues(array.getStoredValues(19, 60));
+        assertStoredValues(array.getStoredValues(50, 1000), 60, 60.5);
+
+        array.setValues(16, Arrays.asList(null, 16.5, null));
+        assertStoredValues(array.getStoredValues(0, 70), 5, 5.5, 17, 16.5, 60, 60.5);
+    }
+
+    @Test
+    public void shrinkInsideAChunk() {
+        MapDBArray<Double> array = (MapDBArray<Double>) initStorage(true).createArray("shrink", Double.class);
+        array.resize(70);
+        for (int i = 0; i < 70; i++)
+            array.setValue(i, i + 0.5);
+
+        // 21 ends inside the second chunk: its tail and the following chunks are removed.
+        array.resize(21);
+        array.resize(70);
+        assertEquals(20.5, array.getValue(20), 0);
+        assertNull(array.getValue(21));
+        assertNull(array.getValue(69));
+        assertEquals(21, array.getStoredValues(0, 70).size());
+    }
+
+    @Test
+    public void clearDetachesTheChunks() {
+        MapDBArray<Double> array = (MapDBArray<Double>) initStorage(true).createArray("clear", Double.class);
+        array.resize(1000);
+        for (int i = 0; i < 1000; i += 7)
+            array.setValue(i, i + 0.5);
+        array.createValueIndex();
+        array.clear();
+        assertEquals(0, array.size());
+        assertFalse(hasDetachedMaps(provider));
+
+        array.resize(1000);
+        assertNull(array.getValue(7));
+        assertTrue(array.getStoredValues(0, 1000).isEmpty());
+        assertTrue(array.indicesOf(7.5).isEmpty());
+
+        array.setValue(14, 7.5);
+        assertEquals(Arrays.asList(14L), array.indicesOf(7.5));
+    }
+
+    /**
+     * Init storage manager provider. Called one time before running any
+     * test methods.
+     */
+    @BeforeClass
+    public static void openStorageManagerProvider() {
+        provider = new MapDBRamStorageManagerProvider();
+        // Use a small chunk size to exercise values spanning several chunks.
+        provider.setArrayChunkSize(16);
+        provider.open();
+    }
+
+    /**
+     * Close storage manager provider. Called one time after have been executed all
+     * defined test methods.
+     */
+    @AfterClass
+    public static void closeStorageManagerProvider() {
+        provider.close();
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import it.cnr.isti.hlt.processfast.data.AbstractArrayTest;
+import it.cnr.isti.hlt.processfast.data.Array;
+import it.cnr.isti.hlt.processfast.data.Storage;
+import it.cnr.isti.hlt.processfast.data.StorageManager;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the array tests on arrays storing their values in compressed chunks.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+public class MapDBCompressedArrayTest extends AbstractArrayTest {
+
+    private static MapDBRamStorageManagerProvider provider;
+
+    private Storage initStorage(boolean clearStorageData) {
+        StorageManager sm = provider.getStorageManager("clientID");
+        if (clearStorageData)
+            sm.clear();
+        return sm.createStorage("test");
+    }
+
+    @Override
+    protected Array<Double> initArray(String name, boolean clearStorageData) {
+        return initStorage(clearStorageData).createArray(name, Double.class);
+    }
+
+    private static boolean isCompressed(Array<?> array) {
+        ArrayLayout<?> layout = ((MapDBArray<?>) array).layout;
+        return layout instanceof ChunkedArrayLayout && ((ChunkedArrayLayout<?>) layout).getCodec() instanceof CompressedChunkCodec;
+    }
+
+    @Test
+    public void newArraysUseCompressedChunks() {
+        Storage storage = initStorage(true);
+        Array<Double> doubles = storage.createArray("doubles", Double.class);
+        Array<String> strings = storage.createArray("strings", String.class);
+        assertTrue(isCompressed(doubles));
+        assertTrue(isCompressed(strings));
+        // Without a configured chunk size the arrays use the default one.
+        assertEquals(MapDBArray.DEFAULT_COMPRESSED_CHUNK_SIZE, ((ChunkedArrayLayout<?>) ((MapDBArray<?>) doubles).layout).getChunkSize());
+    }
+
+    @Test
+    public void numericValuesRoundTrip() {
+        Storage storage = initStorage(true);
+        MapDBNumericArray<Double> array = (MapDBNumericArray<Double>) storage.createArray("doubles", Double.class);
+        array.resize(5000);
+        double[] values = new double[4990];
+        for (int i = 0; i < values.length; i++)
+            values[i] = i % 7 == 0 ? i * 0.5 : 1.0;
+        array.setDoubles(5, values);
+
+        MapDBNumericArray<Double> reopened = (MapDBNumericArray<Double>) storage.getArray("doubles", Double.class);
+        assertTrue(isCompressed(reopened));
+        double[] dest = new double[values.length];
+        assertEquals(values.length, reopened.getDoubles(5, 4995, dest));
+        assertArrayEquals(values, dest, 0);
+        assertEquals(0, reopened.getDouble(4999), 0);
+    }
+
+    @Test
+    public void objectValuesRoundTrip() {
+        Storage storage = initStorage(true);
+        Array<String> array = storage.createArray("strings", String.class);
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 3000; i++)
+            values.add(i % 3 == 0 ? null : "value " + (i % 10));
+        array.resize(values.size());
+        for (int i = 0; i < values.size(); i++) {
+            if (values.get(i) != null)
+                array.setValue(i, values.get(i));
+        }
+
+        Array<String> reopened = storage.getArray("strings", String.class);
+        assertTrue(isCompressed(reopened));
+        assertEquals(values, reopened.getValues(0, values.size()));
+    }
+
+    @Test
+    public void existingArraysKeepTheirFormat() {
+        Storage storage = initStorage(true);
+        storage.createArray("compressed", Double.class).appendValue(1.5);
+        provider.setArrayCompressionEnabled(false);
+        try {
+            Array<Double> plain = storage.createArray("plain", Double.class);
+            plain.appendValue(2.5);
+            assertFalse(isCompressed(plain));
+
+            Array<Double> compressed = storage.getArray("compressed", Double.class);
+            assertTrue(isCompressed(compressed));
+            assertEquals(1.5, compressed.getValue(0), 0);
+        } finally {
+            provider.setArrayCompressionEnabled(true);
+        }
+
+        Array<Double> plain = storage.getArray("plain", Double.class);
+        assertFalse(isCompressed(plain));
+        assertEquals(2.5, plain.getValue(0), 0);
+    }
+
+    /**
+     * Init storage manager provider. Called one time before running any
+     * test methods.
+     */
+    @BeforeClass
+    public static void openStorageManagerProvider() {
+        provider = new MapDBRamStorageManagerProvider();
+        provider.setArrayCompressionEnabled(true);
+        provider.open();
+    }
+
+    /**
+     * Close storage manager provider. Called one time after have been executed all
+     * defined test methods.
+     */
+    @AfterClass
+    public static void closeStorageManagerProvider() {
+        provider.close();
+    }
+}
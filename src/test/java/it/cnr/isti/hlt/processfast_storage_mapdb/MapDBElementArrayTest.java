@@ -0,0 +1,263 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import it.cnr.isti.hlt.processfast.data.AbstractArrayTest;
+import it.cnr.isti.hlt.processfast.data.Array;
+import it.cnr.isti.hlt.processfast.data.Storage;
+import it.cnr.isti.hlt.processfast.data.StorageManager;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import it.cnr.isti.hlt.processfast.utils.Pair;
+import org.junit.Test;
+import org.mapdb.DB;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the array tests on generic arrays storing every value in a separate record.
+ * The arrays are created for a value class without a specialized implementation, so
+ * they use the generic element layout, and are read back as numeric arrays to check
+ * the typed accessors on arrays without primitive chunks.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+public class MapDBElementArrayTest extends AbstractArrayTest {
+
+    private static MapDBRamStorageManagerProvider provider;
+
+    private Storage initStorage(boolean clearStorageData) {
+        StorageManager sm = provider.getStorageManager("clientID");
+        if (clearStorageData)
+            sm.clear();
+        return sm.createStorage("test");
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected Array<Double> initArray(String name, boolean clearStorageData) {
+        Array<?> array = initStorage(clearStorageData).createArray(name, Number.class);
+        assertTrue(((MapDBArray<?>) array).layout instanceof ElementArrayLayout);
+        return (Array<Double>) array;
+    }
+
+    @Test
+    public void typedRangesOnElementLayout() {
+        Storage storage = initStorage(true);
+        storage.createArray("typed", Number.class).resize(50);
+        MapDBNumericArray<Double> array = (MapDBNumericArray<Double>) storage.getArray("typed", Double.class);
+        assertTrue(array.layout instanceof ElementArrayLayout);
+        array.setDefaultValue(-1.0);
+
+        double[] values = new double[30];
+        for (int i = 0; i < values.length; i++)
+            values[i] = i + 0.25;
+        array.setDoubles(10, values);
+
+        double[] dest = new double[60];
+        assertEquals(50, array.getDoubles(0, 60, dest));
+        for (int i = 0; i < 50; i++)
+            assertEquals(i >= 10 && i < 40 ? i - 10 + 0.25 : -1.0, dest[i], 0);
+        assertEquals(10.25, array.getValue(20), 0);
+        assertEquals(-1.0, array.getDouble(45), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void typedRangeOutsideSizeOnElementLayout() {
+        Storage storage = initStorage(true);
+        storage.createArray("typed", Number.class).resize(10);
+        MapDBNumericArray<Double> array = (MapDBNumericArray<Double>) storage.getArray("typed", Double.class);
+        array.setDoubles(5, new double[6]);
+    }
+
+    @Test
+    public void rangeFillsGapsWithDefault() {
+        MapDBArray<Double> array = (MapDBArray<Double>) initArray("sparse", true);
+        array.resize(50);
+        array.setDefaultValue(-1.0);
+        array.setValue(5, 5.5);
+        array.setValue(7, 7.5);
+        array.setValue(40, 40.5);
+
+        assertEquals(Arrays.asList(-1.0, -1.0, 5.5, -1.0, 7.5, -1.0), array.getValues(3, 9));
+        // The range is truncated to the array size.
+        assertEquals(Arrays.asList(40.5, -1.0), array.getValues(40, 42));
+        assertEquals(5, array.getValues(45, 60).size());
+        assertTrue(array.getValues(60, 70).isEmpty());
+        assertTrue(array.getValues(10, 10).isEmpty());
+    }
+
+    @Test
+    public void storedValuesSkipDefaults() {
+        MapDBArray<Double> array = (MapDBArray<Double>) initArray("sparse", true);
+        array.resize(50);
+        array.setDefaultValue(-1.0);
+        array.setValue(5, 5.5);
+        array.setValue(7, 7.5);
+        array.setValue(40, 40.5);
+
+        assertStoredValues(array.getStoredValues(0, 50), 5, 5.5, 7, 7.5, 40, 40.5);
+        assertStoredValues(array.getStoredValues(6, 40), 7, 7.5);
+        assertStoredValues(array.getStoredValues(0, 1000), 5, 5.5, 7, 7.5, 40, 40.5);
+        assertStoredValues(array.getStoredValues(41, 50));
+
+        array.setValues(5, Arrays.asList(null, 6.5));
+        assertStoredValues(array.getStoredValues(0, 50), 6, 6.5, 7, 7.5, 40, 40.5);
+    }
+
+    /**
+     * Check the (index, value) pairs returned by a read of the stored values.
+     *
+     * @param stored          The pairs read.
+     * @param indexesAndValues The expected indexes, each one followed by its value.
+     */
+    static void assertStoredValues(List<Pair<Long, Double>> stored, double... indexesAndValues) {
+        assertEquals(indexesAndValues.length / 2, stored.size());
+        for (int i = 0; i < stored.size(); i++) {
+            assertEquals((long) indexesAndValues[i * 2], (long) stored.get(i).getV1());
+            assertEquals(indexesAndValues[i * 2 + 1], stored.get(i).getV2(), 0);
+        }
+    }
+
+    @Test
+    public void shrinkRemovesValues() {
+        MapDBArray<Double> array = (MapDBArray<Double>) initArray("shrink", true);
+        array.resize(3000);
+        array.setDefaultValue(-1.0);
+        for (int i = 0; i < 3000; i += 2)
+            array.setValue(i, (double) i);
+
+        array.resize(11);
+        assertEquals(11, array.size());
+        array.resize(3000);
+        assertEquals(10.0, array.getValue(10), 0);
+        assertEquals(-1.0, array.getValue(12), 0);
+        assertEquals(-1.0, array.getValue(2998), 0);
+        assertEquals(6, array.getStoredValues(0, 3000).size());
+    }
+
+    @Test
+    public void clearDetachesTheValues() {
+        MapDBArray<Double> array = (MapDBArray<Double>) initArray("clear", true);
+        array.copyFrom(values(3000, 0.5), true, 1000);
+        array.clear();
+        assertEquals(0, array.size());
+        assertFalse(hasDetachedMaps(provider));
+
+        array.resize(3000);
+        assertNull(array.getValue(5));
+        assertTrue(array.getStoredValues(0, 3000).isEmpty());
+    }
+
+    @Test
+    public void resizeToZeroDetachesTheValues() {
+        MapDBArray<Double> array = (MapDBArray<Double>) initArray("clear", true);
+        array.copyFrom(values(3000, 0.5), true, 1000);
+        array.resize(0);
+        assertEquals(0, array.size());
+        assertFalse(hasDetachedMaps(provider));
+
+        array.resize(10);
+        assertTrue(array.getStoredValues(0, 10).isEmpty());
+
+        // Copying with clearArrayContent replaces the values in the same way.
+        array.copyFrom(values(3000, 0.5), false, 1000);
+        array.copyFrom(values(20, 0.25), true, 1000);
+        assertEquals(values(20, 0.25), array.getValues(0, 3010));
+        assertFalse(hasDetachedMaps(provider));
+    }
+
+    /**
+     * Check if the catalog of the given provider still contains maps detached by a clear.
+     */
+    static boolean hasDetachedMaps(AbstractMapDBStorageManagerProvider provider) {
+        DB db = provider.tx();
+        try {
+            for (String key : db.getCatalog().keySet()) {
+                if (key.contains("_detached_"))
+                    return true;
+            }
+            return false;
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Init storage manager provider. Called one time before running any
+     * test methods.
+     */
+    @BeforeClass
+    public static void openStorageManagerProvider() {
+        provider = new MapDBRamStorageManagerProvider();
+        provider.open();
+    }
+
+    /**
+     * Close storage manager provider. Called one time after have been executed all
+     * defined test methods.
+     */
+    @AfterClass
+    public static void closeStorageManagerProvider() {
+        provider.close();
+    }
+
+    private static List<Double> values(int numValues, double offset) {
+        List<Double> values = new ArrayList<>();
+        for (int i = 0; i < numValues; i++)
+            values.add(i + offset);
+        return values;
+    }
+
+    private void appendIterator(String name, int numExisting, int numValues, int numBufferedItems) {
+        Array<Double> array = initArray(name, true);
+        for (double v : values(numExisting, -100))
+            array.appendValue(v);
+        array.appendValues(values(numValues, 0.5).iterator(), numBufferedItems);
+        assertEquals(numExisting + numValues, array.size());
+        List<Double> expected = values(numExisting, -100);
+        expected.addAll(values(numValues, 0.5));
+        assertEquals(expected, array.getValues(0, array.size()));
+    }
+
+    @Test
+    public void appendIteratorToEmptyArray() {
+        // The iterator fits in the buffer: the values are bulk loaded.
+        appendIterator("bulk", 0, 3000, 3000);
+    }
+
+    @Test
+    public void appendIteratorLargerThanBufferToEmptyArray() {
+        appendIterator("batches", 0, 3000, 700);
+    }
+
+    @Test
+    public void appendIteratorToNonEmptyArray() {
+        appendIterator("append", 10, 3000, 5000);
+    }
+}
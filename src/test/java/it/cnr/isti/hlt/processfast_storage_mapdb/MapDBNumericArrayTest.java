@@ -0,0 +1,140 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import it.cnr.isti.hlt.processfast.data.Storage;
+import it.cnr.isti.hlt.processfast.data.StorageManager;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the storage-side aggregations of the numeric arrays.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+public class MapDBNumericArrayTest {
+
+    private static MapDBRamStorageManagerProvider provider;
+
+    private Storage initStorage() {
+        StorageManager sm = provider.getStorageManager("clientID");
+        sm.clear();
+        return sm.createStorage("test");
+    }
+
+    @Test
+    public void longSumAboveDoublePrecision() {
+        MapDBNumericArray<Long> array = (MapDBNumericArray<Long>) initStorage().createArray("longs", Long.class);
+        long value = (1L << 53) + 1;
+        for (int i = 0; i < 3; i++)
+            array.appendValue(value);
+        ArrayStatistics stats = array.getStatistics(0, array.size());
+        assertEquals(BigInteger.valueOf(value).multiply(BigInteger.valueOf(3)), stats.getExactSum());
+        assertEquals((double) value, stats.getMean(), 0);
+    }
+
+    @Test
+    public void longSumOverflowingLong() {
+        MapDBNumericArray<Long> array = (MapDBNumericArray<Long>) initStorage().createArray("longs", Long.class);
+        array.appendValue(Long.MAX_VALUE);
+        array.appendValue(Long.MAX_VALUE);
+        array.appendValue(-1L);
+        BigInteger expected = BigInteger.valueOf(Long.MAX_VALUE).shiftLeft(1).subtract(BigInteger.ONE);
+        assertEquals(expected, array.getStatistics(0, 3).getExactSum());
+    }
+
+    @Test
+    public void longSumOfDefaultValues() {
+        MapDBNumericArray<Long> array = (MapDBNumericArray<Long>) initStorage().createArray("longs", Long.class);
+        long value = (1L << 53) + 1;
+        array.setDefaultValue(value);
+        int size = 3 * (int) MapDBNumericArray.PARALLEL_AGGREGATION_RANGE_SIZE + 17;
+        array.resize(size);
+        array.setLong(5, Long.MAX_VALUE);
+        BigInteger expected = BigInteger.valueOf(value).multiply(BigInteger.valueOf(size - 1)).add(BigInteger.valueOf(Long.MAX_VALUE));
+        assertEquals(expected, array.getStatistics(0, size).getExactSum());
+        // The subranges aggregated in parallel are merged exactly.
+        assertEquals(expected, array.getStatistics(0, size, true).getExactSum());
+        assertEquals(expected.doubleValue(), array.sum(0, size), 0);
+    }
+
+    @Test
+    public void intMean() {
+        MapDBNumericArray<Integer> array = (MapDBNumericArray<Integer>) initStorage().createArray("ints", Integer.class);
+        array.appendValue(Integer.MAX_VALUE);
+        array.appendValue(Integer.MAX_VALUE);
+        array.appendValue(1);
+        ArrayStatistics stats = array.getStatistics(0, 3);
+        assertEquals(BigInteger.valueOf(2L * Integer.MAX_VALUE + 1), stats.getExactSum());
+        assertEquals((2.0 * Integer.MAX_VALUE + 1) / 3, stats.getMean(), 1e-6);
+        assertEquals(1, stats.getMin(), 0);
+        assertEquals(Integer.MAX_VALUE, stats.getMax(), 0);
+    }
+
+    @Test
+    public void doubleSum() {
+        MapDBNumericArray<Double> array = (MapDBNumericArray<Double>) initStorage().createArray("doubles", Double.class);
+        array.setDefaultValue(0.5);
+        array.resize(10);
+        array.setDouble(2, 3.0);
+        assertEquals(7.5, array.sum(0, 10), 0);
+        assertEquals(0.75, array.mean(0, 10), 0);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void doubleExactSum() {
+        MapDBNumericArray<Double> array = (MapDBNumericArray<Double>) initStorage().createArray("doubles", Double.class);
+        array.appendValue(1.0);
+        array.getStatistics(0, 1).getExactSum();
+    }
+
+    @Test
+    public void storedZeroWithNullDefault() {
+        Storage storage = initStorage();
+        MapDBNumericArray<Double> doubles = (MapDBNumericArray<Double>) storage.createArray("doubles", Double.class);
+        doubles.resize(10);
+        doubles.setDouble(3, 0.0);
+        doubles.setDouble(4, 1.0);
+        assertEquals(2, doubles.countNonDefault(0, 10));
+
+        MapDBNumericArray<Integer> ints = (MapDBNumericArray<Integer>) storage.createArray("ints", Integer.class);
+        ints.resize(10);
+        ints.setInt(7, 0);
+        assertEquals(1, ints.countNonDefault(0, 10));
+        assertEquals(0, ints.countNonDefault(0, 7));
+    }
+
+    @BeforeClass
+    public static void openStorageManagerProvider() {
+        provider = new MapDBRamStorageManagerProvider();
+        provider.open();
+    }
+
+    @AfterClass
+    public static void closeStorageManagerProvider() {
+        provider.close();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *
+ * ****************
+ * Copyright 2015 Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ******************
+ */
+
+
+package it.cnr.isti.hlt.processfast_storage_mapdb;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mapdb.DB;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the matrix tests on matrices stored with the {@link MatrixStorageMode#ROW_MAPS} mode.
+ *
+ * @author Tiziano Fagni (tiziano.fagni@isti.cnr.it)
+ */
+public class MapDBRowMapMatrixTest extends AbstractMapDBMatrixTest {
+
+    private static MapDBRamStorageManagerProvider provider;
+
+    @Override
+    protected MapDBRamStorageManagerProvider getProvider() {
+        return provider;
+    }
+
+    private long numStoredRows(MapDBMatrix<?> matrix) {
+        DB tx = provider.tx();
+        try {
+            return tx.getTreeMap(matrix.getInternalMapRowName()).size();
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void shrinkingColumnsRemovesEmptyRows() {
+        MapDBMatrix<Double> matrix = initMatrix("rows", Double.class, 10, 10);
+        Map<Long, Double> expected = new HashMap<>();
+        for (int row = 0; row < 10; row++) {
+            // The even rows only have values in the columns removed by the resize.
+            int col = row % 2 == 0 ? 8 : 2;
+            matrix.setValue(row, col, (double) row);
+            matrix.setValue(row, 9, -1.0);
+            if (row % 2 != 0)
+                expected.put(pos(row, col), (double) row);
+        }
+        assertEquals(10, numStoredRows(matrix));
+
+        matrix.resize(10, 5);
+        assertEquals(5, numStoredRows(matrix));
+        checkValues(matrix, expected);
+    }
+
+    private long nextRowID(MapDBMatrix<?> matrix) {
+        DB tx = provider.tx();
+        try {
+            return tx.getAtomicLong(matrix.nextAvailableRowIDName()).get();
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void readsDoNotCreateRows() {
+        MapDBMatrix<Double> matrix = initMatrix("reads", Double.class, 10, 10);
+        matrix.setDefaultValue(-1.0);
+        matrix.setValue(1, 1, 1.5);
+        long nextRowID = nextRowID(matrix);
+
+        assertEquals(-1.0, matrix.getValue(3, 3), 0);
+        assertEquals(10, matrix.getRowValues(4, 0, 10).size());
+        assertEquals(10, matrix.getColValues(5, 0, 10).size());
+        assertEquals(0, matrix.getStoredRowValues(6, 0, 10).size());
+        assertEquals(1, numStoredRows(matrix));
+        assertEquals(nextRowID, nextRowID(matrix));
+
+        // Resetting a position of a row without values does not create the row either.
+        matrix.setValue(7, 7, null);
+        assertEquals(1, numStoredRows(matrix));
+        assertEquals(nextRowID, nextRowID(matrix));
+
+        matrix.setValue(7, 7, 7.5);
+        assertEquals(2, numStoredRows(matrix));
+        assertEquals(7.5, matrix.getValue(7, 7), 0);
+    }
+
+    /**
+     * Init storage manager provider. Called one time before running any
+     * test methods.
+     */
+    @BeforeClass
+    public static void openStorageManagerProvider() {
+        provider = new MapDBRamStorageManagerProvider();
+        provider.setMatrixStorageMode(MatrixStorageMode.ROW_MAPS);
+        provider.open();
+    }
+
+    /**
+     * Close storage manager provider. Called one time after have been executed all
+     * defined test methods.
+     */
+    @AfterClass
+    public static void closeStorageManagerProvider() {
+        provider.close();
+    }
+}